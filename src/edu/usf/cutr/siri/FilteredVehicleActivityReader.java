@@ -0,0 +1,298 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FilenameUtils;
+
+import uk.org.siri.siri.Siri;
+import uk.org.siri.siri.VehicleActivity;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+
+/**
+ * Reads the VehicleActivity elements of a SIRI response that match a
+ * VehicleActivityFilter, without binding the ones that don't.
+ *
+ * The filter is checked on each field as the parser reads it, while the
+ * tokens of the VehicleActivity are buffered. As soon as a field fails a
+ * predicate, the rest of the element is skipped and the buffered tokens are
+ * dropped. Only matching elements are bound, from the buffered tokens.
+ *
+ * XML elements are bound by converting their buffered tokens to the JSON
+ * shape (see SiriXmlToJsonTranscoder) and binding them with a SIRI JSON
+ * ObjectMapper, since the XML deserializers only work on a live XML parser.
+ *
+ */
+public class FilteredVehicleActivityReader {
+
+	private static final SiriSchema ACTIVITY_SCHEMA = SiriSchema
+			.forClass(VehicleActivity.class);
+
+	/**
+	 * Binds VehicleActivity elements that were converted from XML
+	 */
+	private static final class TranscodedReaderHolder {
+		static final ObjectReader READER = jsonActivityReader(SiriUtils
+				.createObjectMapper());
+	}
+
+	private final ObjectMapper mapper;
+	private final VehicleActivityFilter filter;
+	private final boolean xml;
+	private final ObjectReader reader;
+
+	/**
+	 * Creates a reader for the given filter
+	 *
+	 * @param mapper
+	 *            XmlMapper (for XML) or ObjectMapper (for JSON) configured for
+	 *            SIRI
+	 * @param filter
+	 *            predicates that the returned VehicleActivity elements match
+	 */
+	public FilteredVehicleActivityReader(ObjectMapper mapper,
+			VehicleActivityFilter filter) {
+		this.mapper = mapper;
+		this.filter = filter;
+		this.xml = mapper instanceof XmlMapper;
+		this.reader = xml ? TranscodedReaderHolder.READER
+				: jsonActivityReader(mapper);
+	}
+
+	private static ObjectReader jsonActivityReader(ObjectMapper mapper) {
+		// VehicleActivity elements aren't wrapped in a root name like the
+		// full JSON document is
+		return mapper.reader(VehicleActivity.class).without(
+				DeserializationFeature.UNWRAP_ROOT_VALUE);
+	}
+
+	/**
+	 * Reads the matching VehicleActivity elements in the given SIRI file
+	 *
+	 * @param file
+	 *            SIRI XML or JSON file
+	 * @return the matching VehicleActivity elements, in document order
+	 * @throws IOException
+	 *             if the file could not be read
+	 */
+	public List<VehicleActivity> read(File file) throws IOException {
+		return read(mapper.getFactory().createJsonParser(file));
+	}
+
+	/**
+	 * Reads the matching VehicleActivity elements in the given SIRI document.
+	 * The stream is closed when this method returns.
+	 *
+	 * @param in
+	 *            SIRI XML or JSON document
+	 * @return the matching VehicleActivity elements, in document order
+	 * @throws IOException
+	 *             if the document could not be read
+	 */
+	public List<VehicleActivity> read(InputStream in) throws IOException {
+		return read(mapper.getFactory().createJsonParser(in));
+	}
+
+	private List<VehicleActivity> read(JsonParser jp) throws IOException {
+		List<VehicleActivity> activities = new ArrayList<VehicleActivity>();
+		try {
+			JsonToken t;
+			while ((t = jp.nextToken()) != null) {
+				if (t != JsonToken.FIELD_NAME
+						|| !LazySiriDocument.VEHICLE_ACTIVITY.equals(jp
+								.getCurrentName())) {
+					continue;
+				}
+				t = jp.nextToken();
+				if (t == JsonToken.START_ARRAY) {
+					for (t = jp.nextToken(); t != null
+							&& t != JsonToken.END_ARRAY; t = jp.nextToken()) {
+						if (t == JsonToken.START_OBJECT) {
+							addIfMatching(jp, activities);
+						} else {
+							jp.skipChildren();
+						}
+					}
+				} else if (t == JsonToken.START_OBJECT) {
+					// Unwrapped XML list entry, or a single JSON object
+					addIfMatching(jp, activities);
+				}
+			}
+		} finally {
+			jp.close();
+		}
+		return activities;
+	}
+
+	private void addIfMatching(JsonParser jp, List<VehicleActivity> activities)
+			throws IOException {
+		TokenBuffer buffer = readIfMatching(jp);
+		if (buffer != null) {
+			activities.add(bind(buffer));
+		}
+	}
+
+	/**
+	 * Reads one VehicleActivity element, starting with the parser at its
+	 * START_OBJECT token and ending at its END_OBJECT token
+	 *
+	 * @return the buffered tokens of the element, or null if it doesn't match
+	 *         the filter
+	 */
+	TokenBuffer readIfMatching(JsonParser jp) throws IOException {
+		TokenBuffer buffer = new TokenBuffer(mapper);
+		buffer.copyCurrentEvent(jp);
+
+		int required = filter.getRequired();
+		int matched = 0;
+		boolean rejected = false;
+
+		// Names of the objects enclosing the current value, below the
+		// VehicleActivity
+		String[] path = new String[8];
+		int depth = 0;
+
+		while (true) {
+			JsonToken t = jp.nextToken();
+			if (t == null) {
+				throw new JsonParseException("Unexpected end of input in "
+						+ LazySiriDocument.VEHICLE_ACTIVITY,
+						jp.getCurrentLocation());
+			}
+			if (t == JsonToken.END_OBJECT && depth == 0) {
+				if (rejected || (matched & required) != required) {
+					return null;
+				}
+				buffer.copyCurrentEvent(jp);
+				return buffer;
+			}
+			if (rejected) {
+				// Skip the rest of the element
+				if (t == JsonToken.START_OBJECT) {
+					depth++;
+				} else if (t == JsonToken.END_OBJECT) {
+					depth--;
+				}
+				continue;
+			}
+
+			buffer.copyCurrentEvent(jp);
+			switch (t) {
+			case START_OBJECT:
+				if (depth == path.length) {
+					path = Arrays.copyOf(path, depth * 2);
+				}
+				path[depth++] = jp.getCurrentName();
+				break;
+			case END_OBJECT:
+				depth--;
+				break;
+			case FIELD_NAME:
+			case START_ARRAY:
+			case END_ARRAY:
+				break;
+			default:
+				if (depth > 0) {
+					int result = filter.check(path[depth - 1], jp);
+					if (result == VehicleActivityFilter.REJECTED) {
+						rejected = true;
+						buffer = null;
+					} else {
+						matched |= result;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Binds the buffered tokens of a matching VehicleActivity
+	 */
+	VehicleActivity bind(TokenBuffer buffer) throws IOException {
+		JsonParser jp = buffer.asParser();
+		jp.nextToken();
+		if (xml) {
+			TokenBuffer json = new TokenBuffer(mapper);
+			SiriXmlToJsonTranscoder.copyObject(jp, json, ACTIVITY_SCHEMA);
+			jp = json.asParser();
+			jp.nextToken();
+		}
+		return reader.readValue(jp);
+	}
+
+	/**
+	 * Compares the time to read the VehicleActivity elements on the given
+	 * lines with the time to bind the full document
+	 *
+	 * @param args
+	 *            path to the SIRI XML or JSON file to parse, and one or more
+	 *            LineRef values
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out
+					.println("Proper Usage is: java FilteredVehicleActivityReader path-to-siri-file-to-parse line-ref ...");
+			System.exit(0);
+		}
+
+		File file = new File(args[0]);
+		ObjectMapper mapper = FilenameUtils.getExtension(args[0])
+				.equalsIgnoreCase("xml") ? SiriUtils.createXmlMapper()
+				: SiriUtils.createObjectMapper();
+		FilteredVehicleActivityReader reader = new FilteredVehicleActivityReader(
+				mapper, new VehicleActivityFilter().lineRefs(Arrays.copyOfRange(
+						args, 1, args.length)));
+
+		try {
+			// Warm up both paths, so the comparison doesn't include the
+			// creation of the deserializers
+			mapper.readValue(file, Siri.class);
+			reader.read(file);
+
+			long startTime = System.nanoTime();
+			mapper.readValue(file, Siri.class);
+			long fullTime = System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			List<VehicleActivity> activities = reader.read(file);
+			long filteredTime = System.nanoTime() - startTime;
+
+			System.out.println("Full parse: "
+					+ SiriUtils.df.format(fullTime / 1000000.0) + " ms.");
+			System.out.println("Filtered parse (" + activities.size()
+					+ " matching VehicleActivity elements): "
+					+ SiriUtils.df.format(filteredTime / 1000000.0) + " ms.");
+		} catch (IOException e) {
+			System.err.println("Error parsing input file: " + e);
+			e.printStackTrace();
+		}
+	}
+}
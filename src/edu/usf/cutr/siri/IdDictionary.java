@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns small sequential int ids to strings such as LineRef, VehicleRef, and
+ * StopPointRef values, so they can be used as primitive map keys. Ids are
+ * never reused.
+ *
+ * This class is thread-safe.
+ *
+ */
+final class IdDictionary {
+
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+	// Guarded by this
+	private final List<String> names = new ArrayList<String>();
+
+	/**
+	 * Returns the id of the given string, assigning a new id if it doesn't
+	 * have one yet
+	 */
+	int id(String name) {
+		Integer id = ids.get(name);
+		if (id == null) {
+			synchronized (this) {
+				id = ids.get(name);
+				if (id == null) {
+					id = names.size();
+					names.add(name);
+					ids.put(name, id);
+				}
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the id of the given string, or -1 if it doesn't have one
+	 */
+	int find(String name) {
+		Integer id = ids.get(name);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Returns the string with the given id
+	 */
+	synchronized String name(int id) {
+		return names.get(id);
+	}
+
+	synchronized int size() {
+		return names.size();
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+/**
+ * A hash map from primitive int keys to non-null values, using open
+ * addressing with linear probing, so lookups don't box the key or allocate
+ * entry objects.
+ *
+ * This class is not thread-safe.
+ *
+ */
+final class IntObjectHashMap<V> {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int[] keys;
+	private Object[] values;
+	private int size = 0;
+
+	IntObjectHashMap() {
+		keys = new int[INITIAL_CAPACITY];
+		values = new Object[INITIAL_CAPACITY];
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the value for the given key, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	V get(int key) {
+		int mask = keys.length - 1;
+		for (int i = slot(key, mask);; i = (i + 1) & mask) {
+			Object value = values[i];
+			if (value == null) {
+				return null;
+			}
+			if (keys[i] == key) {
+				return (V) value;
+			}
+		}
+	}
+
+	/**
+	 * Sets the value for the given key
+	 *
+	 * @return the previous value for the key, or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	V put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException("Null values aren't supported");
+		}
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V previous = (V) values[i];
+				values[i] = value;
+				return previous;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		// Keep the load factor at or below 1/2
+		if (++size * 2 > keys.length) {
+			resize(keys.length * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the value for the given key
+	 *
+	 * @return the removed value, or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(int key) {
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				break;
+			}
+		}
+		V removed = (V) values[i];
+		if (removed == null) {
+			return null;
+		}
+		values[i] = null;
+		size--;
+
+		// Shift back the entries that follow in the same probe sequence, so
+		// get() doesn't stop at the new hole
+		for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			int home = slot(keys[j], mask);
+			// Move the entry if the hole lies cyclically between its home
+			// slot and its current slot
+			if ((j > i && (home <= i || home > j))
+					|| (j < i && (home <= i && home > j))) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				values[j] = null;
+				i = j;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Returns the keys of the map, in no particular order
+	 */
+	int[] keys() {
+		int[] result = new int[size];
+		int n = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				result[n++] = keys[i];
+			}
+		}
+		return result;
+	}
+
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int j = slot(oldKeys[i], mask);
+				while (values[j] != null) {
+					j = (j + 1) & mask;
+				}
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+
+	private static int slot(int key, int mask) {
+		// Spread the bits, since keys are often small sequential ids
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+
+import uk.org.siri.siri.VehicleActivity;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+
+/**
+ * A "lazy" view of a SIRI VehicleMonitoring response. Instead of binding the
+ * entire Siri object, a fast scan records the byte range of each
+ * VehicleActivity element along with its VehicleRef, LineRef and
+ * RecordedAtTime. The full VehicleActivity POJO is only bound when it is first
+ * accessed (see LazyVehicleActivity.get()).
+ *
+ * This makes lookups of a handful of vehicles out of a feed with thousands of
+ * vehicles much cheaper than binding the whole ServiceDelivery.
+ *
+ */
+public class LazySiriDocument {
+
+	static final String VEHICLE_ACTIVITY = "VehicleActivity";
+	static final String VEHICLE_REF = "VehicleRef";
+	static final String LINE_REF = "LineRef";
+	static final String RECORDED_AT_TIME = "RecordedAtTime";
+
+	private static final byte[] VEHICLE_ACTIVITY_BYTES = SiriXmlScanner
+			.name(VEHICLE_ACTIVITY);
+	private static final byte[] VEHICLE_REF_BYTES = SiriXmlScanner
+			.name(VEHICLE_REF);
+	private static final byte[] LINE_REF_BYTES = SiriXmlScanner.name(LINE_REF);
+	private static final byte[] RECORDED_AT_TIME_BYTES = SiriXmlScanner
+			.name(RECORDED_AT_TIME);
+
+	private final byte[] data;
+
+	private final List<LazyVehicleActivity> vehicleActivities;
+
+	private final Map<String, List<LazyVehicleActivity>> byVehicleRef = new HashMap<String, List<LazyVehicleActivity>>();
+	private final Map<String, List<LazyVehicleActivity>> byLineRef = new HashMap<String, List<LazyVehicleActivity>>();
+
+	private LazySiriDocument(byte[] data,
+			List<LazyVehicleActivity> vehicleActivities) {
+		this.data = data;
+		this.vehicleActivities = Collections
+				.unmodifiableList(vehicleActivities);
+
+		for (LazyVehicleActivity lva : vehicleActivities) {
+			addToIndex(byVehicleRef, lva.getVehicleRef(), lva);
+			addToIndex(byLineRef, lva.getLineRef(), lva);
+		}
+	}
+
+	/**
+	 * Scans the given SIRI file, without binding any VehicleActivity elements
+	 *
+	 * @param file
+	 *            SIRI XML or JSON file
+	 * @param mapper
+	 *            XmlMapper (for XML) or ObjectMapper (for JSON) that will be
+	 *            used to bind VehicleActivity elements when they are accessed
+	 * @return the scanned document
+	 * @throws IOException
+	 *             if the file could not be read or scanned
+	 */
+	public static LazySiriDocument read(File file, ObjectMapper mapper)
+			throws IOException {
+		return read(FileUtils.readFileToByteArray(file), mapper);
+	}
+
+	/**
+	 * Scans the given SIRI document, without binding any VehicleActivity
+	 * elements. The given array is retained by the document and must not be
+	 * modified afterwards.
+	 *
+	 * @param data
+	 *            raw bytes of a SIRI XML or JSON document
+	 * @param mapper
+	 *            XmlMapper (for XML) or ObjectMapper (for JSON) that will be
+	 *            used to bind VehicleActivity elements when they are accessed
+	 * @return the scanned document
+	 * @throws IOException
+	 *             if the document could not be scanned
+	 */
+	public static LazySiriDocument read(byte[] data, ObjectMapper mapper)
+			throws IOException {
+		if (mapper instanceof XmlMapper) {
+			return new LazySiriDocument(data, scanXml(data,
+					mapper.reader(VehicleActivity.class)));
+		} else {
+			// VehicleActivity elements aren't wrapped in a root name like the
+			// full JSON document is
+			ObjectReader reader = mapper.reader(VehicleActivity.class).without(
+					DeserializationFeature.UNWRAP_ROOT_VALUE);
+			return new LazySiriDocument(data, scanJson(data, mapper, reader));
+		}
+	}
+
+	/**
+	 * Finds VehicleActivity elements by scanning the raw XML bytes
+	 */
+	private static List<LazyVehicleActivity> scanXml(byte[] data,
+			ObjectReader reader) throws IOException {
+		List<LazyVehicleActivity> activities = new ArrayList<LazyVehicleActivity>();
+		SiriDateDeserializer dateParser = new SiriDateDeserializer();
+
+		int pos = 0;
+		int tagStart;
+		while ((tagStart = SiriXmlScanner.indexOfStartTag(data, pos,
+				data.length, VEHICLE_ACTIVITY_BYTES)) >= 0) {
+			int elementEnd = SiriXmlScanner.endOfElement(data, tagStart,
+					data.length, VEHICLE_ACTIVITY_BYTES);
+			if (elementEnd < 0) {
+				throw new IOException("Unterminated <" + VEHICLE_ACTIVITY
+						+ "> element at byte " + tagStart);
+			}
+
+			String vehicleRef = SiriXmlScanner.textOf(data, tagStart,
+					elementEnd, VEHICLE_REF_BYTES);
+			String lineRef = SiriXmlScanner.textOf(data, tagStart, elementEnd,
+					LINE_REF_BYTES);
+			String recordedAtTime = SiriXmlScanner.textOf(data, tagStart,
+					elementEnd, RECORDED_AT_TIME_BYTES);
+
+			activities.add(new LazyVehicleActivity(data, tagStart, elementEnd
+					- tagStart, reader, vehicleRef, lineRef,
+					parseTime(dateParser, recordedAtTime)));
+			pos = elementEnd;
+		}
+		return activities;
+	}
+
+	/**
+	 * Finds VehicleActivity elements using the token locations reported by
+	 * the JSON parser
+	 */
+	private static List<LazyVehicleActivity> scanJson(byte[] data,
+			ObjectMapper mapper, ObjectReader reader) throws IOException {
+		List<LazyVehicleActivity> activities = new ArrayList<LazyVehicleActivity>();
+		SiriDateDeserializer dateParser = new SiriDateDeserializer();
+
+		JsonParser jp = mapper.getFactory().createJsonParser(data);
+		try {
+			JsonToken t;
+			while ((t = jp.nextToken()) != null) {
+				if (t != JsonToken.FIELD_NAME
+						|| !VEHICLE_ACTIVITY.equals(jp.getCurrentName())) {
+					continue;
+				}
+				t = jp.nextToken();
+				if (t == JsonToken.START_ARRAY) {
+					for (t = jp.nextToken(); t != null
+							&& t != JsonToken.END_ARRAY; t = jp.nextToken()) {
+						if (t == JsonToken.START_OBJECT) {
+							activities.add(scanJsonActivity(data, jp, reader,
+									dateParser));
+						} else {
+							jp.skipChildren();
+						}
+					}
+				} else if (t == JsonToken.START_OBJECT) {
+					// Single VehicleActivity that isn't wrapped in an array
+					activities.add(scanJsonActivity(data, jp, reader,
+							dateParser));
+				}
+			}
+		} finally {
+			jp.close();
+		}
+		return activities;
+	}
+
+	/**
+	 * Scans one VehicleActivity object, starting with the parser positioned at
+	 * its START_OBJECT token and ending at its END_OBJECT token
+	 */
+	private static LazyVehicleActivity scanJsonActivity(byte[] data,
+			JsonParser jp, ObjectReader reader, SiriDateDeserializer dateParser)
+			throws IOException {
+		int start = (int) jp.getTokenLocation().getByteOffset();
+		String vehicleRef = null;
+		String lineRef = null;
+		long recordedAtTime = VehiclePositionColumns.MISSING_TIME;
+
+		int depth = 1;
+		while (depth > 0) {
+			JsonToken t = jp.nextToken();
+			if (t == null) {
+				throw new JsonParseException("Unexpected end of input in "
+						+ VEHICLE_ACTIVITY, jp.getCurrentLocation());
+			}
+			if (t == JsonToken.START_OBJECT || t == JsonToken.START_ARRAY) {
+				depth++;
+			} else if (t == JsonToken.END_OBJECT || t == JsonToken.END_ARRAY) {
+				depth--;
+			} else if (t == JsonToken.VALUE_STRING) {
+				String name = jp.getCurrentName();
+				if (vehicleRef == null && VEHICLE_REF.equals(name)) {
+					vehicleRef = jp.getText();
+				} else if (lineRef == null && LINE_REF.equals(name)) {
+					lineRef = jp.getText();
+				} else if (depth == 1 && RECORDED_AT_TIME.equals(name)) {
+					recordedAtTime = dateParser.parseMillis(
+							jp.getTextCharacters(), jp.getTextOffset(),
+							jp.getTextLength());
+				}
+			}
+		}
+		int end = (int) jp.getTokenLocation().getByteOffset() + 1;
+
+		return new LazyVehicleActivity(data, start, end - start, reader,
+				vehicleRef, lineRef, recordedAtTime);
+	}
+
+	private static long parseTime(SiriDateDeserializer dateParser,
+			String text) {
+		return text == null ? VehiclePositionColumns.MISSING_TIME : dateParser
+				.parseMillis(text);
+	}
+
+	private static void addToIndex(Map<String, List<LazyVehicleActivity>> index,
+			String key, LazyVehicleActivity lva) {
+		if (key == null) {
+			return;
+		}
+		List<LazyVehicleActivity> list = index.get(key);
+		if (list == null) {
+			list = new ArrayList<LazyVehicleActivity>(1);
+			index.put(key, list);
+		}
+		list.add(lva);
+	}
+
+	/**
+	 * Returns all VehicleActivity elements in this document, in document order
+	 *
+	 * @return all VehicleActivity elements in this document
+	 */
+	public List<LazyVehicleActivity> getVehicleActivities() {
+		return vehicleActivities;
+	}
+
+	/**
+	 * Returns the VehicleActivity elements for the given vehicle
+	 *
+	 * @param vehicleRef
+	 *            MonitoredVehicleJourney.VehicleRef value (e.g., "MTA
+	 *            NYCT_8024")
+	 * @return the VehicleActivity elements for the vehicle, or an empty list
+	 *         if the vehicle isn't in this document
+	 */
+	public List<LazyVehicleActivity> getByVehicleRef(String vehicleRef) {
+		return lookup(byVehicleRef, vehicleRef);
+	}
+
+	/**
+	 * Returns the VehicleActivity elements for the given line
+	 *
+	 * @param lineRef
+	 *            MonitoredVehicleJourney.LineRef value (e.g., "MTA NYCT_S54")
+	 * @return the VehicleActivity elements for the line, or an empty list if
+	 *         the line isn't in this document
+	 */
+	public List<LazyVehicleActivity> getByLineRef(String lineRef) {
+		return lookup(byLineRef, lineRef);
+	}
+
+	/**
+	 * Returns the VehicleRef values of all vehicles in this document
+	 *
+	 * @return the VehicleRef values of all vehicles in this document
+	 */
+	public Set<String> getVehicleRefs() {
+		return Collections.unmodifiableSet(byVehicleRef.keySet());
+	}
+
+	/**
+	 * Returns the LineRef values of all lines in this document
+	 *
+	 * @return the LineRef values of all lines in this document
+	 */
+	public Set<String> getLineRefs() {
+		return Collections.unmodifiableSet(byLineRef.keySet());
+	}
+
+	/**
+	 * Returns the number of VehicleActivity elements in this document
+	 *
+	 * @return the number of VehicleActivity elements in this document
+	 */
+	public int size() {
+		return vehicleActivities.size();
+	}
+
+	/**
+	 * Returns the size of the raw document in bytes
+	 *
+	 * @return the size of the raw document in bytes
+	 */
+	public int getByteLength() {
+		return data.length;
+	}
+
+	private static List<LazyVehicleActivity> lookup(
+			Map<String, List<LazyVehicleActivity>> index, String key) {
+		List<LazyVehicleActivity> list = index.get(key);
+		if (list == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(list);
+	}
+}
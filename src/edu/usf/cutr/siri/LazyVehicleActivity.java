@@ -0,0 +1,168 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.IOException;
+
+import uk.org.siri.siri.VehicleActivity;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * A VehicleActivity element of a LazySiriDocument. Only the byte range of the
+ * element and a few cheap index keys are known up front - the full
+ * VehicleActivity POJO is bound the first time get() is called, and then
+ * memoized.
+ *
+ */
+public class LazyVehicleActivity {
+
+	private final byte[] data;
+	private final int start;
+	private final int offset;
+	private final int length;
+	private final ObjectReader reader;
+
+	private final String vehicleRef;
+	private final String lineRef;
+	private final long recordedAtTime;
+
+	private volatile VehicleActivity vehicleActivity;
+
+	LazyVehicleActivity(byte[] data, int offset, int length,
+			ObjectReader reader, String vehicleRef, String lineRef,
+			long recordedAtTime) {
+		this(data, offset, offset, length, reader, vehicleRef, lineRef,
+				recordedAtTime);
+	}
+
+	private LazyVehicleActivity(byte[] data, int start, int offset,
+			int length, ObjectReader reader, String vehicleRef,
+			String lineRef, long recordedAtTime) {
+		this.data = data;
+		this.start = start;
+		this.offset = offset;
+		this.length = length;
+		this.reader = reader;
+		this.vehicleRef = vehicleRef;
+		this.lineRef = lineRef;
+		this.recordedAtTime = recordedAtTime;
+	}
+
+	/**
+	 * Returns the VehicleActivity POJO for this element, binding it from the
+	 * raw bytes on the first call
+	 *
+	 * @return the bound VehicleActivity
+	 * @throws IOException
+	 *             if the element could not be bound
+	 */
+	public VehicleActivity get() throws IOException {
+		VehicleActivity result = vehicleActivity;
+		if (result == null) {
+			synchronized (this) {
+				result = vehicleActivity;
+				if (result == null) {
+					result = reader.readValue(data, start, length);
+					vehicleActivity = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a copy of this element that holds only its own bytes, for
+	 * callers that keep the element after the rest of the document is
+	 * discarded. This element only references the raw document bytes, so
+	 * keeping it keeps the whole document reachable.
+	 *
+	 * @return a copy backed by an array of just this element's bytes, with
+	 *         the same offset, keys, and bound POJO (if any)
+	 */
+	LazyVehicleActivity detach() {
+		if (start == 0 && length == data.length) {
+			return this;
+		}
+		byte[] copy = new byte[length];
+		System.arraycopy(data, start, copy, 0, length);
+		LazyVehicleActivity detached = new LazyVehicleActivity(copy, 0,
+				offset, length, reader, vehicleRef, lineRef, recordedAtTime);
+		detached.vehicleActivity = vehicleActivity;
+		return detached;
+	}
+
+	/**
+	 * Returns true if the VehicleActivity POJO has already been bound
+	 *
+	 * @return true if the VehicleActivity POJO has already been bound, false
+	 *         if it hasn't
+	 */
+	public boolean isBound() {
+		return vehicleActivity != null;
+	}
+
+	/**
+	 * Returns the MonitoredVehicleJourney.VehicleRef value, read during the
+	 * scan without binding the element
+	 *
+	 * @return the VehicleRef value, or null if the element doesn't have one
+	 */
+	public String getVehicleRef() {
+		return vehicleRef;
+	}
+
+	/**
+	 * Returns the MonitoredVehicleJourney.LineRef value, read during the scan
+	 * without binding the element
+	 *
+	 * @return the LineRef value, or null if the element doesn't have one
+	 */
+	public String getLineRef() {
+		return lineRef;
+	}
+
+	/**
+	 * Returns the RecordedAtTime value, read during the scan without binding
+	 * the element
+	 *
+	 * @return the RecordedAtTime in milliseconds since the epoch, or
+	 *         VehiclePositionColumns.MISSING_TIME if the element doesn't have
+	 *         one (or it doesn't match the fixed SIRI layout)
+	 */
+	public long getRecordedAtTime() {
+		return recordedAtTime;
+	}
+
+	/**
+	 * Returns the offset of this element in the raw document bytes
+	 *
+	 * @return the offset of this element in the raw document bytes
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Returns the length of this element in the raw document bytes
+	 *
+	 * @return the length of this element in the raw document bytes
+	 */
+	public int getLength() {
+		return length;
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Encodes the fields of one protocol buffer message. Nested messages are
+ * encoded in their own buffer and then added with writeMessage(), which
+ * prefixes them with their length. Strings are encoded to UTF-8 straight
+ * into the buffer. Buffers can be reset and reused, so once they have grown
+ * to the size of the largest message, encoding more messages doesn't
+ * allocate.
+ *
+ * This class is not thread-safe.
+ *
+ */
+final class ProtobufBuffer {
+
+	private static final int WIRE_VARINT = 0;
+	private static final int WIRE_LENGTH_DELIMITED = 2;
+	private static final int WIRE_FIXED32 = 5;
+
+	private byte[] buf = new byte[256];
+	private int size = 0;
+
+	/**
+	 * Empties the buffer
+	 */
+	void reset() {
+		size = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Writes a uint32, uint64, or enum field
+	 */
+	void writeVarint(int field, long value) {
+		writeTag(field, WIRE_VARINT);
+		writeRawVarint(value);
+	}
+
+	/**
+	 * Writes a float field
+	 */
+	void writeFloat(int field, float value) {
+		writeTag(field, WIRE_FIXED32);
+		ensureCapacity(4);
+		int bits = Float.floatToIntBits(value);
+		buf[size++] = (byte) bits;
+		buf[size++] = (byte) (bits >>> 8);
+		buf[size++] = (byte) (bits >>> 16);
+		buf[size++] = (byte) (bits >>> 24);
+	}
+
+	/**
+	 * Writes a string field, encoded in UTF-8 straight into the buffer. Like
+	 * String.getBytes(), an unpaired surrogate is encoded as '?'.
+	 */
+	void writeString(int field, String value) {
+		int length = value.length();
+		int utf8Length = utf8Length(value);
+		writeTag(field, WIRE_LENGTH_DELIMITED);
+		writeRawVarint(utf8Length);
+		ensureCapacity(utf8Length);
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				buf[size++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[size++] = (byte) (0xC0 | (c >>> 6));
+				buf[size++] = (byte) (0x80 | (c & 0x3F));
+			} else if (isSurrogatePair(value, i)) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				buf[size++] = (byte) (0xF0 | (codePoint >>> 18));
+				buf[size++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3F));
+				buf[size++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+				buf[size++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else if (c >= Character.MIN_SURROGATE
+					&& c <= Character.MAX_SURROGATE) {
+				buf[size++] = '?';
+			} else {
+				buf[size++] = (byte) (0xE0 | (c >>> 12));
+				buf[size++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+				buf[size++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes that writeString() encodes the string to
+	 */
+	private static int utf8Length(String value) {
+		int length = value.length();
+		int utf8Length = length;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				continue;
+			} else if (c < 0x800) {
+				utf8Length += 1;
+			} else if (isSurrogatePair(value, i)) {
+				// 4 bytes for 2 chars
+				utf8Length += 2;
+				i++;
+			} else if (c < Character.MIN_SURROGATE
+					|| c > Character.MAX_SURROGATE) {
+				utf8Length += 2;
+			}
+		}
+		return utf8Length;
+	}
+
+	private static boolean isSurrogatePair(String value, int i) {
+		return Character.isHighSurrogate(value.charAt(i))
+				&& i + 1 < value.length()
+				&& Character.isLowSurrogate(value.charAt(i + 1));
+	}
+
+	/**
+	 * Writes an embedded message field, with the contents of the given buffer
+	 */
+	void writeMessage(int field, ProtobufBuffer message) {
+		writeTag(field, WIRE_LENGTH_DELIMITED);
+		writeRawVarint(message.size);
+		ensureCapacity(message.size);
+		System.arraycopy(message.buf, 0, buf, size, message.size);
+		size += message.size;
+	}
+
+	/**
+	 * Writes the encoded bytes of the buffer
+	 */
+	void writeTo(OutputStream out) throws IOException {
+		out.write(buf, 0, size);
+	}
+
+	/**
+	 * Returns a copy of the encoded bytes of the buffer
+	 */
+	byte[] toByteArray() {
+		return Arrays.copyOf(buf, size);
+	}
+
+	private void writeTag(int field, int wireType) {
+		writeRawVarint((field << 3) | wireType);
+	}
+
+	private void writeRawVarint(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			buf[size++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[size++] = (byte) value;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (size + extra > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+		}
+	}
+}
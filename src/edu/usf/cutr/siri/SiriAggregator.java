@@ -0,0 +1,513 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.org.siri.siri.MonitoredStopVisit;
+import uk.org.siri.siri.VehicleActivity;
+
+/**
+ * Keeps per-line and per-stop statistics of a fleet up to date as vehicle
+ * updates (VehicleActivity or MonitoredStopVisit elements) arrive, so the
+ * statistics never need to be recomputed from a full Siri object.
+ *
+ * The last update of each vehicle is remembered. A new update for a vehicle
+ * removes the vehicle's previous contribution from the statistics and adds
+ * the new one, so each update costs O(1), and updates that are older than
+ * (or as old as) the vehicle's last update are ignored.
+ *
+ * Per line (LineRef), the number of vehicles, the average DistanceFromCall,
+ * and the share of ProgressRate values other than "normalProgress" are kept.
+ * Per stop (StopPointRef), the observed headways are kept - the times between
+ * consecutive vehicle arrivals, where a vehicle arrives at its monitored stop
+ * when its DistanceFromCall first drops to the arrival distance (see
+ * setArrivalDistance()).
+ *
+ * This class is thread-safe. The state is split into lock stripes by id, so
+ * updates for different vehicles, lines and stops rarely contend.
+ *
+ */
+public class SiriAggregator {
+
+	private static final String NORMAL_PROGRESS = "normalProgress";
+
+	private static final int STRIPES = 16;
+
+	/**
+	 * Default distance (in meters) from its monitored stop at which a vehicle
+	 * is considered to have arrived at the stop
+	 */
+	public static final double DEFAULT_ARRIVAL_DISTANCE = 50;
+
+	/**
+	 * Statistics of one line. Instances returned by SiriAggregator are
+	 * snapshots that don't change afterwards.
+	 */
+	public static final class LineStats {
+		private int vehicleCount;
+		private int distanceCount;
+		private double distanceSum;
+		private int progressRateCount;
+		private int abnormalProgressCount;
+
+		/**
+		 * @return the number of vehicles whose last update was on this line
+		 */
+		public int getVehicleCount() {
+			return vehicleCount;
+		}
+
+		/**
+		 * @return the average DistanceFromCall of the vehicles on this line,
+		 *         or NaN if none of them has one
+		 */
+		public double getAverageDistanceFromCall() {
+			return distanceCount == 0 ? Double.NaN : distanceSum
+					/ distanceCount;
+		}
+
+		/**
+		 * @return the share (0 to 1) of the vehicles with a ProgressRate whose
+		 *         ProgressRate isn't "normalProgress", or NaN if none has a
+		 *         ProgressRate
+		 */
+		public double getAbnormalProgressShare() {
+			return progressRateCount == 0 ? Double.NaN
+					: (double) abnormalProgressCount / progressRateCount;
+		}
+
+		private void add(VehicleState v, int sign) {
+			vehicleCount += sign;
+			if (!Double.isNaN(v.distanceFromCall)) {
+				distanceCount += sign;
+				distanceSum += sign * v.distanceFromCall;
+			}
+			if (v.progressRate != null) {
+				progressRateCount += sign;
+				if (!NORMAL_PROGRESS.equals(v.progressRate)) {
+					abnormalProgressCount += sign;
+				}
+			}
+		}
+
+		private LineStats copy() {
+			LineStats copy = new LineStats();
+			copy.vehicleCount = vehicleCount;
+			copy.distanceCount = distanceCount;
+			copy.distanceSum = distanceSum;
+			copy.progressRateCount = progressRateCount;
+			copy.abnormalProgressCount = abnormalProgressCount;
+			return copy;
+		}
+	}
+
+	/**
+	 * Observed headways at one stop. Instances returned by SiriAggregator are
+	 * snapshots that don't change afterwards.
+	 */
+	public static final class StopStats {
+		private long lastArrivalTime = VehiclePositionColumns.MISSING_TIME;
+		private int headwayCount;
+		private long headwaySum;
+		private long minHeadway = Long.MAX_VALUE;
+		private long maxHeadway = Long.MIN_VALUE;
+
+		/**
+		 * @return the time of the last arrival, in milliseconds since the
+		 *         epoch, or VehiclePositionColumns.MISSING_TIME
+		 */
+		public long getLastArrivalTime() {
+			return lastArrivalTime;
+		}
+
+		/**
+		 * @return the number of observed headways
+		 */
+		public int getHeadwayCount() {
+			return headwayCount;
+		}
+
+		/**
+		 * @return the average headway in milliseconds, or NaN if no headway
+		 *         was observed
+		 */
+		public double getAverageHeadway() {
+			return headwayCount == 0 ? Double.NaN : (double) headwaySum
+					/ headwayCount;
+		}
+
+		/**
+		 * @return the shortest headway in milliseconds, or -1 if no headway
+		 *         was observed
+		 */
+		public long getMinHeadway() {
+			return headwayCount == 0 ? -1 : minHeadway;
+		}
+
+		/**
+		 * @return the longest headway in milliseconds, or -1 if no headway
+		 *         was observed
+		 */
+		public long getMaxHeadway() {
+			return headwayCount == 0 ? -1 : maxHeadway;
+		}
+
+		private void arrival(long time) {
+			if (lastArrivalTime != VehiclePositionColumns.MISSING_TIME) {
+				long headway = time - lastArrivalTime;
+				if (headway < 0) {
+					// Arrival reported out of order - keep the later one
+					return;
+				}
+				headwayCount++;
+				headwaySum += headway;
+				minHeadway = Math.min(minHeadway, headway);
+				maxHeadway = Math.max(maxHeadway, headway);
+			}
+			lastArrivalTime = time;
+		}
+
+		private StopStats copy() {
+			StopStats copy = new StopStats();
+			copy.lastArrivalTime = lastArrivalTime;
+			copy.headwayCount = headwayCount;
+			copy.headwaySum = headwaySum;
+			copy.minHeadway = minHeadway;
+			copy.maxHeadway = maxHeadway;
+			return copy;
+		}
+	}
+
+	/**
+	 * The last update of a vehicle
+	 */
+	private static final class VehicleState {
+		int lineId = -1;
+		int stopId = -1;
+		double distanceFromCall = Double.NaN;
+		String progressRate;
+		long recordedAtTime = VehiclePositionColumns.MISSING_TIME;
+
+		// Stop that the vehicle's arrival was already counted at, or -1
+		int arrivedStopId = -1;
+	}
+
+	private final IdDictionary lineIds = new IdDictionary();
+	private final IdDictionary vehicleIds = new IdDictionary();
+	private final IdDictionary stopIds = new IdDictionary();
+
+	// Each map is also the lock of its stripe. Vehicle stripes are always
+	// locked before line or stop stripes.
+	private final List<IntObjectHashMap<LineStats>> lines = stripes();
+	private final List<IntObjectHashMap<VehicleState>> vehicles = stripes();
+	private final List<IntObjectHashMap<StopStats>> stops = stripes();
+
+	private volatile double arrivalDistance = DEFAULT_ARRIVAL_DISTANCE;
+
+	private static <V> List<IntObjectHashMap<V>> stripes() {
+		List<IntObjectHashMap<V>> stripes = new ArrayList<IntObjectHashMap<V>>(
+				STRIPES);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes.add(new IntObjectHashMap<V>());
+		}
+		return stripes;
+	}
+
+	private static <V> IntObjectHashMap<V> stripe(
+			List<IntObjectHashMap<V>> stripes, int id) {
+		return stripes.get(id & (STRIPES - 1));
+	}
+
+	/**
+	 * Sets the distance from its monitored stop at which a vehicle is
+	 * considered to have arrived at the stop
+	 *
+	 * @param meters
+	 *            arrival distance in meters (default
+	 *            DEFAULT_ARRIVAL_DISTANCE)
+	 */
+	public void setArrivalDistance(double meters) {
+		this.arrivalDistance = meters;
+	}
+
+	/**
+	 * Updates the statistics with a VehicleActivity
+	 *
+	 * @param activity
+	 *            the latest VehicleActivity of a vehicle
+	 */
+	public void update(VehicleActivity activity) {
+		if (activity.getMonitoredVehicleJourney() == null
+				|| activity.getMonitoredVehicleJourney().getVehicleRef() == null) {
+			return;
+		}
+		String stopPointRef = null;
+		Object distanceFromCall = null;
+		if (activity.getMonitoredVehicleJourney().getMonitoredCall() != null) {
+			if (activity.getMonitoredVehicleJourney().getMonitoredCall()
+					.getStopPointRef() != null) {
+				stopPointRef = activity.getMonitoredVehicleJourney()
+						.getMonitoredCall().getStopPointRef().getValue();
+			}
+			if (activity.getMonitoredVehicleJourney().getMonitoredCall()
+					.getExtensions() != null
+					&& activity.getMonitoredVehicleJourney()
+							.getMonitoredCall().getExtensions()
+							.getDistances() != null) {
+				distanceFromCall = activity.getMonitoredVehicleJourney()
+						.getMonitoredCall().getExtensions().getDistances()
+						.getDistanceFromCall();
+			}
+		}
+		update(activity.getMonitoredVehicleJourney().getVehicleRef()
+				.getValue(),
+				activity.getMonitoredVehicleJourney().getLineRef() == null ? null
+						: activity.getMonitoredVehicleJourney().getLineRef()
+								.getValue(), stopPointRef,
+				SiriNumbers.toDouble(distanceFromCall),
+				toString(activity.getMonitoredVehicleJourney()
+						.getProgressRate()),
+				SiriNumbers.toMillis(activity.getRecordedAtTime()));
+	}
+
+	/**
+	 * Updates the statistics with a MonitoredStopVisit. The stop is the
+	 * StopPointRef of the MonitoredCall, or the MonitoringRef of the visit if
+	 * there is no MonitoredCall.
+	 *
+	 * @param visit
+	 *            the latest MonitoredStopVisit of a vehicle
+	 */
+	public void update(MonitoredStopVisit visit) {
+		if (visit.getMonitoredVehicleJourney() == null
+				|| visit.getMonitoredVehicleJourney().getVehicleRef() == null) {
+			return;
+		}
+		String stopPointRef = visit.getMonitoringRef() == null ? null : visit
+				.getMonitoringRef().getValue();
+		Object distanceFromCall = null;
+		if (visit.getMonitoredVehicleJourney().getMonitoredCall() != null) {
+			if (visit.getMonitoredVehicleJourney().getMonitoredCall()
+					.getStopPointRef() != null) {
+				stopPointRef = visit.getMonitoredVehicleJourney()
+						.getMonitoredCall().getStopPointRef().getValue();
+			}
+			if (visit.getMonitoredVehicleJourney().getMonitoredCall()
+					.getExtensions() != null
+					&& visit.getMonitoredVehicleJourney().getMonitoredCall()
+							.getExtensions().getDistances() != null) {
+				distanceFromCall = visit.getMonitoredVehicleJourney()
+						.getMonitoredCall().getExtensions().getDistances()
+						.getDistanceFromCall();
+			}
+		}
+		update(visit.getMonitoredVehicleJourney().getVehicleRef().getValue(),
+				visit.getMonitoredVehicleJourney().getLineRef() == null ? null
+						: visit.getMonitoredVehicleJourney().getLineRef()
+								.getValue(), stopPointRef,
+				SiriNumbers.toDouble(distanceFromCall),
+				toString(visit.getMonitoredVehicleJourney().getProgressRate()),
+				SiriNumbers.toMillis(visit.getRecordedAtTime()));
+	}
+
+	/**
+	 * Updates the statistics with the latest values of a vehicle, for callers
+	 * that read these values without binding the SIRI POJOs
+	 *
+	 * @param vehicleRef
+	 *            VehicleRef of the vehicle
+	 * @param lineRef
+	 *            LineRef of the vehicle, or null
+	 * @param stopPointRef
+	 *            StopPointRef of the monitored stop, or null
+	 * @param distanceFromCall
+	 *            DistanceFromCall of the monitored stop in meters, or NaN
+	 * @param progressRate
+	 *            ProgressRate of the vehicle (e.g., "normalProgress"), or null
+	 * @param recordedAtTime
+	 *            RecordedAtTime of the update in milliseconds since the epoch,
+	 *            or VehiclePositionColumns.MISSING_TIME
+	 */
+	public void update(String vehicleRef, String lineRef, String stopPointRef,
+			double distanceFromCall, String progressRate, long recordedAtTime) {
+		if (vehicleRef == null) {
+			return;
+		}
+		int vehicleId = vehicleIds.id(vehicleRef);
+		int lineId = lineRef == null ? -1 : lineIds.id(lineRef);
+		int stopId = stopPointRef == null ? -1 : stopIds.id(stopPointRef);
+
+		IntObjectHashMap<VehicleState> vehicleStripe = stripe(vehicles,
+				vehicleId);
+		synchronized (vehicleStripe) {
+			VehicleState old = vehicleStripe.get(vehicleId);
+			if (old != null
+					&& recordedAtTime != VehiclePositionColumns.MISSING_TIME
+					&& old.recordedAtTime != VehiclePositionColumns.MISSING_TIME
+					&& recordedAtTime <= old.recordedAtTime) {
+				// Stale or repeated update
+				return;
+			}
+
+			VehicleState state = new VehicleState();
+			state.lineId = lineId;
+			state.stopId = stopId;
+			state.distanceFromCall = distanceFromCall;
+			state.progressRate = progressRate;
+			state.recordedAtTime = recordedAtTime;
+			if (old != null && old.arrivedStopId == stopId) {
+				state.arrivedStopId = stopId;
+			}
+
+			if (old != null) {
+				addToLine(old, -1);
+			}
+			addToLine(state, 1);
+			vehicleStripe.put(vehicleId, state);
+
+			if (stopId >= 0 && state.arrivedStopId != stopId
+					&& distanceFromCall <= arrivalDistance
+					&& recordedAtTime != VehiclePositionColumns.MISSING_TIME) {
+				state.arrivedStopId = stopId;
+				IntObjectHashMap<StopStats> stopStripe = stripe(stops, stopId);
+				synchronized (stopStripe) {
+					StopStats stats = stopStripe.get(stopId);
+					if (stats == null) {
+						stats = new StopStats();
+						stopStripe.put(stopId, stats);
+					}
+					stats.arrival(recordedAtTime);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes a vehicle (e.g., one that is no longer in the feed) from the
+	 * statistics
+	 *
+	 * @param vehicleRef
+	 *            VehicleRef of the vehicle
+	 */
+	public void remove(String vehicleRef) {
+		int vehicleId = vehicleIds.find(vehicleRef);
+		if (vehicleId < 0) {
+			return;
+		}
+		IntObjectHashMap<VehicleState> vehicleStripe = stripe(vehicles,
+				vehicleId);
+		synchronized (vehicleStripe) {
+			VehicleState old = vehicleStripe.remove(vehicleId);
+			if (old != null) {
+				addToLine(old, -1);
+			}
+		}
+	}
+
+	/**
+	 * Adds (sign 1) or removes (sign -1) the contribution of a vehicle to the
+	 * statistics of its line
+	 */
+	private void addToLine(VehicleState v, int sign) {
+		if (v.lineId < 0) {
+			return;
+		}
+		IntObjectHashMap<LineStats> lineStripe = stripe(lines, v.lineId);
+		synchronized (lineStripe) {
+			LineStats stats = lineStripe.get(v.lineId);
+			if (stats == null) {
+				stats = new LineStats();
+				lineStripe.put(v.lineId, stats);
+			}
+			stats.add(v, sign);
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the statistics of a line
+	 *
+	 * @param lineRef
+	 *            LineRef of the line
+	 * @return the statistics of the line, or null if no vehicle was seen on
+	 *         the line
+	 */
+	public LineStats getLineStats(String lineRef) {
+		int lineId = lineIds.find(lineRef);
+		if (lineId < 0) {
+			return null;
+		}
+		IntObjectHashMap<LineStats> lineStripe = stripe(lines, lineId);
+		synchronized (lineStripe) {
+			LineStats stats = lineStripe.get(lineId);
+			return stats == null ? null : stats.copy();
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the observed headways at a stop
+	 *
+	 * @param stopPointRef
+	 *            StopPointRef of the stop
+	 * @return the headways at the stop, or null if no arrival was seen at the
+	 *         stop
+	 */
+	public StopStats getStopStats(String stopPointRef) {
+		int stopId = stopIds.find(stopPointRef);
+		if (stopId < 0) {
+			return null;
+		}
+		IntObjectHashMap<StopStats> stopStripe = stripe(stops, stopId);
+		synchronized (stopStripe) {
+			StopStats stats = stopStripe.get(stopId);
+			return stats == null ? null : stats.copy();
+		}
+	}
+
+	/**
+	 * Returns the LineRef of every line that has been seen
+	 *
+	 * @return LineRef values, in the order they were first seen
+	 */
+	public List<String> getLineRefs() {
+		return names(lineIds);
+	}
+
+	/**
+	 * Returns the StopPointRef of every stop that has been seen
+	 *
+	 * @return StopPointRef values, in the order they were first seen
+	 */
+	public List<String> getStopPointRefs() {
+		return names(stopIds);
+	}
+
+	private static List<String> names(IdDictionary dictionary) {
+		int size = dictionary.size();
+		List<String> names = new ArrayList<String>(size);
+		for (int id = 0; id < size; id++) {
+			names.add(dictionary.name(id));
+		}
+		return names;
+	}
+
+	private static String toString(Object value) {
+		// Enums such as ProgressRate use their SIRI name in toString()
+		return value == null ? null : value.toString();
+	}
+}
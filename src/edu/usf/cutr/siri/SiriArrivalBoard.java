@@ -0,0 +1,561 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FilenameUtils;
+
+import uk.org.siri.siri.MonitoredStopVisit;
+import uk.org.siri.siri.Siri;
+import uk.org.siri.siri.StopMonitoringDelivery;
+import uk.org.siri.siri.VehicleActivity;
+import uk.org.siri.siri.VehicleMonitoringDelivery;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * An index of the upcoming arrivals at each stop (StopPointRef), for countdown
+ * displays. It is built from the MonitoredCall of the MonitoredStopVisit
+ * elements of StopMonitoring responses and of the VehicleActivity elements of
+ * VehicleMonitoring responses, and updated in place as responses are parsed.
+ *
+ * Each stop has a small list of arrivals, one per vehicle, ordered by
+ * ExpectedArrivalTime - arrivals without an ExpectedArrivalTime come last,
+ * ordered by DistanceFromCall. Only the first getMaxArrivals() arrivals of a
+ * stop are kept.
+ *
+ * An update copies the small list of its stop, so reading the arrivals of a
+ * stop never locks or copies anything. When the MonitoredCall of a vehicle in
+ * a VehicleMonitoring response moves on to another stop, the vehicle is
+ * removed from the previous stop. An update with an older RecordedAtTime than
+ * the one the board already has for the vehicle (e.g., a late response from
+ * a replay or a merge of several feeds) is ignored. Arrivals that are no
+ * longer updated (e.g., StopMonitoring visits of vehicles that have passed
+ * the stop) can be removed with expire().
+ *
+ * This class is thread-safe.
+ *
+ */
+public class SiriArrivalBoard implements SiriDocumentConsumer {
+
+	/**
+	 * An upcoming arrival of a vehicle at a stop
+	 */
+	public static final class Arrival {
+		private final String vehicleRef;
+		private final String lineRef;
+		private final long expectedArrivalTime;
+		private final double distanceFromCall;
+		private final long recordedAtTime;
+		// Value of expiryRound when the arrival was set
+		private final int expiryRound;
+
+		private Arrival(String vehicleRef, String lineRef,
+				long expectedArrivalTime, double distanceFromCall,
+				long recordedAtTime, int expiryRound) {
+			this.vehicleRef = vehicleRef;
+			this.lineRef = lineRef;
+			this.expectedArrivalTime = expectedArrivalTime;
+			this.distanceFromCall = distanceFromCall;
+			this.recordedAtTime = recordedAtTime;
+			this.expiryRound = expiryRound;
+		}
+
+		/**
+		 * @return VehicleRef of the arriving vehicle
+		 */
+		public String getVehicleRef() {
+			return vehicleRef;
+		}
+
+		/**
+		 * @return LineRef of the arriving vehicle, or null
+		 */
+		public String getLineRef() {
+			return lineRef;
+		}
+
+		/**
+		 * @return ExpectedArrivalTime in milliseconds since the epoch, or
+		 *         VehiclePositionColumns.MISSING_TIME
+		 */
+		public long getExpectedArrivalTime() {
+			return expectedArrivalTime;
+		}
+
+		/**
+		 * @return DistanceFromCall in meters, or NaN
+		 */
+		public double getDistanceFromCall() {
+			return distanceFromCall;
+		}
+
+		/**
+		 * @return RecordedAtTime of the update that this arrival is from, in
+		 *         milliseconds since the epoch, or
+		 *         VehiclePositionColumns.MISSING_TIME
+		 */
+		public long getRecordedAtTime() {
+			return recordedAtTime;
+		}
+	}
+
+	private static final Comparator<Arrival> ARRIVAL_ORDER = new Comparator<Arrival>() {
+		public int compare(Arrival a, Arrival b) {
+			boolean aTimed = a.expectedArrivalTime != VehiclePositionColumns.MISSING_TIME;
+			boolean bTimed = b.expectedArrivalTime != VehiclePositionColumns.MISSING_TIME;
+			if (aTimed != bTimed) {
+				return aTimed ? -1 : 1;
+			}
+			if (a.expectedArrivalTime != b.expectedArrivalTime) {
+				return a.expectedArrivalTime < b.expectedArrivalTime ? -1 : 1;
+			}
+			// Double.compare() orders NaN last
+			int result = Double.compare(a.distanceFromCall, b.distanceFromCall);
+			if (result != 0) {
+				return result;
+			}
+			return a.vehicleRef.compareTo(b.vehicleRef);
+		}
+	};
+
+	private static final Arrival[] NO_ARRIVALS = new Arrival[0];
+
+	/**
+	 * The arrivals of one stop. Updates are synchronized on the stop, and
+	 * replace the (immutable) array.
+	 */
+	private static final class Stop {
+		volatile Arrival[] arrivals = NO_ARRIVALS;
+	}
+
+	/**
+	 * The stop of the MonitoredCall of a vehicle in VehicleMonitoring
+	 * responses, and the RecordedAtTime of that response. Updates from
+	 * VehicleActivity elements are synchronized on the vehicle.
+	 */
+	private static final class Vehicle {
+		String stopPointRef;
+		long recordedAtTime = VehiclePositionColumns.MISSING_TIME;
+	}
+
+	private final ConcurrentHashMap<String, Stop> stops = new ConcurrentHashMap<String, Stop>();
+
+	// Vehicles of VehicleMonitoring responses, by VehicleRef
+	private final ConcurrentHashMap<String, Vehicle> vehicles = new ConcurrentHashMap<String, Vehicle>();
+
+	// Number of calls to expire(), which ages the arrivals without a
+	// RecordedAtTime
+	private final AtomicInteger expiryRound = new AtomicInteger();
+
+	private final int maxArrivals;
+
+	/**
+	 * Creates a board that keeps up to 8 arrivals per stop
+	 */
+	public SiriArrivalBoard() {
+		this(8);
+	}
+
+	/**
+	 * Creates a board
+	 *
+	 * @param maxArrivals
+	 *            number of arrivals kept per stop
+	 */
+	public SiriArrivalBoard(int maxArrivals) {
+		this.maxArrivals = maxArrivals;
+	}
+
+	/**
+	 * @return the number of arrivals kept per stop
+	 */
+	public int getMaxArrivals() {
+		return maxArrivals;
+	}
+
+	/**
+	 * Returns the upcoming arrivals at a stop
+	 *
+	 * @param stopPointRef
+	 *            StopPointRef of the stop
+	 * @return the arrivals, soonest first, or an empty list if there are none
+	 */
+	public List<Arrival> getArrivals(String stopPointRef) {
+		Stop stop = stops.get(stopPointRef);
+		if (stop == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(Arrays.asList(stop.arrivals));
+	}
+
+	/**
+	 * @return StopPointRef of every stop that has (or had) arrivals
+	 */
+	public Set<String> getStopPointRefs() {
+		return Collections.unmodifiableSet(stops.keySet());
+	}
+
+	/**
+	 * Updates the board with every VehicleActivity and MonitoredStopVisit in
+	 * a parsed response
+	 */
+	public void consume(String source, Siri siri) {
+		update(siri);
+	}
+
+	/**
+	 * Updates the board with every VehicleActivity and MonitoredStopVisit in
+	 * a parsed response
+	 *
+	 * @param siri
+	 *            a parsed VehicleMonitoring or StopMonitoring response
+	 */
+	public void update(Siri siri) {
+		if (siri.getServiceDelivery() == null) {
+			return;
+		}
+		List<VehicleMonitoringDelivery> listVMD = siri.getServiceDelivery()
+				.getVehicleMonitoringDelivery();
+		if (listVMD != null) {
+			for (VehicleMonitoringDelivery vmd : listVMD) {
+				if (vmd.getVehicleActivity() != null) {
+					for (VehicleActivity va : vmd.getVehicleActivity()) {
+						update(va);
+					}
+				}
+			}
+		}
+		List<StopMonitoringDelivery> listSMD = siri.getServiceDelivery()
+				.getStopMonitoringDelivery();
+		if (listSMD != null) {
+			for (StopMonitoringDelivery smd : listSMD) {
+				if (smd.getMonitoredStopVisit() != null) {
+					for (MonitoredStopVisit msv : smd.getMonitoredStopVisit()) {
+						update(msv);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Updates the board with the MonitoredCall of a VehicleActivity, and
+	 * removes the vehicle from its previous stop if its MonitoredCall has
+	 * moved on. The update is ignored if its RecordedAtTime is older than the
+	 * one of the last VehicleActivity of the vehicle.
+	 *
+	 * @param activity
+	 *            a parsed VehicleActivity
+	 */
+	public void update(VehicleActivity activity) {
+		if (activity.getMonitoredVehicleJourney() == null
+				|| activity.getMonitoredVehicleJourney().getVehicleRef() == null
+				|| activity.getMonitoredVehicleJourney().getMonitoredCall() == null
+				|| activity.getMonitoredVehicleJourney().getMonitoredCall()
+						.getStopPointRef() == null) {
+			return;
+		}
+		String vehicleRef = activity.getMonitoredVehicleJourney()
+				.getVehicleRef().getValue();
+		String stopPointRef = activity.getMonitoredVehicleJourney()
+				.getMonitoredCall().getStopPointRef().getValue();
+
+		Object distanceFromCall = null;
+		if (activity.getMonitoredVehicleJourney().getMonitoredCall()
+				.getExtensions() != null
+				&& activity.getMonitoredVehicleJourney().getMonitoredCall()
+						.getExtensions().getDistances() != null) {
+			distanceFromCall = activity.getMonitoredVehicleJourney()
+					.getMonitoredCall().getExtensions().getDistances()
+					.getDistanceFromCall();
+		}
+		long recordedAtTime = SiriNumbers.toMillis(activity
+				.getRecordedAtTime());
+
+		Vehicle vehicle = vehicles.get(vehicleRef);
+		if (vehicle == null) {
+			Vehicle newVehicle = new Vehicle();
+			vehicle = vehicles.putIfAbsent(vehicleRef, newVehicle);
+			if (vehicle == null) {
+				vehicle = newVehicle;
+			}
+		}
+		synchronized (vehicle) {
+			// Checked before the stop changes, so a late response can't move
+			// the vehicle back to a stop it has passed
+			if (recordedAtTime < vehicle.recordedAtTime) {
+				return;
+			}
+			update(stopPointRef, vehicleRef, activity
+					.getMonitoredVehicleJourney().getLineRef() == null ? null
+					: activity.getMonitoredVehicleJourney().getLineRef()
+							.getValue(), SiriNumbers.toMillis(activity
+					.getMonitoredVehicleJourney().getMonitoredCall()
+					.getExpectedArrivalTime()), SiriNumbers
+					.toDouble(distanceFromCall), recordedAtTime);
+			if (vehicle.stopPointRef != null
+					&& !vehicle.stopPointRef.equals(stopPointRef)) {
+				remove(vehicle.stopPointRef, vehicleRef);
+			}
+			vehicle.stopPointRef = stopPointRef;
+			vehicle.recordedAtTime = recordedAtTime;
+		}
+	}
+
+	/**
+	 * Updates the board with a MonitoredStopVisit. The stop is the
+	 * StopPointRef of the MonitoredCall, or the MonitoringRef of the visit if
+	 * there is no MonitoredCall.
+	 *
+	 * @param visit
+	 *            a parsed MonitoredStopVisit
+	 */
+	public void update(MonitoredStopVisit visit) {
+		if (visit.getMonitoredVehicleJourney() == null
+				|| visit.getMonitoredVehicleJourney().getVehicleRef() == null) {
+			return;
+		}
+		String stopPointRef = visit.getMonitoringRef() == null ? null : visit
+				.getMonitoringRef().getValue();
+		Object expectedArrivalTime = null;
+		Object distanceFromCall = null;
+		if (visit.getMonitoredVehicleJourney().getMonitoredCall() != null) {
+			if (visit.getMonitoredVehicleJourney().getMonitoredCall()
+					.getStopPointRef() != null) {
+				stopPointRef = visit.getMonitoredVehicleJourney()
+						.getMonitoredCall().getStopPointRef().getValue();
+			}
+			expectedArrivalTime = visit.getMonitoredVehicleJourney()
+					.getMonitoredCall().getExpectedArrivalTime();
+			if (visit.getMonitoredVehicleJourney().getMonitoredCall()
+					.getExtensions() != null
+					&& visit.getMonitoredVehicleJourney().getMonitoredCall()
+							.getExtensions().getDistances() != null) {
+				distanceFromCall = visit.getMonitoredVehicleJourney()
+						.getMonitoredCall().getExtensions().getDistances()
+						.getDistanceFromCall();
+			}
+		}
+		if (stopPointRef == null) {
+			return;
+		}
+		update(stopPointRef, visit.getMonitoredVehicleJourney()
+				.getVehicleRef().getValue(), visit.getMonitoredVehicleJourney()
+				.getLineRef() == null ? null : visit
+				.getMonitoredVehicleJourney().getLineRef().getValue(),
+				SiriNumbers.toMillis(expectedArrivalTime),
+				SiriNumbers.toDouble(distanceFromCall),
+				SiriNumbers.toMillis(visit.getRecordedAtTime()));
+	}
+
+	/**
+	 * Sets the arrival of a vehicle at a stop, replacing its previous arrival
+	 * at that stop. The update is ignored if the previous arrival has a newer
+	 * RecordedAtTime (a missing RecordedAtTime is the oldest possible value).
+	 *
+	 * @param stopPointRef
+	 *            StopPointRef of the stop
+	 * @param vehicleRef
+	 *            VehicleRef of the vehicle
+	 * @param lineRef
+	 *            LineRef of the vehicle, or null
+	 * @param expectedArrivalTime
+	 *            ExpectedArrivalTime in milliseconds since the epoch, or
+	 *            VehiclePositionColumns.MISSING_TIME
+	 * @param distanceFromCall
+	 *            DistanceFromCall in meters, or NaN
+	 * @param recordedAtTime
+	 *            RecordedAtTime of the update in milliseconds since the epoch,
+	 *            or VehiclePositionColumns.MISSING_TIME
+	 */
+	public void update(String stopPointRef, String vehicleRef, String lineRef,
+			long expectedArrivalTime, double distanceFromCall,
+			long recordedAtTime) {
+		Arrival arrival = new Arrival(vehicleRef, lineRef,
+				expectedArrivalTime, distanceFromCall, recordedAtTime,
+				expiryRound.get());
+		Stop stop = stops.get(stopPointRef);
+		if (stop == null) {
+			Stop newStop = new Stop();
+			stop = stops.putIfAbsent(stopPointRef, newStop);
+			if (stop == null) {
+				stop = newStop;
+			}
+		}
+		synchronized (stop) {
+			Arrival[] old = stop.arrivals;
+			for (Arrival previous : old) {
+				if (previous.vehicleRef.equals(vehicleRef)
+						&& recordedAtTime < previous.recordedAtTime) {
+					return;
+				}
+			}
+			Arrival[] arrivals = new Arrival[Math.min(old.length + 1,
+					maxArrivals)];
+			int n = 0;
+			boolean inserted = false;
+			for (int i = 0; i < old.length && n < arrivals.length; i++) {
+				if (old[i].vehicleRef.equals(vehicleRef)) {
+					continue;
+				}
+				if (!inserted && ARRIVAL_ORDER.compare(arrival, old[i]) < 0) {
+					arrivals[n++] = arrival;
+					inserted = true;
+					if (n == arrivals.length) {
+						break;
+					}
+				}
+				arrivals[n++] = old[i];
+			}
+			if (!inserted && n < arrivals.length) {
+				arrivals[n++] = arrival;
+			}
+			stop.arrivals = n == arrivals.length ? arrivals : Arrays.copyOf(
+					arrivals, n);
+		}
+	}
+
+	/**
+	 * Removes the arrival of a vehicle at a stop
+	 *
+	 * @param stopPointRef
+	 *            StopPointRef of the stop
+	 * @param vehicleRef
+	 *            VehicleRef of the vehicle
+	 */
+	public void remove(String stopPointRef, String vehicleRef) {
+		Stop stop = stops.get(stopPointRef);
+		if (stop == null) {
+			return;
+		}
+		synchronized (stop) {
+			Arrival[] old = stop.arrivals;
+			for (int i = 0; i < old.length; i++) {
+				if (old[i].vehicleRef.equals(vehicleRef)) {
+					Arrival[] arrivals = new Arrival[old.length - 1];
+					System.arraycopy(old, 0, arrivals, 0, i);
+					System.arraycopy(old, i + 1, arrivals, i, arrivals.length
+							- i);
+					stop.arrivals = arrivals;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the arrivals whose RecordedAtTime is before the given time.
+	 * Arrivals without a RecordedAtTime can't be aged that way, so they are
+	 * removed if they haven't been updated since the previous call to
+	 * expire().
+	 *
+	 * @param time
+	 *            time in milliseconds since the epoch
+	 */
+	public void expire(long time) {
+		// Arrivals set before the previous call have an older round
+		int oldestRound = expiryRound.getAndIncrement();
+		for (Stop stop : stops.values()) {
+			synchronized (stop) {
+				Arrival[] old = stop.arrivals;
+				Arrival[] arrivals = new Arrival[old.length];
+				int n = 0;
+				for (Arrival arrival : old) {
+					if (arrival.recordedAtTime == VehiclePositionColumns.MISSING_TIME ? arrival.expiryRound >= oldestRound
+							: arrival.recordedAtTime >= time) {
+						arrivals[n++] = arrival;
+					}
+				}
+				if (n < old.length) {
+					stop.arrivals = Arrays.copyOf(arrivals, n);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builds the board from the given SIRI files, and prints the arrivals of
+	 * the first stops along with the average lookup time
+	 *
+	 * @param args
+	 *            paths to SIRI VehicleMonitoring or StopMonitoring XML or JSON
+	 *            files
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out
+					.println("Proper Usage is: java SiriArrivalBoard path-to-siri-file ...");
+			System.exit(0);
+		}
+
+		SiriArrivalBoard board = new SiriArrivalBoard();
+		try {
+			for (String arg : args) {
+				ObjectMapper mapper = FilenameUtils.getExtension(arg)
+						.equalsIgnoreCase("xml") ? SiriUtils.createXmlMapper()
+						: SiriUtils.createObjectMapper();
+				board.update(mapper.readValue(new File(arg), Siri.class));
+			}
+		} catch (IOException e) {
+			System.err.println("Error parsing input file: " + e);
+			e.printStackTrace();
+			return;
+		}
+
+		String[] stopPointRefs = board.getStopPointRefs().toArray(
+				new String[0]);
+		for (int i = 0; i < Math.min(5, stopPointRefs.length); i++) {
+			System.out.println("Arrivals at " + stopPointRefs[i] + ":");
+			for (Arrival arrival : board.getArrivals(stopPointRefs[i])) {
+				System.out.println("  "
+						+ arrival.getLineRef()
+						+ " "
+						+ arrival.getVehicleRef()
+						+ " expected "
+						+ (arrival.getExpectedArrivalTime() == VehiclePositionColumns.MISSING_TIME ? "-"
+								: new Date(arrival.getExpectedArrivalTime()))
+						+ ", " + arrival.getDistanceFromCall() + " m");
+			}
+		}
+
+		if (stopPointRefs.length > 0) {
+			int lookups = 0;
+			long startTime = System.nanoTime();
+			for (int round = 0; round < 100; round++) {
+				for (String stopPointRef : stopPointRefs) {
+					lookups += board.getArrivals(stopPointRef).size() >= 0 ? 1
+							: 0;
+				}
+			}
+			long lookupTime = System.nanoTime() - startTime;
+			System.out.println(stopPointRefs.length + " stops, average lookup: "
+					+ SiriUtils.df.format(lookupTime / (double) lookups)
+					+ " ns.");
+		}
+	}
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.TimeZone;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdScalarDeserializer;
+
+/**
+ * Deserializes SIRI timestamps (e.g., RecordedAtTime, ResponseTimestamp, and
+ * ValidUntil) that use the fixed ISO-8601 layout
+ * "yyyy-MM-dd'T'HH:mm:ss[.SSS](Z|+hh:mm|-hh:mm)", such as
+ * "2012-09-19T16:18:39.265-04:00".
+ *
+ * The text is parsed straight from the parser's character buffer, without
+ * SimpleDateFormat or DatatypeFactory. Since most timestamps in a response
+ * share the same date and UTC offset, the start of the last seen date/offset
+ * pair is cached, so most values only need the time of day to be parsed.
+ *
+ * Values that don't match the layout (e.g., numeric timestamps, or timestamps
+ * without a UTC offset) fall back to Jackson's default date parsing.
+ *
+ */
+public class SiriDateDeserializer extends StdScalarDeserializer<Date> {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Returned by parseMillis() when the text doesn't match the fixed layout
+	 */
+	static final long INVALID = Long.MIN_VALUE;
+
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	/**
+	 * The date and UTC offset of the last parsed timestamp, along with the
+	 * time in milliseconds of midnight at that date and offset
+	 */
+	private static final class Prefix {
+		final char[] date;
+		final char[] offset;
+		final long midnightMillis;
+
+		Prefix(char[] date, char[] offset, long midnightMillis) {
+			this.date = date;
+			this.offset = offset;
+			this.midnightMillis = midnightMillis;
+		}
+	}
+
+	private transient volatile Prefix lastPrefix;
+
+	public SiriDateDeserializer() {
+		super(Date.class);
+	}
+
+	@Override
+	public Date deserialize(JsonParser jp, DeserializationContext ctxt)
+			throws IOException, JsonProcessingException {
+		if (jp.getCurrentToken() == JsonToken.VALUE_STRING) {
+			long millis = parseMillis(jp.getTextCharacters(),
+					jp.getTextOffset(), jp.getTextLength());
+			if (millis != INVALID) {
+				return new Date(millis);
+			}
+		}
+		return _parseDate(jp, ctxt);
+	}
+
+	/**
+	 * Parses a SIRI timestamp string
+	 *
+	 * @param text
+	 *            timestamp, such as "2012-09-19T16:18:39.265-04:00"
+	 * @return the timestamp in milliseconds since the epoch, or INVALID if the
+	 *         text doesn't match the fixed SIRI layout
+	 */
+	long parseMillis(String text) {
+		return parseMillis(text.toCharArray(), 0, text.length());
+	}
+
+	/**
+	 * Parses a SIRI timestamp from a character buffer
+	 *
+	 * @return the timestamp in milliseconds since the epoch, or INVALID if the
+	 *         text doesn't match the fixed SIRI layout
+	 */
+	long parseMillis(char[] buf, int offset, int len) {
+		// Skip surrounding whitespace, which may be present in XML text
+		int start = offset;
+		int end = offset + len;
+		while (start < end && buf[start] <= ' ') {
+			start++;
+		}
+		while (end > start && buf[end - 1] <= ' ') {
+			end--;
+		}
+		if (end - start < 20 || buf[start + 4] != '-'
+				|| buf[start + 7] != '-' || buf[start + 10] != 'T'
+				|| buf[start + 13] != ':' || buf[start + 16] != ':') {
+			return INVALID;
+		}
+
+		int hour = digits(buf, start + 11, 2);
+		int minute = digits(buf, start + 14, 2);
+		int second = digits(buf, start + 17, 2);
+		if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0
+				|| second > 59) {
+			return INVALID;
+		}
+
+		// Fraction of a second, keeping milliseconds precision
+		int pos = start + 19;
+		int millis = 0;
+		if (buf[pos] == '.') {
+			pos++;
+			int fractionStart = pos;
+			while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+				if (pos - fractionStart < 3) {
+					millis = millis * 10 + (buf[pos] - '0');
+				}
+				pos++;
+			}
+			int fractionDigits = pos - fractionStart;
+			if (fractionDigits == 0) {
+				return INVALID;
+			}
+			for (int i = fractionDigits; i < 3; i++) {
+				millis *= 10;
+			}
+		}
+
+		// UTC offset
+		int offsetStart = pos;
+		int offsetLength = end - pos;
+		boolean utc = offsetLength == 1 && buf[pos] == 'Z';
+		boolean numericOffset = offsetLength == 6
+				&& (buf[pos] == '+' || buf[pos] == '-') && buf[pos + 3] == ':';
+		if (!utc && !numericOffset) {
+			return INVALID;
+		}
+
+		long timeOfDay = ((hour * 60L + minute) * 60L + second) * 1000L
+				+ millis;
+
+		Prefix prefix = lastPrefix;
+		if (prefix == null || !prefixMatches(prefix, buf, start, offsetStart,
+				offsetLength)) {
+			long midnightMillis = midnightMillis(buf, start, offsetStart,
+					offsetLength);
+			if (midnightMillis == INVALID) {
+				return INVALID;
+			}
+			char[] date = new char[10];
+			System.arraycopy(buf, start, date, 0, 10);
+			char[] offsetChars = new char[offsetLength];
+			System.arraycopy(buf, offsetStart, offsetChars, 0, offsetLength);
+			prefix = new Prefix(date, offsetChars, midnightMillis);
+			lastPrefix = prefix;
+		}
+		return prefix.midnightMillis + timeOfDay;
+	}
+
+	private static boolean prefixMatches(Prefix prefix, char[] buf,
+			int dateStart, int offsetStart, int offsetLength) {
+		if (prefix.offset.length != offsetLength) {
+			return false;
+		}
+		for (int i = 0; i < 10; i++) {
+			if (prefix.date[i] != buf[dateStart + i]) {
+				return false;
+			}
+		}
+		for (int i = 0; i < offsetLength; i++) {
+			if (prefix.offset[i] != buf[offsetStart + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the time in milliseconds of midnight at the given date and UTC
+	 * offset, or INVALID if either is malformed
+	 */
+	private static long midnightMillis(char[] buf, int dateStart,
+			int offsetStart, int offsetLength) {
+		int year = digits(buf, dateStart, 4);
+		int month = digits(buf, dateStart + 5, 2);
+		int day = digits(buf, dateStart + 8, 2);
+		if (year < 0 || month < 1 || month > 12 || day < 1
+				|| day > daysInMonth(year, month)) {
+			return INVALID;
+		}
+
+		long offsetMillis = 0;
+		if (offsetLength == 6) {
+			int offsetHours = digits(buf, offsetStart + 1, 2);
+			int offsetMinutes = digits(buf, offsetStart + 4, 2);
+			if (offsetHours < 0 || offsetHours > 18 || offsetMinutes < 0
+					|| offsetMinutes > 59) {
+				return INVALID;
+			}
+			offsetMillis = (offsetHours * 60L + offsetMinutes) * 60L * 1000L;
+			if (buf[offsetStart] == '-') {
+				offsetMillis = -offsetMillis;
+			}
+		}
+
+		return daysFromCivil(year, month, day) * MILLIS_PER_DAY - offsetMillis;
+	}
+
+	/**
+	 * Formats a time using the fixed SIRI layout, with the UTC offset of the
+	 * given time zone at that time (e.g., "2012-09-19T16:18:39.265-04:00").
+	 * This is the inverse of parseMillis().
+	 *
+	 * @param millis
+	 *            time in milliseconds since the epoch
+	 * @param zone
+	 *            time zone whose UTC offset is used
+	 * @return the formatted time
+	 */
+	static String format(long millis, TimeZone zone) {
+		int offsetMillis = zone.getOffset(millis);
+		long local = millis + offsetMillis;
+		long days = local / MILLIS_PER_DAY;
+		long millisOfDay = local % MILLIS_PER_DAY;
+		if (millisOfDay < 0) {
+			days--;
+			millisOfDay += MILLIS_PER_DAY;
+		}
+
+		// Civil date from the day number (inverse of daysFromCivil())
+		long z = days + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+				- dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra
+				- (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long mp = (5 * dayOfYear + 2) / 153;
+		int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+		StringBuilder sb = new StringBuilder(29);
+		append(sb, year, 4).append('-');
+		append(sb, month, 2).append('-');
+		append(sb, day, 2).append('T');
+		append(sb, (int) (millisOfDay / 3600000), 2).append(':');
+		append(sb, (int) (millisOfDay / 60000 % 60), 2).append(':');
+		append(sb, (int) (millisOfDay / 1000 % 60), 2).append('.');
+		append(sb, (int) (millisOfDay % 1000), 3);
+
+		int offsetMinutes = offsetMillis / 60000;
+		sb.append(offsetMinutes < 0 ? '-' : '+');
+		offsetMinutes = Math.abs(offsetMinutes);
+		append(sb, offsetMinutes / 60, 2).append(':');
+		append(sb, offsetMinutes % 60, 2);
+		return sb.toString();
+	}
+
+	private static StringBuilder append(StringBuilder sb, int value,
+			int width) {
+		String digits = Integer.toString(value);
+		for (int i = digits.length(); i < width; i++) {
+			sb.append('0');
+		}
+		return sb.append(digits);
+	}
+
+	/**
+	 * Returns the number of days between 1970-01-01 and the given date in the
+	 * proleptic Gregorian calendar
+	 */
+	static long daysFromCivil(int year, int month, int day) {
+		int y = month <= 2 ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5
+				+ day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * Returns the number of days in the given month (1-12) of the proleptic
+	 * Gregorian calendar
+	 */
+	static int daysInMonth(int year, int month) {
+		if (month == 2) {
+			boolean leap = year % 4 == 0
+					&& (year % 100 != 0 || year % 400 == 0);
+			return leap ? 29 : 28;
+		}
+		return month == 4 || month == 6 || month == 9 || month == 11 ? 30
+				: 31;
+	}
+
+	/**
+	 * Parses the given number of decimal digits, returning -1 if any of them
+	 * isn't a digit
+	 */
+	private static int digits(char[] buf, int offset, int count) {
+		int value = 0;
+		for (int i = offset; i < offset + count; i++) {
+			char c = buf[i];
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.util.Date;
+
+import com.fasterxml.jackson.core.Version;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+/**
+ * Jackson module that registers the SIRI timestamp handling (see
+ * SiriDateDeserializer and SiriDateSerializer) for all java.util.Date
+ * properties of the SIRI POJOs.
+ * It is registered on both mappers created by SiriUtils.
+ *
+ */
+public class SiriDateModule extends SimpleModule {
+
+	private static final long serialVersionUID = 1L;
+
+	public SiriDateModule() {
+		super("SiriDateModule", Version.unknownVersion());
+		addDeserializer(Date.class, new SiriDateDeserializer());
+		addSerializer(Date.class, new SiriDateSerializer());
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Date;
+
+import com.fasterxml.jackson.core.JsonGenerationException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+
+/**
+ * Serializes SIRI timestamps using the same fixed ISO-8601 layout that
+ * SiriDateDeserializer reads (e.g., "2012-09-19T16:18:39.265-04:00").
+ *
+ * A Date only holds the instant, so the UTC offset of the source text isn't
+ * kept: timestamps are written with the offset of the mapper's time zone,
+ * which is GMT unless it is changed with ObjectMapper.setTimeZone(). For
+ * example, "2012-09-19T16:18:39.265-04:00" is written as
+ * "2012-09-19T20:18:39.265+00:00" by default.
+ *
+ * The serializer is Serializable, so mappers it is registered on can still be
+ * written to the cache by SiriUtils.forceCacheWrite(). It extends
+ * JsonSerializer rather than StdScalarSerializer, since the latter isn't
+ * Serializable and has no no-argument constructor to deserialize it with.
+ *
+ */
+public class SiriDateSerializer extends JsonSerializer<Date> implements
+		Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public void serialize(Date value, JsonGenerator jgen,
+			SerializerProvider provider) throws IOException,
+			JsonGenerationException {
+		jgen.writeString(SiriDateDeserializer.format(value.getTime(), provider
+				.getConfig().getTimeZone()));
+	}
+
+	@Override
+	public Class<Date> handledType() {
+		return Date.class;
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.IOException;
+
+import uk.org.siri.siri.Siri;
+
+/**
+ * Receives parsed SIRI documents, for example from SiriReplayDriver
+ *
+ */
+public interface SiriDocumentConsumer {
+
+	/**
+	 * Called for each parsed document
+	 *
+	 * @param source
+	 *            name of the document (e.g., the path of the file it was read
+	 *            from)
+	 * @param siri
+	 *            the parsed document
+	 * @throws IOException
+	 *             if the consumer failed to handle the document
+	 */
+	void consume(String source, Siri siri) throws IOException;
+}
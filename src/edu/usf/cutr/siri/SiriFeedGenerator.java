@@ -0,0 +1,460 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Generates SIRI VehicleMonitoring, StopMonitoring and SituationExchange
+ * documents of any size, in XML or JSON, for load testing the parsers.
+ *
+ * The example responses in this project are used as templates: the first
+ * VehicleActivity (or PtSituationElement) of the example is repeated as many
+ * times as requested, with randomized refs, coordinates, distances and
+ * timestamps, and the rest of the example is kept as the envelope of the
+ * document. Since there is no StopMonitoring example, StopMonitoring documents
+ * are derived from the VehicleMonitoring example, with each VehicleActivity
+ * written as a MonitoredStopVisit.
+ *
+ * Documents are written as a stream, so memory use doesn't depend on their
+ * size. The same seed always generates the same document (for the same
+ * response time).
+ *
+ */
+public class SiriFeedGenerator {
+
+	/**
+	 * The kinds of SIRI documents that can be generated
+	 */
+	public enum Type {
+		VEHICLE_MONITORING, STOP_MONITORING, SITUATION_EXCHANGE
+	}
+
+	private static final String AGENCY_PREFIX = "MTA NYCT_";
+
+	private static final TimeZone TIME_ZONE = TimeZone
+			.getTimeZone("America/New_York");
+
+	/**
+	 * Bounding box of the generated vehicle locations (New York City)
+	 */
+	private static final double MIN_LATITUDE = 40.50;
+	private static final double MAX_LATITUDE = 40.91;
+	private static final double MIN_LONGITUDE = -74.25;
+	private static final double MAX_LONGITUDE = -73.70;
+
+	private static final String[] LINE_PREFIXES = { "B", "BX", "M", "Q", "S",
+			"X", "BM", "QM" };
+	private static final int MAX_LINES = 400;
+
+	private static final String[] ENVELOPE_SLOTS = { "ResponseTimestamp",
+			"ValidUntil" };
+
+	private static final String[] VEHICLE_SLOTS = { "RecordedAtTime",
+			"LineRef", "DirectionRef", "DataFrameRef", "DatedVehicleJourneyRef",
+			"JourneyPatternRef", "PublishedLineName", "Longitude", "Latitude",
+			"Bearing", "BlockRef", "VehicleRef", "StopPointRef",
+			"CallDistanceAlongRoute", "DistanceFromCall" };
+
+	private static final String[] SITUATION_SLOTS = { "SituationNumber",
+			"StartTime" };
+
+	/**
+	 * Templates for the parts of a generated document
+	 */
+	private static final class Templates {
+		SiriTemplate start;
+		SiriTemplate element;
+		SiriTemplate end;
+		String separator;
+	}
+
+	private final File templateDir;
+	private final Random random;
+	private long responseTime = System.currentTimeMillis();
+
+	/**
+	 * Creates a generator that uses the example responses in the given
+	 * directory as templates
+	 *
+	 * @param templateDir
+	 *            directory with vehicle-monitoring.xml/.json and
+	 *            situation-monitoring.xml/.json
+	 * @param seed
+	 *            seed for the random values
+	 */
+	public SiriFeedGenerator(File templateDir, long seed) {
+		this.templateDir = templateDir;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Sets the ResponseTimestamp of the generated documents. Other timestamps
+	 * are generated shortly before it. Defaults to the time the generator was
+	 * created.
+	 *
+	 * @param responseTime
+	 *            time in milliseconds since the epoch
+	 */
+	public void setResponseTime(long responseTime) {
+		this.responseTime = responseTime;
+	}
+
+	/**
+	 * Generates a SIRI document into a file
+	 *
+	 * @param type
+	 *            kind of document to generate
+	 * @param format
+	 *            "xml" or "json"
+	 * @param count
+	 *            number of VehicleActivity, MonitoredStopVisit, or
+	 *            PtSituationElement elements to generate
+	 * @param file
+	 *            destination file
+	 * @throws IOException
+	 *             if a template could not be read or the file could not be
+	 *             written
+	 */
+	public void generate(Type type, String format, int count, File file)
+			throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			generate(type, format, count, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Generates a SIRI document into an output stream, encoded as UTF-8. The
+	 * stream is flushed, but not closed.
+	 *
+	 * @param type
+	 *            kind of document to generate
+	 * @param format
+	 *            "xml" or "json"
+	 * @param count
+	 *            number of VehicleActivity, MonitoredStopVisit, or
+	 *            PtSituationElement elements to generate
+	 * @param out
+	 *            destination stream
+	 * @throws IOException
+	 *             if a template could not be read or the stream could not be
+	 *             written
+	 */
+	public void generate(Type type, String format, int count, OutputStream out)
+			throws IOException {
+		boolean xml;
+		if (format.equalsIgnoreCase("xml")) {
+			xml = true;
+		} else if (format.equalsIgnoreCase("json")) {
+			xml = false;
+		} else {
+			throw new IllegalArgumentException("Unknown format: " + format);
+		}
+		Templates templates = loadTemplates(type, xml);
+
+		String[] envelope = { SiriDateDeserializer.format(responseTime,
+				TIME_ZONE),
+				SiriDateDeserializer.format(responseTime + 60000, TIME_ZONE) };
+
+		Writer w = new BufferedWriter(new OutputStreamWriter(out,
+				SiriXmlScanner.UTF8), 64 * 1024);
+		templates.start.render(w, envelope);
+		if (type == Type.SITUATION_EXCHANGE) {
+			for (int i = 0; i < count; i++) {
+				if (i > 0) {
+					w.write(templates.separator);
+				}
+				templates.element.render(w, situationValues());
+			}
+		} else {
+			String[] lines = createLines(count);
+			String serviceDate = envelope[0].substring(0, 10);
+			for (int i = 0; i < count; i++) {
+				if (i > 0) {
+					w.write(templates.separator);
+				}
+				templates.element.render(w,
+						vehicleValues(i, lines, serviceDate));
+			}
+		}
+		templates.end.render(w, envelope);
+		w.flush();
+	}
+
+	/**
+	 * Returns the LineRef suffixes of the lines that the generated vehicles
+	 * serve (e.g., "B1", "BX1", ...), with about 20 vehicles per line
+	 */
+	private static String[] createLines(int count) {
+		String[] lines = new String[Math.max(LINE_PREFIXES.length,
+				Math.min(MAX_LINES, count / 20))];
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = LINE_PREFIXES[i % LINE_PREFIXES.length]
+					+ (i / LINE_PREFIXES.length + 1);
+		}
+		return lines;
+	}
+
+	private String[] vehicleValues(int i, String[] lines, String serviceDate) {
+		String line = lines[random.nextInt(lines.length)];
+		String direction = Integer.toString(random.nextInt(2));
+		int trip = random.nextInt(1000);
+		String block = AGENCY_PREFIX + serviceDate + "_" + line + "_" + trip;
+
+		// Vehicles report their position up to 90 seconds before the response
+		long recordedAtTime = responseTime - random.nextInt(90000);
+
+		return new String[] {
+				SiriDateDeserializer.format(recordedAtTime, TIME_ZONE),
+				AGENCY_PREFIX + line,
+				direction,
+				serviceDate,
+				block + "_" + direction + "_" + i,
+				AGENCY_PREFIX + line + direction,
+				line,
+				fixed(MIN_LONGITUDE + random.nextDouble()
+						* (MAX_LONGITUDE - MIN_LONGITUDE), 6),
+				fixed(MIN_LATITUDE + random.nextDouble()
+						* (MAX_LATITUDE - MIN_LATITUDE), 6),
+				fixed(random.nextDouble() * 360, 4),
+				block,
+				AGENCY_PREFIX + (1000 + i),
+				AGENCY_PREFIX + (200000 + random.nextInt(800000)),
+				fixed(random.nextDouble() * 30000, 2),
+				fixed(random.nextDouble() * 1500, 2) };
+	}
+
+	private String[] situationValues() {
+		// Situations started up to a week before the response
+		long startTime = responseTime
+				- (long) (random.nextDouble() * 7 * 24 * 60 * 60 * 1000);
+		return new String[] {
+				AGENCY_PREFIX
+						+ new UUID(random.nextLong(), random.nextLong())
+								.toString(),
+				SiriDateDeserializer.format(startTime, TIME_ZONE) };
+	}
+
+	/**
+	 * Formats a number with a fixed number of decimals, without the
+	 * locale-dependent DecimalFormat
+	 */
+	static String fixed(double value, int decimals) {
+		long scale = 1;
+		for (int i = 0; i < decimals; i++) {
+			scale *= 10;
+		}
+		long scaled = Math.round(Math.abs(value) * scale);
+		StringBuilder sb = new StringBuilder(24);
+		if (value < 0 && scaled != 0) {
+			sb.append('-');
+		}
+		sb.append(scaled / scale);
+		if (decimals > 0) {
+			sb.append('.');
+			String fraction = Long.toString(scaled % scale);
+			for (int i = fraction.length(); i < decimals; i++) {
+				sb.append('0');
+			}
+			sb.append(fraction);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Splits the example response for the given type into the envelope before
+	 * the first element, the first element, and the envelope after the last
+	 * element
+	 */
+	private Templates loadTemplates(Type type, boolean xml) throws IOException {
+		String fixture = type == Type.SITUATION_EXCHANGE ? "situation-monitoring"
+				: "vehicle-monitoring";
+		String elementName = type == Type.SITUATION_EXCHANGE ? "PtSituationElement"
+				: LazySiriDocument.VEHICLE_ACTIVITY;
+		File file = new File(templateDir, fixture + (xml ? ".xml" : ".json"));
+		byte[] data = FileUtils.readFileToByteArray(file);
+
+		int[] range = xml ? findXmlElements(data, elementName)
+				: findJsonElements(data, elementName);
+		if (range == null) {
+			throw new IOException("No " + elementName + " element in "
+					+ file.getAbsolutePath());
+		}
+		// The text is kept escaped, since it is written back as-is
+		String start = new String(data, 0, range[0], SiriXmlScanner.UTF8);
+		String element = new String(data, range[0], range[1] - range[0],
+				SiriXmlScanner.UTF8);
+		String end = new String(data, range[2], data.length - range[2],
+				SiriXmlScanner.UTF8);
+
+		if (type == Type.STOP_MONITORING) {
+			start = toStopMonitoring(start);
+			element = toStopMonitoring(element);
+			end = toStopMonitoring(end);
+		}
+
+		Templates templates = new Templates();
+		templates.start = SiriTemplate.compile(start, xml, ENVELOPE_SLOTS);
+		templates.element = SiriTemplate.compile(element, xml,
+				type == Type.SITUATION_EXCHANGE ? SITUATION_SLOTS
+						: VEHICLE_SLOTS);
+		templates.end = SiriTemplate.compile(end, xml, ENVELOPE_SLOTS);
+		templates.separator = xml ? "" : ",";
+		return templates;
+	}
+
+	private static String toStopMonitoring(String text) {
+		return text.replace("VehicleMonitoringDelivery",
+				"StopMonitoringDelivery").replace(
+				LazySiriDocument.VEHICLE_ACTIVITY, "MonitoredStopVisit");
+	}
+
+	/**
+	 * Returns the start and end of the first element with the given name in
+	 * the XML, and the end of the last one, or null if there is no such
+	 * element
+	 */
+	private static int[] findXmlElements(byte[] data, String elementName)
+			throws IOException {
+		byte[] name = SiriXmlScanner.name(elementName);
+		int[] range = null;
+		int from = 0;
+		int tagStart;
+		while ((tagStart = SiriXmlScanner.indexOfStartTag(data, from,
+				data.length, name)) >= 0) {
+			int end = SiriXmlScanner.endOfElement(data, tagStart, data.length,
+					name);
+			if (end < 0) {
+				throw new IOException("Unterminated " + elementName
+						+ " element at offset " + tagStart);
+			}
+			if (range == null) {
+				range = new int[] { tagStart, end, end };
+			}
+			range[2] = end;
+			from = end;
+		}
+		return range;
+	}
+
+	/**
+	 * Returns the start and end of the first object in the JSON array with
+	 * the given name, and the end of the last one, or null if there is no
+	 * such array
+	 */
+	private static int[] findJsonElements(byte[] data, String elementName)
+			throws IOException {
+		JsonParser jp = new JsonFactory().createJsonParser(data);
+		try {
+			JsonToken t;
+			while ((t = jp.nextToken()) != null) {
+				if (t != JsonToken.FIELD_NAME
+						|| !elementName.equals(jp.getCurrentName())) {
+					continue;
+				}
+				if (jp.nextToken() != JsonToken.START_ARRAY) {
+					throw new JsonParseException("Expected an array of "
+							+ elementName, jp.getCurrentLocation());
+				}
+				int[] range = null;
+				while ((t = jp.nextToken()) == JsonToken.START_OBJECT) {
+					int start = (int) jp.getTokenLocation().getByteOffset();
+					jp.skipChildren();
+					int end = (int) jp.getTokenLocation().getByteOffset() + 1;
+					if (range == null) {
+						range = new int[] { start, end, end };
+					}
+					range[2] = end;
+				}
+				return range;
+			}
+			return null;
+		} finally {
+			jp.close();
+		}
+	}
+
+	/**
+	 * Generates a SIRI document for load testing
+	 *
+	 * @param args
+	 *            kind of document (vm, sm, or sx), number of elements, path
+	 *            to the output file (ending in .xml or .json), and optionally
+	 *            the directory with the example responses and a random seed
+	 */
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			System.out
+					.println("Proper Usage is: java SiriFeedGenerator vm|sm|sx number-of-elements path-to-xml-or-json-output-file [path-to-template-directory] [seed]");
+			System.exit(0);
+		}
+
+		Type type;
+		if (args[0].equalsIgnoreCase("vm")) {
+			type = Type.VEHICLE_MONITORING;
+		} else if (args[0].equalsIgnoreCase("sm")) {
+			type = Type.STOP_MONITORING;
+		} else if (args[0].equalsIgnoreCase("sx")) {
+			type = Type.SITUATION_EXCHANGE;
+		} else {
+			System.err.println("Unknown document type: " + args[0]);
+			return;
+		}
+		int count = Integer.parseInt(args[1]);
+		File output = new File(args[2]);
+		File templateDir = new File(args.length > 3 ? args[3] : ".");
+		long seed = args.length > 4 ? Long.parseLong(args[4]) : 0;
+
+		try {
+			long startTime = System.nanoTime();
+			new SiriFeedGenerator(templateDir, seed).generate(type,
+					FilenameUtils.getExtension(output.getName()), count,
+					output);
+			long endTime = System.nanoTime();
+
+			System.out.println("Generated " + count + " elements in "
+					+ output.getAbsolutePath() + " (" + output.length()
+					+ " bytes) in "
+					+ SiriUtils.df.format((endTime - startTime) / 1000000.0)
+					+ " ms.");
+		} catch (IOException e) {
+			System.err.println("Error generating output file: " + e);
+			e.printStackTrace();
+		}
+	}
+}
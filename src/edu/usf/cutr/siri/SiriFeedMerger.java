@@ -0,0 +1,391 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FilenameUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Merges the VehicleActivity elements of several VehicleMonitoring feeds (e.g.,
+ * from several operators, or from overlapping regional endpoints) into one
+ * fleet view with a single VehicleActivity per VehicleRef.
+ *
+ * Each call to merge() is a round: the given feeds are scanned concurrently
+ * (see LazySiriDocument), and each worker merges its vehicles straight into a
+ * shared ConcurrentHashMap as soon as its feed is scanned. When a vehicle is
+ * in several feeds, or was already in the fleet view, the VehicleActivity with
+ * the newest RecordedAtTime wins. Vehicles are merged one at a time with
+ * compare-and-set (putIfAbsent() and replace()), so workers never wait for
+ * each other to finish a feed.
+ *
+ * At the end of each round, an immutable Snapshot of the fleet view is
+ * published. Readers always see a complete round, never a partially merged
+ * one.
+ *
+ * The fleet view keeps a vehicle until it is more than the maximum age behind
+ * the newest vehicle (DEFAULT_MAX_AGE unless changed with setMaxAge()), so a
+ * long-running merger over feeds whose vehicles come and go doesn't grow
+ * without limit. A vehicle without a RecordedAtTime can't be aged that way,
+ * so it is kept only until a round whose feeds don't include it. Each kept
+ * VehicleActivity holds a copy of its own bytes rather than the whole feed it
+ * was scanned from.
+ *
+ */
+public class SiriFeedMerger {
+
+	/**
+	 * The merged fleet view at the end of a round
+	 */
+	public static final class Snapshot {
+		private final int round;
+		private final Map<String, LazyVehicleActivity> vehicles;
+		private final Map<String, IOException> failures;
+		private final long mergeTime;
+
+		private Snapshot(int round, Map<String, LazyVehicleActivity> vehicles,
+				Map<String, IOException> failures, long mergeTime) {
+			this.round = round;
+			this.vehicles = Collections.unmodifiableMap(vehicles);
+			this.failures = Collections.unmodifiableMap(failures);
+			this.mergeTime = mergeTime;
+		}
+
+		/**
+		 * @return the number of the round (starting at 1), or 0 before the
+		 *         first round
+		 */
+		public int getRound() {
+			return round;
+		}
+
+		/**
+		 * @return the newest VehicleActivity of each vehicle, by VehicleRef
+		 */
+		public Map<String, LazyVehicleActivity> getVehicles() {
+			return vehicles;
+		}
+
+		/**
+		 * @return the feeds that could not be read in this round, by path,
+		 *         with the reason
+		 */
+		public Map<String, IOException> getFailures() {
+			return failures;
+		}
+
+		/**
+		 * @return the time that the round took (in nanoseconds)
+		 */
+		public long getMergeTime() {
+			return mergeTime;
+		}
+	}
+
+	/**
+	 * Default maximum age of a vehicle in the fleet view (15 minutes)
+	 */
+	public static final long DEFAULT_MAX_AGE = 15 * 60 * 1000L;
+
+	private final ObjectMapper xmlMapper;
+	private final ObjectMapper jsonMapper;
+	private final ExecutorService executor;
+
+	private final ConcurrentHashMap<String, LazyVehicleActivity> fleet = new ConcurrentHashMap<String, LazyVehicleActivity>();
+
+	/**
+	 * VehicleRefs merged without a RecordedAtTime in the current round
+	 */
+	private final Set<String> untimedVehicles = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private long maxAge = DEFAULT_MAX_AGE;
+	private int round = 0;
+
+	private volatile Snapshot snapshot = new Snapshot(0,
+			Collections.<String, LazyVehicleActivity> emptyMap(),
+			Collections.<String, IOException> emptyMap(), 0);
+
+	/**
+	 * Creates a merger that scans feeds on the given number of threads
+	 *
+	 * @param threads
+	 *            number of feeds that are scanned at the same time
+	 */
+	public SiriFeedMerger(int threads) {
+		this(SiriUtils.createXmlMapper(), SiriUtils.createObjectMapper(),
+				threads);
+	}
+
+	/**
+	 * Creates a merger that scans feeds on the given number of threads
+	 *
+	 * @param xmlMapper
+	 *            XmlMapper configured for SIRI, used for *.xml feeds
+	 * @param jsonMapper
+	 *            ObjectMapper configured for SIRI, used for other feeds
+	 * @param threads
+	 *            number of feeds that are scanned at the same time
+	 */
+	public SiriFeedMerger(ObjectMapper xmlMapper, ObjectMapper jsonMapper,
+			int threads) {
+		this.xmlMapper = xmlMapper;
+		this.jsonMapper = jsonMapper;
+		this.executor = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Removes vehicles from the fleet view at the end of a round if their
+	 * RecordedAtTime is more than the given age older than the newest
+	 * RecordedAtTime in the fleet view. The default is DEFAULT_MAX_AGE.
+	 *
+	 * Vehicles without a RecordedAtTime are removed at the end of a round in
+	 * which none of the feeds had them. Nothing is removed by age while no
+	 * vehicle in the fleet view has a RecordedAtTime.
+	 *
+	 * @param millis
+	 *            maximum age in milliseconds, or -1 to keep every vehicle
+	 *            (then the fleet view holds every vehicle ever merged, and
+	 *            grows for as long as new VehicleRefs appear)
+	 */
+	public synchronized void setMaxAge(long millis) {
+		this.maxAge = millis;
+	}
+
+	/**
+	 * Returns the fleet view published at the end of the last round
+	 *
+	 * @return the last snapshot of the fleet view
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Scans the given feeds concurrently, merges their vehicles into the fleet
+	 * view, and publishes a new snapshot. A feed that can't be read is
+	 * reported in the snapshot and doesn't stop the others. Rounds don't
+	 * overlap - concurrent calls are run one after the other.
+	 *
+	 * @param feeds
+	 *            SIRI VehicleMonitoring XML or JSON files
+	 * @return the snapshot at the end of this round
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting for the feeds
+	 */
+	public synchronized Snapshot merge(List<File> feeds)
+			throws InterruptedException {
+		long startTime = System.nanoTime();
+
+		List<Future<?>> futures = new ArrayList<Future<?>>(feeds.size());
+		for (final File feed : feeds) {
+			futures.add(executor.submit(new Callable<Void>() {
+				public Void call() throws IOException {
+					mergeFeed(feed);
+					return null;
+				}
+			}));
+		}
+
+		Map<String, IOException> failures = new LinkedHashMap<String, IOException>();
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				futures.get(i).get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					failures.put(feeds.get(i).getPath(), (IOException) cause);
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				} else {
+					throw (Error) cause;
+				}
+			}
+		}
+
+		if (maxAge >= 0) {
+			removeExpired();
+		}
+		untimedVehicles.clear();
+
+		// Only this thread writes to the fleet view now, so the copy is
+		// consistent
+		snapshot = new Snapshot(++round,
+				new HashMap<String, LazyVehicleActivity>(fleet), failures,
+				System.nanoTime() - startTime);
+		return snapshot;
+	}
+
+	/**
+	 * Scans one feed and merges its vehicles into the fleet view
+	 */
+	private void mergeFeed(File feed) throws IOException {
+		ObjectMapper mapper = FilenameUtils.getExtension(feed.getName())
+				.equalsIgnoreCase("xml") ? xmlMapper : jsonMapper;
+		LazySiriDocument doc = LazySiriDocument.read(feed, mapper);
+		for (LazyVehicleActivity lva : doc.getVehicleActivities()) {
+			if (lva.getVehicleRef() != null) {
+				if (lva.getRecordedAtTime() == VehiclePositionColumns.MISSING_TIME) {
+					untimedVehicles.add(lva.getVehicleRef());
+				}
+				mergeVehicle(lva);
+			}
+		}
+	}
+
+	/**
+	 * Keeps the given VehicleActivity if it is newer than the one in the fleet
+	 * view for the same vehicle
+	 */
+	private void mergeVehicle(LazyVehicleActivity lva) {
+		String vehicleRef = lva.getVehicleRef();
+		// Copied only once it is known to be newer, so the feed it came from
+		// isn't kept reachable by the fleet view
+		LazyVehicleActivity detached = null;
+		while (true) {
+			LazyVehicleActivity current = fleet.get(vehicleRef);
+			if (current == null) {
+				if (detached == null) {
+					detached = lva.detach();
+				}
+				if (fleet.putIfAbsent(vehicleRef, detached) == null) {
+					return;
+				}
+			} else if (lva.getRecordedAtTime() <= current.getRecordedAtTime()) {
+				// Older (or as old) - a missing RecordedAtTime is the oldest
+				// possible value, so it never replaces a known one
+				return;
+			} else {
+				if (detached == null) {
+					detached = lva.detach();
+				}
+				if (fleet.replace(vehicleRef, current, detached)) {
+					return;
+				}
+			}
+			// Another worker changed the entry in the meantime - try again
+		}
+	}
+
+	private long newestTime() {
+		long newest = VehiclePositionColumns.MISSING_TIME;
+		for (LazyVehicleActivity lva : fleet.values()) {
+			newest = Math.max(newest, lva.getRecordedAtTime());
+		}
+		return newest;
+	}
+
+	/**
+	 * Removes the vehicles that are more than maxAge behind the newest one,
+	 * and the vehicles without a RecordedAtTime that weren't in this round
+	 */
+	private void removeExpired() {
+		long newest = newestTime();
+		// With no RecordedAtTime at all there is nothing to age against (and
+		// MISSING_TIME - maxAge would overflow)
+		long oldest = newest == VehiclePositionColumns.MISSING_TIME ? newest
+				: newest - maxAge;
+		Iterator<LazyVehicleActivity> i = fleet.values().iterator();
+		while (i.hasNext()) {
+			LazyVehicleActivity lva = i.next();
+			if (lva.getRecordedAtTime() == VehiclePositionColumns.MISSING_TIME) {
+				if (!untimedVehicles.contains(lva.getVehicleRef())) {
+					i.remove();
+				}
+			} else if (lva.getRecordedAtTime() < oldest) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Stops the scanning threads. The merger can't be used afterwards.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Compares merging the given feeds concurrently with scanning and merging
+	 * them one after the other. Both mergers use DEFAULT_MAX_AGE, so vehicles
+	 * more than that behind the newest one in the feeds are not counted.
+	 *
+	 * @param args
+	 *            paths to two or more SIRI VehicleMonitoring XML or JSON files
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out
+					.println("Proper Usage is: java SiriFeedMerger path-to-siri-file path-to-siri-file ...");
+			System.exit(0);
+		}
+
+		List<File> feeds = new ArrayList<File>();
+		for (String arg : args) {
+			feeds.add(new File(arg));
+		}
+
+		SiriFeedMerger serial = new SiriFeedMerger(1);
+		SiriFeedMerger concurrent = new SiriFeedMerger(Math.min(feeds.size(),
+				Runtime.getRuntime().availableProcessors()));
+		try {
+			// Warm up both mergers, so the comparison doesn't include the
+			// creation of the mappers
+			serial.merge(feeds);
+			concurrent.merge(feeds);
+
+			Snapshot serialSnapshot = serial.merge(feeds);
+			Snapshot snapshot = concurrent.merge(feeds);
+
+			for (Map.Entry<String, IOException> failure : snapshot
+					.getFailures().entrySet()) {
+				System.err.println("Error reading " + failure.getKey() + ": "
+						+ failure.getValue());
+			}
+			System.out.println("Merged " + feeds.size() + " feeds into "
+					+ snapshot.getVehicles().size() + " vehicles.");
+			System.out.println("Serial merge: "
+					+ SiriUtils.df.format(serialSnapshot.getMergeTime() / 1000000.0)
+					+ " ms.");
+			System.out.println("Concurrent merge: "
+					+ SiriUtils.df.format(snapshot.getMergeTime() / 1000000.0)
+					+ " ms.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			serial.shutdown();
+			concurrent.shutdown();
+		}
+	}
+}
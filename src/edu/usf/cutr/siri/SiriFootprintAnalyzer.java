@@ -0,0 +1,638 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.datatype.Duration;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.apache.commons.io.FilenameUtils;
+
+import uk.org.siri.siri.PtSituationElement;
+import uk.org.siri.siri.ServiceDelivery;
+import uk.org.siri.siri.Siri;
+import uk.org.siri.siri.SituationExchangeDelivery;
+import uk.org.siri.siri.VehicleActivity;
+import uk.org.siri.siri.VehicleMonitoringDelivery;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Measures how much heap a parsed SIRI response retains in each of the
+ * representations this project can keep in memory:
+ *
+ * - POJO: the Siri object tree bound by a mapper from SiriUtils
+ *
+ * - STRING_POOLED: the same tree, bound with the SiriStringPoolModule, so
+ * repeated values share one String
+ *
+ * - COLUMNAR: the vehicle positions in a VehiclePositionColumns
+ *
+ * - LAZY: a LazySiriDocument, which keeps the raw document and binds
+ * VehicleActivity elements on demand (none are bound when measuring)
+ *
+ * Sizes are found by walking the object graph with reflection, counting each
+ * object once. They are estimates of the shallow sizes on a 64-bit JVM with
+ * compressed references (12-byte object headers, 16-byte array headers,
+ * 4-byte references, and 8-byte alignment), since the JVM doesn't report the
+ * real ones without an agent. Objects shared with the rest of the
+ * application - Jackson objects (such as the ObjectReader kept by a
+ * LazyVehicleActivity), enum constants, and classes - aren't counted.
+ *
+ * Each byte is attributed to one category:
+ *
+ * - STRINGS: String objects, and their character arrays
+ *
+ * - TIMESTAMPS: Date, Calendar, XMLGregorianCalendar, and Duration objects
+ * (and what they reference), and long or int arrays in fields whose name
+ * contains "time", such as the RecordedAtTime column
+ *
+ * - NUMBERS: Number objects (e.g., BigDecimal and Float), and other arrays of
+ * numbers
+ *
+ * - LISTS: collections and maps, their internal arrays and entries, and
+ * object arrays
+ *
+ * - OTHER: everything else, such as the SIRI POJOs themselves and raw
+ * document bytes
+ *
+ * On JVMs that don't allow reflection into the java.* classes, the internals
+ * of strings and collections are estimated from their length.
+ *
+ */
+public class SiriFootprintAnalyzer {
+
+	/**
+	 * Representations of a parsed SIRI response
+	 */
+	public enum Mode {
+		POJO, STRING_POOLED, COLUMNAR, LAZY
+	}
+
+	/**
+	 * Kinds of data the retained bytes are attributed to
+	 */
+	public enum Category {
+		STRINGS, TIMESTAMPS, NUMBERS, LISTS, OTHER
+	}
+
+	private static final int OBJECT_HEADER = 12;
+	private static final int ARRAY_HEADER = 16;
+	private static final int REFERENCE = 4;
+	private static final int ALIGNMENT = 8;
+
+	/**
+	 * Estimated size of a HashMap entry, for maps that can't be walked
+	 */
+	private static final int MAP_ENTRY = 32;
+
+	private static final String USAGE = "Proper Usage is: java SiriFootprintAnalyzer path-to-siri-file [pojo|string_pooled|columnar|lazy ...]";
+
+	/**
+	 * Retained bytes and objects of part of an object graph
+	 */
+	public static final class Footprint {
+		private final long[] bytes = new long[Category.values().length];
+		private long objects = 0;
+
+		void add(Category category, long size) {
+			bytes[category.ordinal()] += size;
+			objects++;
+		}
+
+		/**
+		 * @return the total retained bytes
+		 */
+		public long getBytes() {
+			long total = 0;
+			for (long b : bytes) {
+				total += b;
+			}
+			return total;
+		}
+
+		/**
+		 * @param category
+		 *            kind of data
+		 * @return the retained bytes attributed to the category
+		 */
+		public long getBytes(Category category) {
+			return bytes[category.ordinal()];
+		}
+
+		/**
+		 * @return the number of retained objects (including arrays)
+		 */
+		public long getObjects() {
+			return objects;
+		}
+	}
+
+	/**
+	 * Footprint of one representation of a parsed response
+	 */
+	public static final class Report {
+		private final Mode mode;
+		private final Footprint total;
+		private final Footprint vehicleActivities;
+		private final int vehicleActivityCount;
+		private final Footprint situations;
+		private final int situationCount;
+
+		Report(Mode mode, Footprint total, Footprint vehicleActivities,
+				int vehicleActivityCount, Footprint situations,
+				int situationCount) {
+			this.mode = mode;
+			this.total = total;
+			this.vehicleActivities = vehicleActivities;
+			this.vehicleActivityCount = vehicleActivityCount;
+			this.situations = situations;
+			this.situationCount = situationCount;
+		}
+
+		/**
+		 * @return the representation that was measured
+		 */
+		public Mode getMode() {
+			return mode;
+		}
+
+		/**
+		 * @return the footprint of the whole representation
+		 */
+		public Footprint getTotal() {
+			return total;
+		}
+
+		/**
+		 * @return the footprint of all VehicleActivity elements (or their
+		 *         rows, for COLUMNAR), counting data they share once
+		 */
+		public Footprint getVehicleActivities() {
+			return vehicleActivities;
+		}
+
+		/**
+		 * @return the number of VehicleActivity elements (or rows)
+		 */
+		public int getVehicleActivityCount() {
+			return vehicleActivityCount;
+		}
+
+		/**
+		 * @return the footprint of all PtSituationElement elements, or null
+		 *         if the representation doesn't keep them
+		 */
+		public Footprint getSituations() {
+			return situations;
+		}
+
+		/**
+		 * @return the number of PtSituationElement elements
+		 */
+		public int getSituationCount() {
+			return situationCount;
+		}
+
+		/**
+		 * @return the average retained bytes per VehicleActivity, or NaN if
+		 *         there are none
+		 */
+		public double getBytesPerVehicleActivity() {
+			return vehicleActivityCount == 0 ? Double.NaN
+					: (double) vehicleActivities.getBytes()
+							/ vehicleActivityCount;
+		}
+
+		/**
+		 * @return the average retained bytes per PtSituationElement, or NaN if
+		 *         there are none or the representation doesn't keep them
+		 */
+		public double getBytesPerSituation() {
+			return situations == null || situationCount == 0 ? Double.NaN
+					: (double) situations.getBytes() / situationCount;
+		}
+	}
+
+	/**
+	 * Shallow size and reference fields of a class
+	 */
+	private static final class Layout {
+		final long size;
+		final Field[] references;
+		final boolean accessible;
+
+		Layout(long size, Field[] references, boolean accessible) {
+			this.size = size;
+			this.references = references;
+			this.accessible = accessible;
+		}
+	}
+
+	private final Map<Class<?>, Layout> layouts = new HashMap<Class<?>, Layout>();
+
+	/**
+	 * Parses the given file into the given representation, and measures it
+	 *
+	 * @param file
+	 *            SIRI XML or JSON file
+	 * @param mode
+	 *            representation to measure
+	 * @return the footprint of the representation
+	 * @throws IOException
+	 *             if the file could not be read
+	 */
+	public Report analyze(File file, Mode mode) throws IOException {
+		boolean xml = FilenameUtils.getExtension(file.getName())
+				.equalsIgnoreCase("xml");
+		ObjectMapper mapper = xml ? SiriUtils.createXmlMapper() : SiriUtils
+				.createObjectMapper();
+
+		switch (mode) {
+		case COLUMNAR:
+			VehiclePositionColumns columns = VehiclePositionColumns.read(file,
+					mapper);
+			Footprint footprint = measure(columns);
+			return new Report(mode, footprint, footprint, columns.size(),
+					null, 0);
+		case LAZY:
+			LazySiriDocument document = LazySiriDocument.read(file, mapper);
+			return new Report(mode, measure(document),
+					measureAll(document.getVehicleActivities()), document.size(),
+					null, 0);
+		case STRING_POOLED:
+			mapper.registerModule(new SiriStringPoolModule());
+			// Fall through
+		default:
+			Siri siri = mapper.readValue(file, Siri.class);
+			List<VehicleActivity> activities = new ArrayList<VehicleActivity>();
+			List<PtSituationElement> situations = new ArrayList<PtSituationElement>();
+			collect(siri, activities, situations);
+			return new Report(mode, measure(siri), measureAll(activities),
+					activities.size(), measureAll(situations), situations.size());
+		}
+	}
+
+	private static void collect(Siri siri, List<VehicleActivity> activities,
+			List<PtSituationElement> situations) {
+		ServiceDelivery sd = siri.getServiceDelivery();
+		if (sd == null) {
+			return;
+		}
+		if (sd.getVehicleMonitoringDelivery() != null) {
+			for (VehicleMonitoringDelivery vmd : sd
+					.getVehicleMonitoringDelivery()) {
+				if (vmd.getVehicleActivity() != null) {
+					activities.addAll(vmd.getVehicleActivity());
+				}
+			}
+		}
+		if (sd.getSituationExchangeDelivery() != null) {
+			for (SituationExchangeDelivery sed : sd
+					.getSituationExchangeDelivery()) {
+				if (sed.getSituations() != null
+						&& sed.getSituations().getPtSituationElement() != null) {
+					situations.addAll(sed.getSituations()
+							.getPtSituationElement());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Measures the objects reachable from the given object
+	 *
+	 * @param root
+	 *            root of the object graph
+	 * @return the footprint of the object graph
+	 */
+	public Footprint measure(Object root) {
+		return measureAll(Collections.singletonList(root));
+	}
+
+	/**
+	 * Measures the objects reachable from the given objects, counting objects
+	 * they share once. The collection itself isn't counted.
+	 *
+	 * @param roots
+	 *            roots of the object graph
+	 * @return the footprint of the object graph
+	 */
+	public Footprint measureAll(Collection<?> roots) {
+		Footprint footprint = new Footprint();
+		Map<Object, Boolean> visited = new IdentityHashMap<Object, Boolean>();
+
+		// Objects left to visit, with the category of the object that
+		// references them (null for roots) and the referencing field
+		List<Object> objects = new ArrayList<Object>();
+		List<Category> parents = new ArrayList<Category>();
+		List<Field> fields = new ArrayList<Field>();
+		for (Object root : roots) {
+			objects.add(root);
+			parents.add(null);
+			fields.add(null);
+		}
+
+		while (!objects.isEmpty()) {
+			int last = objects.size() - 1;
+			Object o = objects.remove(last);
+			Category parent = parents.remove(last);
+			Field field = fields.remove(last);
+			if (o == null || isShared(o) || visited.put(o, Boolean.TRUE) != null) {
+				continue;
+			}
+
+			Class<?> type = o.getClass();
+			Category category = categoryOf(o, parent, field);
+
+			if (type.isArray()) {
+				int length = Array.getLength(o);
+				Class<?> component = type.getComponentType();
+				footprint.add(category, align(ARRAY_HEADER + (long) length
+						* sizeOf(component)));
+				if (!component.isPrimitive()) {
+					Object[] array = (Object[]) o;
+					for (Object element : array) {
+						if (element != null) {
+							objects.add(element);
+							parents.add(category);
+							fields.add(null);
+						}
+					}
+				}
+				continue;
+			}
+
+			Layout layout = layoutOf(type);
+			footprint.add(category, layout.size);
+			for (Field f : layout.references) {
+				Object value;
+				try {
+					value = f.get(o);
+				} catch (IllegalAccessException e) {
+					continue;
+				}
+				if (value != null) {
+					objects.add(value);
+					parents.add(category);
+					fields.add(f);
+				}
+			}
+			if (!layout.accessible) {
+				estimateInternals(o, category, footprint, objects, parents,
+						fields);
+			}
+		}
+		return footprint;
+	}
+
+	/**
+	 * Adds the estimated internals of a String, Collection, or Map that can't
+	 * be walked with reflection
+	 */
+	private static void estimateInternals(Object o, Category category,
+			Footprint footprint, List<Object> objects, List<Category> parents,
+			List<Field> fields) {
+		List<Object> children = new ArrayList<Object>();
+		if (o instanceof String) {
+			footprint.add(category, align(ARRAY_HEADER + 2L
+					* ((String) o).length()));
+		} else if (o instanceof Collection) {
+			Collection<?> collection = (Collection<?>) o;
+			footprint.add(category, align(ARRAY_HEADER + (long) REFERENCE
+					* collection.size()));
+			children.addAll(collection);
+		} else if (o instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) o;
+			int capacity = 16;
+			while (capacity * 3 / 4 < map.size()) {
+				capacity *= 2;
+			}
+			footprint.add(category, align(ARRAY_HEADER + (long) REFERENCE
+					* capacity));
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				footprint.add(category, MAP_ENTRY);
+				children.add(entry.getKey());
+				children.add(entry.getValue());
+			}
+		}
+		for (Object child : children) {
+			if (child != null) {
+				objects.add(child);
+				parents.add(category);
+				fields.add(null);
+			}
+		}
+	}
+
+	/**
+	 * Returns true for objects that aren't part of any one document
+	 */
+	private static boolean isShared(Object o) {
+		if (o instanceof Class || o instanceof Enum || o instanceof ClassLoader
+				|| o instanceof Thread) {
+			return true;
+		}
+		return o.getClass().getName().startsWith("com.fasterxml.");
+	}
+
+	/**
+	 * Returns the category of an object, given the category of the object
+	 * that references it and the field it is referenced from
+	 */
+	private static Category categoryOf(Object o, Category parent, Field field) {
+		if (o instanceof String) {
+			return Category.STRINGS;
+		}
+		if (o instanceof Date || o instanceof Calendar
+				|| o instanceof XMLGregorianCalendar || o instanceof Duration) {
+			return Category.TIMESTAMPS;
+		}
+		if (o instanceof Number) {
+			return Category.NUMBERS;
+		}
+		if (o instanceof Collection || o instanceof Map) {
+			return Category.LISTS;
+		}
+		if (parent == Category.STRINGS || parent == Category.TIMESTAMPS
+				|| parent == Category.NUMBERS) {
+			// Internals of a value
+			return parent;
+		}
+		Class<?> type = o.getClass();
+		if (parent == Category.LISTS
+				&& (type == Object[].class || type.getName().startsWith(
+						"java.util."))) {
+			// Internal arrays and entries of a collection
+			return Category.LISTS;
+		}
+		if (type.isArray()) {
+			Class<?> component = type.getComponentType();
+			if (!component.isPrimitive()) {
+				return Category.LISTS;
+			}
+			if ((component == long.class || component == int.class)
+					&& field != null
+					&& field.getName().toLowerCase().contains("time")) {
+				return Category.TIMESTAMPS;
+			}
+			if (component != byte.class && component != char.class
+					&& component != boolean.class) {
+				return Category.NUMBERS;
+			}
+		}
+		return Category.OTHER;
+	}
+
+	private Layout layoutOf(Class<?> type) {
+		Layout layout = layouts.get(type);
+		if (layout != null) {
+			return layout;
+		}
+		long size = OBJECT_HEADER;
+		List<Field> references = new ArrayList<Field>();
+		boolean accessible = true;
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			for (Field f : c.getDeclaredFields()) {
+				if (Modifier.isStatic(f.getModifiers())) {
+					continue;
+				}
+				size += sizeOf(f.getType());
+				if (f.getType().isPrimitive()) {
+					continue;
+				}
+				try {
+					f.setAccessible(true);
+					references.add(f);
+				} catch (RuntimeException e) {
+					// The module system doesn't allow access to the field
+					accessible = false;
+				}
+			}
+		}
+		layout = new Layout(align(size),
+				references.toArray(new Field[references.size()]), accessible);
+		layouts.put(type, layout);
+		return layout;
+	}
+
+	private static int sizeOf(Class<?> type) {
+		if (type == long.class || type == double.class) {
+			return 8;
+		}
+		if (type == int.class || type == float.class) {
+			return 4;
+		}
+		if (type == short.class || type == char.class) {
+			return 2;
+		}
+		if (type == byte.class || type == boolean.class) {
+			return 1;
+		}
+		return REFERENCE;
+	}
+
+	private static long align(long size) {
+		return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	/**
+	 * Prints the footprint of a SIRI file in each representation
+	 *
+	 * @param args
+	 *            path to the SIRI XML or JSON file to measure, and optionally
+	 *            the representations to measure (pojo, string_pooled,
+	 *            columnar, lazy)
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println(USAGE);
+			System.exit(0);
+		}
+
+		File file = new File(args[0]);
+		List<Mode> modes = new ArrayList<Mode>();
+		try {
+			for (int i = 1; i < args.length; i++) {
+				modes.add(Mode.valueOf(args[i].toUpperCase()));
+			}
+		} catch (IllegalArgumentException e) {
+			// Unknown representation
+			System.out.println(USAGE);
+			System.exit(0);
+		}
+		if (modes.isEmpty()) {
+			for (Mode mode : Mode.values()) {
+				modes.add(mode);
+			}
+		}
+
+		System.out.println("Input file = " + file.getAbsolutePath() + " ("
+				+ file.length() + " bytes)");
+		SiriFootprintAnalyzer analyzer = new SiriFootprintAnalyzer();
+		try {
+			for (Mode mode : modes) {
+				Report report = analyzer.analyze(file, mode);
+				Footprint total = report.getTotal();
+				System.out.println("------------------------------------------");
+				System.out.println(mode);
+				System.out.println("Total: "
+						+ SiriUtils.df.format(total.getBytes()) + " bytes in "
+						+ SiriUtils.df.format(total.getObjects()) + " objects");
+				for (Category category : Category.values()) {
+					System.out.println("  "
+							+ category.name().toLowerCase()
+							+ ": "
+							+ SiriUtils.df.format(total.getBytes(category))
+							+ " bytes ("
+							+ SiriUtils.df.format(100.0
+									* total.getBytes(category)
+									/ Math.max(1, total.getBytes())) + "%)");
+				}
+				System.out.println("Per VehicleActivity: "
+						+ perElement(report.getBytesPerVehicleActivity())
+						+ " (" + report.getVehicleActivityCount()
+						+ " elements)");
+				System.out.println("Per PtSituationElement: "
+						+ perElement(report.getBytesPerSituation()) + " ("
+						+ report.getSituationCount() + " elements)");
+			}
+		} catch (IOException e) {
+			System.err.println("Error parsing input file: " + e);
+			e.printStackTrace();
+		}
+	}
+
+	private static String perElement(double bytes) {
+		return Double.isNaN(bytes) ? "n/a" : SiriUtils.df.format(bytes)
+				+ " bytes";
+	}
+}
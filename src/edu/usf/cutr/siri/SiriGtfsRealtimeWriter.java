@@ -0,0 +1,518 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.io.FilenameUtils;
+
+import uk.org.siri.siri.AffectedVehicleJourney;
+import uk.org.siri.siri.NaturalLanguageString;
+import uk.org.siri.siri.PtSituationElement;
+import uk.org.siri.siri.Siri;
+import uk.org.siri.siri.SituationExchangeDelivery;
+import uk.org.siri.siri.VehicleActivity;
+import uk.org.siri.siri.VehicleMonitoringDelivery;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writes a GTFS-realtime FeedMessage (in the protocol buffer binary format)
+ * from parsed SIRI data: VehicleActivity elements become VehiclePosition
+ * entities, and PtSituationElement elements become Alert entities.
+ *
+ * The FeedMessage is written incrementally - each entity is encoded and
+ * written to the stream as soon as it is added, so a feed of any size is
+ * written without holding it in memory. The protocol buffer encoding is done
+ * by hand for the few GTFS-realtime fields that are written, so no protocol
+ * buffer library is needed.
+ *
+ * SIRI fields are mapped as follows:
+ *
+ * - VehicleRef: entity id, and VehicleDescriptor.id
+ *
+ * - LineRef: TripDescriptor.route_id, EntitySelector.route_id
+ *
+ * - DirectionRef (if numeric): TripDescriptor.direction_id,
+ * EntitySelector.direction_id (only with a LineRef, since GTFS-realtime
+ * requires route_id along with direction_id in an EntitySelector)
+ *
+ * - FramedVehicleJourneyRef: TripDescriptor.trip_id (DatedVehicleJourneyRef)
+ * and start_date (DataFrameRef)
+ *
+ * - VehicleLocation and Bearing: Position
+ *
+ * - MonitoredCall.StopPointRef: VehiclePosition.stop_id
+ *
+ * - RecordedAtTime: VehiclePosition.timestamp
+ *
+ * - SituationNumber: entity id of an Alert
+ *
+ * - AffectedVehicleJourney with a LineRef: Alert.informed_entity (an Alert
+ * without any is skipped)
+ *
+ * - PublicationWindow: Alert.active_period
+ *
+ * - Summary and Description: Alert.header_text and description_text
+ *
+ */
+public class SiriGtfsRealtimeWriter implements Closeable {
+
+	private static final String GTFS_REALTIME_VERSION = "1.0";
+	private static final int FULL_DATASET = 0;
+
+	// FeedMessage
+	private static final int FEED_HEADER = 1;
+	private static final int FEED_ENTITY = 2;
+
+	// FeedHeader
+	private static final int HEADER_VERSION = 1;
+	private static final int HEADER_INCREMENTALITY = 2;
+	private static final int HEADER_TIMESTAMP = 3;
+
+	// FeedEntity
+	private static final int ENTITY_ID = 1;
+	private static final int ENTITY_VEHICLE = 4;
+	private static final int ENTITY_ALERT = 5;
+
+	// VehiclePosition
+	private static final int VEHICLE_TRIP = 1;
+	private static final int VEHICLE_POSITION = 2;
+	private static final int VEHICLE_TIMESTAMP = 5;
+	private static final int VEHICLE_STOP_ID = 7;
+	private static final int VEHICLE_VEHICLE = 8;
+
+	// TripDescriptor
+	private static final int TRIP_ID = 1;
+	private static final int TRIP_START_DATE = 3;
+	private static final int TRIP_ROUTE_ID = 5;
+	private static final int TRIP_DIRECTION_ID = 6;
+
+	// VehicleDescriptor
+	private static final int DESCRIPTOR_ID = 1;
+
+	// Position
+	private static final int POSITION_LATITUDE = 1;
+	private static final int POSITION_LONGITUDE = 2;
+	private static final int POSITION_BEARING = 3;
+
+	// Alert
+	private static final int ALERT_ACTIVE_PERIOD = 1;
+	private static final int ALERT_INFORMED_ENTITY = 5;
+	private static final int ALERT_HEADER_TEXT = 10;
+	private static final int ALERT_DESCRIPTION_TEXT = 11;
+
+	// TimeRange
+	private static final int RANGE_START = 1;
+	private static final int RANGE_END = 2;
+
+	// EntitySelector
+	private static final int SELECTOR_ROUTE_ID = 2;
+	private static final int SELECTOR_DIRECTION_ID = 6;
+
+	// TranslatedString and Translation
+	private static final int TRANSLATED_TRANSLATION = 1;
+	private static final int TRANSLATION_TEXT = 1;
+	private static final int TRANSLATION_LANGUAGE = 2;
+
+	private final OutputStream out;
+
+	// Reused buffers, one for each level of message nesting
+	private final ProtobufBuffer frame = new ProtobufBuffer();
+	private final ProtobufBuffer entity = new ProtobufBuffer();
+	private final ProtobufBuffer message = new ProtobufBuffer();
+	private final ProtobufBuffer field = new ProtobufBuffer();
+	private final ProtobufBuffer subfield = new ProtobufBuffer();
+
+	private boolean headerWritten = false;
+	private int entityCount = 0;
+
+	/**
+	 * Creates a writer for the given output stream. The stream is closed when
+	 * the writer is closed.
+	 *
+	 * @param out
+	 *            destination for the GTFS-realtime FeedMessage
+	 */
+	public SiriGtfsRealtimeWriter(OutputStream out) {
+		this.out = new BufferedOutputStream(out);
+	}
+
+	/**
+	 * Writes the FeedHeader, which must be written before any entity
+	 *
+	 * @param timestamp
+	 *            time of the feed (e.g., the ResponseTimestamp of the
+	 *            ServiceDelivery), or null
+	 * @throws IOException
+	 *             if the header could not be written
+	 */
+	public void writeHeader(Date timestamp) throws IOException {
+		if (headerWritten) {
+			throw new IllegalStateException("Header already written");
+		}
+		message.reset();
+		message.writeString(HEADER_VERSION, GTFS_REALTIME_VERSION);
+		message.writeVarint(HEADER_INCREMENTALITY, FULL_DATASET);
+		if (timestamp != null) {
+			message.writeVarint(HEADER_TIMESTAMP, seconds(timestamp));
+		}
+		writeFrame(FEED_HEADER, message);
+		headerWritten = true;
+	}
+
+	/**
+	 * Writes the header (with the ResponseTimestamp of the ServiceDelivery),
+	 * if it hasn't been written yet, and an entity for every VehicleActivity
+	 * and PtSituationElement of a parsed response
+	 *
+	 * @param siri
+	 *            a parsed SIRI response
+	 * @throws IOException
+	 *             if the entities could not be written
+	 */
+	public void write(Siri siri) throws IOException {
+		if (!headerWritten) {
+			writeHeader(siri.getServiceDelivery() == null ? null : siri
+					.getServiceDelivery().getResponseTimestamp());
+		}
+		if (siri.getServiceDelivery() == null) {
+			return;
+		}
+		List<VehicleMonitoringDelivery> listVMD = siri.getServiceDelivery()
+				.getVehicleMonitoringDelivery();
+		if (listVMD != null) {
+			for (VehicleMonitoringDelivery vmd : listVMD) {
+				if (vmd.getVehicleActivity() != null) {
+					for (VehicleActivity va : vmd.getVehicleActivity()) {
+						writeVehiclePosition(va);
+					}
+				}
+			}
+		}
+		List<SituationExchangeDelivery> sedList = siri.getServiceDelivery()
+				.getSituationExchangeDelivery();
+		if (sedList != null) {
+			for (SituationExchangeDelivery sed : sedList) {
+				if (sed.getSituations() != null
+						&& sed.getSituations().getPtSituationElement() != null) {
+					for (PtSituationElement ptse : sed.getSituations()
+							.getPtSituationElement()) {
+						writeAlert(ptse);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a VehiclePosition entity. VehicleActivity elements without a
+	 * VehicleRef are skipped.
+	 *
+	 * @param activity
+	 *            a parsed VehicleActivity
+	 * @return true if the entity was written, false if it was skipped
+	 * @throws IOException
+	 *             if the entity could not be written
+	 */
+	public boolean writeVehiclePosition(VehicleActivity activity)
+			throws IOException {
+		checkHeaderWritten();
+		if (activity.getMonitoredVehicleJourney() == null
+				|| activity.getMonitoredVehicleJourney().getVehicleRef() == null) {
+			return false;
+		}
+		String vehicleRef = activity.getMonitoredVehicleJourney()
+				.getVehicleRef().getValue();
+		message.reset();
+
+		// TripDescriptor
+		field.reset();
+		if (activity.getMonitoredVehicleJourney().getFramedVehicleJourneyRef() != null) {
+			String tripId = activity.getMonitoredVehicleJourney()
+					.getFramedVehicleJourneyRef().getDatedVehicleJourneyRef();
+			if (tripId != null) {
+				field.writeString(TRIP_ID, tripId);
+			}
+			if (activity.getMonitoredVehicleJourney()
+					.getFramedVehicleJourneyRef().getDataFrameRef() != null) {
+				String startDate = activity.getMonitoredVehicleJourney()
+						.getFramedVehicleJourneyRef().getDataFrameRef()
+						.getValue();
+				if (startDate != null) {
+					// "2012-08-21" in SIRI, "20120821" in GTFS-realtime
+					field.writeString(TRIP_START_DATE,
+							startDate.replace("-", ""));
+				}
+			}
+		}
+		if (activity.getMonitoredVehicleJourney().getLineRef() != null) {
+			field.writeString(TRIP_ROUTE_ID, activity
+					.getMonitoredVehicleJourney().getLineRef().getValue());
+		}
+		if (activity.getMonitoredVehicleJourney().getDirectionRef() != null) {
+			writeDirection(field, TRIP_DIRECTION_ID, activity
+					.getMonitoredVehicleJourney().getDirectionRef().getValue());
+		}
+		if (field.size() > 0) {
+			message.writeMessage(VEHICLE_TRIP, field);
+		}
+
+		// Position
+		if (activity.getMonitoredVehicleJourney().getVehicleLocation() != null) {
+			double latitude = SiriNumbers.toDouble(activity
+					.getMonitoredVehicleJourney().getVehicleLocation()
+					.getLatitude());
+			double longitude = SiriNumbers.toDouble(activity
+					.getMonitoredVehicleJourney().getVehicleLocation()
+					.getLongitude());
+			// Latitude and longitude are required in a Position
+			if (!Double.isNaN(latitude) && !Double.isNaN(longitude)) {
+				field.reset();
+				field.writeFloat(POSITION_LATITUDE, (float) latitude);
+				field.writeFloat(POSITION_LONGITUDE, (float) longitude);
+				double bearing = SiriNumbers.toDouble(activity
+						.getMonitoredVehicleJourney().getBearing());
+				if (!Double.isNaN(bearing)) {
+					field.writeFloat(POSITION_BEARING, (float) bearing);
+				}
+				message.writeMessage(VEHICLE_POSITION, field);
+			}
+		}
+
+		if (activity.getRecordedAtTime() != null) {
+			message.writeVarint(VEHICLE_TIMESTAMP,
+					seconds(activity.getRecordedAtTime()));
+		}
+		if (activity.getMonitoredVehicleJourney().getMonitoredCall() != null
+				&& activity.getMonitoredVehicleJourney().getMonitoredCall()
+						.getStopPointRef() != null) {
+			message.writeString(VEHICLE_STOP_ID, activity
+					.getMonitoredVehicleJourney().getMonitoredCall()
+					.getStopPointRef().getValue());
+		}
+
+		// VehicleDescriptor
+		field.reset();
+		field.writeString(DESCRIPTOR_ID, vehicleRef);
+		message.writeMessage(VEHICLE_VEHICLE, field);
+
+		writeEntity(vehicleRef, ENTITY_VEHICLE);
+		return true;
+	}
+
+	/**
+	 * Writes an Alert entity. GTFS-realtime requires at least one
+	 * informed_entity in an Alert, so PtSituationElement elements without an
+	 * AffectedVehicleJourney that has a LineRef are skipped.
+	 *
+	 * @param situation
+	 *            a parsed PtSituationElement
+	 * @return true if the entity was written, false if it was skipped
+	 * @throws IOException
+	 *             if the entity could not be written
+	 */
+	public boolean writeAlert(PtSituationElement situation) throws IOException {
+		checkHeaderWritten();
+		message.reset();
+		boolean informed = false;
+
+		if (situation.getPublicationWindow() != null) {
+			field.reset();
+			if (situation.getPublicationWindow().getStartTime() != null) {
+				field.writeVarint(RANGE_START, seconds(situation
+						.getPublicationWindow().getStartTime()));
+			}
+			if (situation.getPublicationWindow().getEndTime() != null) {
+				field.writeVarint(RANGE_END, seconds(situation
+						.getPublicationWindow().getEndTime()));
+			}
+			message.writeMessage(ALERT_ACTIVE_PERIOD, field);
+		}
+
+		if (situation.getAffects() != null
+				&& situation.getAffects().getVehicleJourneys() != null
+				&& situation.getAffects().getVehicleJourneys()
+						.getAffectedVehicleJourney() != null) {
+			for (AffectedVehicleJourney avj : situation.getAffects()
+					.getVehicleJourneys().getAffectedVehicleJourney()) {
+				// direction_id is only valid along with route_id
+				if (avj.getLineRef() == null
+						|| avj.getLineRef().getValue() == null) {
+					continue;
+				}
+				field.reset();
+				field.writeString(SELECTOR_ROUTE_ID, avj.getLineRef()
+						.getValue());
+				if (avj.getDirectionRef() != null) {
+					writeDirection(field, SELECTOR_DIRECTION_ID, avj
+							.getDirectionRef().getValue());
+				}
+				message.writeMessage(ALERT_INFORMED_ENTITY, field);
+				informed = true;
+			}
+		}
+		if (!informed) {
+			return false;
+		}
+
+		writeText(ALERT_HEADER_TEXT, situation.getSummary());
+		writeText(ALERT_DESCRIPTION_TEXT, situation.getDescription());
+
+		String id = situation.getSituationNumber() == null ? null : situation
+				.getSituationNumber().getValue();
+		writeEntity(id != null ? id : "alert-" + (entityCount + 1),
+				ENTITY_ALERT);
+		return true;
+	}
+
+	/**
+	 * Writes a TranslatedString with a single translation
+	 */
+	private void writeText(int fieldNumber, NaturalLanguageString text) {
+		if (text == null || text.getValue() == null) {
+			return;
+		}
+		subfield.reset();
+		subfield.writeString(TRANSLATION_TEXT, text.getValue());
+		if (text.getLang() != null) {
+			subfield.writeString(TRANSLATION_LANGUAGE, text.getLang());
+		}
+		field.reset();
+		field.writeMessage(TRANSLATED_TRANSLATION, subfield);
+		message.writeMessage(fieldNumber, field);
+	}
+
+	/**
+	 * Writes a GTFS-realtime direction_id, if the SIRI DirectionRef is a
+	 * number
+	 */
+	private static void writeDirection(ProtobufBuffer buffer, int fieldNumber,
+			String directionRef) {
+		if (directionRef == null || directionRef.length() == 0
+				|| directionRef.length() > 9) {
+			return;
+		}
+		for (int i = 0; i < directionRef.length(); i++) {
+			if (directionRef.charAt(i) < '0' || directionRef.charAt(i) > '9') {
+				return;
+			}
+		}
+		buffer.writeVarint(fieldNumber, Integer.parseInt(directionRef));
+	}
+
+	/**
+	 * Wraps the current message in a FeedEntity and writes it
+	 */
+	private void writeEntity(String id, int kind) throws IOException {
+		entity.reset();
+		entity.writeString(ENTITY_ID, id);
+		entity.writeMessage(kind, message);
+		writeFrame(FEED_ENTITY, entity);
+		entityCount++;
+	}
+
+	/**
+	 * Writes a field of the FeedMessage to the stream
+	 */
+	private void writeFrame(int fieldNumber, ProtobufBuffer buffer)
+			throws IOException {
+		frame.reset();
+		frame.writeMessage(fieldNumber, buffer);
+		frame.writeTo(out);
+	}
+
+	private void checkHeaderWritten() {
+		if (!headerWritten) {
+			throw new IllegalStateException("Header must be written first");
+		}
+	}
+
+	private static long seconds(Date date) {
+		return date.getTime() / 1000;
+	}
+
+	/**
+	 * @return the number of entities written so far
+	 */
+	public int getEntityCount() {
+		return entityCount;
+	}
+
+	/**
+	 * Flushes the output to the underlying stream
+	 *
+	 * @throws IOException
+	 *             if the output could not be flushed
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Flushes and closes the writer, along with the underlying stream
+	 */
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * Converts a SIRI VehicleMonitoring or SituationExchange file to a
+	 * GTFS-realtime feed
+	 *
+	 * @param args
+	 *            path to the SIRI XML or JSON file to read, and path to the
+	 *            GTFS-realtime file to write
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out
+					.println("Proper Usage is: java SiriGtfsRealtimeWriter path-to-siri-file path-to-gtfs-realtime-output-file");
+			System.exit(0);
+		}
+
+		File input = new File(args[0]);
+		File output = new File(args[1]);
+		ObjectMapper mapper = FilenameUtils.getExtension(args[0])
+				.equalsIgnoreCase("xml") ? SiriUtils.createXmlMapper()
+				: SiriUtils.createObjectMapper();
+		try {
+			Siri siri = mapper.readValue(input, Siri.class);
+			SiriGtfsRealtimeWriter writer = new SiriGtfsRealtimeWriter(
+					new FileOutputStream(output));
+			try {
+				writer.write(siri);
+			} finally {
+				writer.close();
+			}
+			System.out.println("Wrote " + writer.getEntityCount()
+					+ " entities: " + output.length() + " bytes of GTFS-realtime from "
+					+ input.length() + " bytes of SIRI.");
+		} catch (IOException e) {
+			System.err.println("Error converting input file: " + e);
+			e.printStackTrace();
+		}
+	}
+}
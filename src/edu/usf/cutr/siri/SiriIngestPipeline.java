@@ -0,0 +1,594 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import uk.org.siri.siri.Siri;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A staged ingest pipeline for SIRI documents, with bounded queues between the
+ * stages:
+ *
+ * 1. Acquisition - one thread reads the raw bytes of each submitted source (a
+ * file or a channel), decompressing "*.gz" sources.
+ *
+ * 2. Binding - a pool of threads binds the raw bytes to Siri objects with the
+ * shared SIRI mappers.
+ *
+ * 3. Consumers - each SiriDocumentConsumer has its own thread and receives
+ * every bound document, in batches drained from its queue.
+ *
+ * When a stage falls behind, the queue in front of it fills up and the stage
+ * before it blocks, all the way back to submit(). So a slow consumer throttles
+ * ingest instead of letting parsed documents pile up on the heap. The
+ * occupancy and throughput of each stage are available from getStats().
+ *
+ */
+public class SiriIngestPipeline {
+
+	/**
+	 * Statistics of one stage of the pipeline
+	 */
+	public static final class StageStats {
+		private final String name;
+		private final int queued;
+		private final int capacity;
+		private final long processed;
+		private final double throughput;
+		private final double utilization;
+
+		private StageStats(String name, int queued, int capacity,
+				long processed, double throughput, double utilization) {
+			this.name = name;
+			this.queued = queued;
+			this.capacity = capacity;
+			this.processed = processed;
+			this.throughput = throughput;
+			this.utilization = utilization;
+		}
+
+		/**
+		 * @return name of the stage
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return number of items waiting in the input queue of the stage
+		 */
+		public int getQueued() {
+			return queued;
+		}
+
+		/**
+		 * @return capacity of the input queue of the stage
+		 */
+		public int getCapacity() {
+			return capacity;
+		}
+
+		/**
+		 * @return number of documents the stage has processed
+		 */
+		public long getProcessed() {
+			return processed;
+		}
+
+		/**
+		 * @return number of documents processed per second since the start
+		 *         of the pipeline
+		 */
+		public double getThroughput() {
+			return throughput;
+		}
+
+		/**
+		 * @return share (0 to 1) of the time that the threads of the stage
+		 *         spent working rather than waiting
+		 */
+		public double getUtilization() {
+			return utilization;
+		}
+
+		@Override
+		public String toString() {
+			return name + ": queue " + queued + "/" + capacity + ", processed "
+					+ processed + " (" + SiriUtils.df.format(throughput)
+					+ "/s), utilization "
+					+ SiriUtils.df.format(utilization * 100) + "%";
+		}
+	}
+
+	/**
+	 * A source of raw bytes submitted to the pipeline
+	 */
+	private static abstract class Source {
+		final String name;
+
+		Source(String name) {
+			this.name = name;
+		}
+
+		abstract InputStream open() throws IOException;
+	}
+
+	/**
+	 * The raw bytes of a document
+	 */
+	private static final class RawDocument {
+		final String name;
+		final byte[] data;
+
+		RawDocument(String name, byte[] data) {
+			this.name = name;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * A bound document
+	 */
+	private static final class ParsedDocument {
+		final String name;
+		final Siri siri;
+
+		ParsedDocument(String name, Siri siri) {
+			this.name = name;
+			this.siri = siri;
+		}
+	}
+
+	// Markers for the end of the input of a stage
+	private static final Source END_OF_SOURCES = new Source(null) {
+		InputStream open() {
+			throw new UnsupportedOperationException(
+					"The end-of-sources marker has no data");
+		}
+	};
+	private static final RawDocument END_OF_RAW = new RawDocument(null, null);
+	private static final ParsedDocument END_OF_PARSED = new ParsedDocument(
+			null, null);
+
+	/**
+	 * A stage of the pipeline: its input queue, threads, and counters
+	 */
+	private static final class Stage {
+		final String name;
+		final BlockingQueue<?> input;
+		final int capacity;
+		final List<Thread> threads = new ArrayList<Thread>();
+		final AtomicLong processed = new AtomicLong();
+		final AtomicLong busyTime = new AtomicLong();
+
+		Stage(String name, BlockingQueue<?> input, int capacity) {
+			this.name = name;
+			this.input = input;
+			this.capacity = capacity;
+		}
+	}
+
+	private final ObjectMapper xmlMapper;
+	private final ObjectMapper jsonMapper;
+	private final int bindingThreads;
+	private final int capacity;
+	private volatile int batchSize = 16;
+
+	private final BlockingQueue<Source> sources;
+	private final BlockingQueue<RawDocument> rawDocuments;
+	private final List<BlockingQueue<ParsedDocument>> consumerQueues = new ArrayList<BlockingQueue<ParsedDocument>>();
+	private final List<SiriDocumentConsumer> consumers = new ArrayList<SiriDocumentConsumer>();
+
+	private final List<Stage> stages = new ArrayList<Stage>();
+	private final AtomicInteger runningBinders = new AtomicInteger();
+	private final Map<String, IOException> failures = new ConcurrentHashMap<String, IOException>();
+
+	private volatile long startTime;
+	private volatile boolean started = false;
+	private volatile boolean finished = false;
+
+	/**
+	 * Held while a source is enqueued, so finish() can't put the end marker
+	 * ahead of a source that was accepted. Separate from the pipeline's lock,
+	 * so getStats() isn't blocked while a submit waits for space.
+	 */
+	private final Object submitLock = new Object();
+
+	/**
+	 * Creates a pipeline
+	 *
+	 * @param bindingThreads
+	 *            number of threads that bind documents
+	 * @param capacity
+	 *            capacity of each queue between two stages, in documents
+	 */
+	public SiriIngestPipeline(int bindingThreads, int capacity) {
+		this(SiriUtils.createXmlMapper(), SiriUtils.createObjectMapper(),
+				bindingThreads, capacity);
+	}
+
+	/**
+	 * Creates a pipeline
+	 *
+	 * @param xmlMapper
+	 *            XmlMapper configured for SIRI, used for "*.xml" and
+	 *            "*.xml.gz" sources
+	 * @param jsonMapper
+	 *            ObjectMapper configured for SIRI, used for other sources
+	 * @param bindingThreads
+	 *            number of threads that bind documents
+	 * @param capacity
+	 *            capacity of each queue between two stages, in documents
+	 */
+	public SiriIngestPipeline(ObjectMapper xmlMapper, ObjectMapper jsonMapper,
+			int bindingThreads, int capacity) {
+		this.xmlMapper = xmlMapper;
+		this.jsonMapper = jsonMapper;
+		this.bindingThreads = bindingThreads;
+		this.capacity = capacity;
+		this.sources = new ArrayBlockingQueue<Source>(capacity);
+		this.rawDocuments = new ArrayBlockingQueue<RawDocument>(capacity);
+	}
+
+	/**
+	 * Sets the maximum number of documents that a consumer stage takes from
+	 * its queue at once (16 by default)
+	 *
+	 * @param documents
+	 *            maximum batch size
+	 */
+	public void setBatchSize(int documents) {
+		this.batchSize = documents;
+	}
+
+	/**
+	 * Adds a consumer stage, which receives every bound document on its own
+	 * thread. Must be called before start().
+	 *
+	 * @param consumer
+	 *            receives the bound documents
+	 */
+	public synchronized void addConsumer(SiriDocumentConsumer consumer) {
+		if (started) {
+			throw new IllegalStateException("Pipeline already started");
+		}
+		consumers.add(consumer);
+		consumerQueues.add(new ArrayBlockingQueue<ParsedDocument>(capacity));
+	}
+
+	/**
+	 * Starts the threads of all stages
+	 */
+	public synchronized void start() {
+		if (started) {
+			throw new IllegalStateException("Pipeline already started");
+		}
+		startTime = System.nanoTime();
+
+		final Stage acquisition = new Stage("Acquisition", sources, capacity);
+		acquisition.threads.add(new Thread("SIRI acquisition") {
+			public void run() {
+				acquire(acquisition);
+			}
+		});
+		stages.add(acquisition);
+
+		final Stage binding = new Stage("Binding", rawDocuments, capacity);
+		runningBinders.set(bindingThreads);
+		for (int i = 0; i < bindingThreads; i++) {
+			binding.threads.add(new Thread("SIRI binding " + i) {
+				public void run() {
+					bind(binding);
+				}
+			});
+		}
+		stages.add(binding);
+
+		for (int i = 0; i < consumers.size(); i++) {
+			final SiriDocumentConsumer consumer = consumers.get(i);
+			final BlockingQueue<ParsedDocument> queue = consumerQueues.get(i);
+			final Stage stage = new Stage("Consumer " + i, queue, capacity);
+			stage.threads.add(new Thread("SIRI consumer " + i) {
+				public void run() {
+					consume(stage, queue, consumer);
+				}
+			});
+			stages.add(stage);
+		}
+
+		started = true;
+		for (Stage stage : stages) {
+			for (Thread thread : stage.threads) {
+				thread.start();
+			}
+		}
+	}
+
+	/**
+	 * Submits a file, blocking while the pipeline is full. The format is XML
+	 * if the name ends with ".xml" (or ".xml.gz"), and JSON otherwise.
+	 *
+	 * @param file
+	 *            SIRI XML or JSON file, optionally gzipped ("*.gz")
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public void submit(final File file) throws InterruptedException {
+		submit(new Source(file.getPath()) {
+			InputStream open() throws IOException {
+				return new FileInputStream(file);
+			}
+		});
+	}
+
+	/**
+	 * Submits a channel (e.g., a socket), blocking while the pipeline is full.
+	 * The channel is read to its end and closed by the acquisition stage.
+	 *
+	 * @param name
+	 *            name of the document - its format is XML if the name ends
+	 *            with ".xml" (or ".xml.gz"), and JSON otherwise, and it is
+	 *            gzipped if the name ends with ".gz"
+	 * @param channel
+	 *            channel with the SIRI document
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public void submit(String name, final ReadableByteChannel channel)
+			throws InterruptedException {
+		submit(new Source(name) {
+			InputStream open() {
+				return Channels.newInputStream(channel);
+			}
+		});
+	}
+
+	private void submit(Source source) throws InterruptedException {
+		synchronized (submitLock) {
+			if (!started || finished) {
+				throw new IllegalStateException("Pipeline isn't running");
+			}
+			sources.put(source);
+		}
+	}
+
+	/**
+	 * Waits until every submitted document has been consumed, and stops the
+	 * threads of all stages. Nothing can be submitted after this is called.
+	 *
+	 * @return the documents that could not be read, bound, or consumed, by
+	 *         name, with the reason
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public Map<String, IOException> finish() throws InterruptedException {
+		synchronized (submitLock) {
+			if (!started || finished) {
+				throw new IllegalStateException("Pipeline isn't running");
+			}
+			finished = true;
+			sources.put(END_OF_SOURCES);
+		}
+		for (Stage stage : stages) {
+			for (Thread thread : stage.threads) {
+				thread.join();
+			}
+		}
+		return Collections.unmodifiableMap(new LinkedHashMap<String, IOException>(
+				failures));
+	}
+
+	/**
+	 * Returns the current statistics of each stage, in pipeline order
+	 *
+	 * @return statistics of each stage
+	 */
+	public List<StageStats> getStats() {
+		if (!started) {
+			return Collections.emptyList();
+		}
+		double elapsed = (System.nanoTime() - startTime) / 1e9;
+		List<StageStats> stats = new ArrayList<StageStats>(stages.size());
+		for (Stage stage : stages) {
+			long processed = stage.processed.get();
+			stats.add(new StageStats(stage.name, stage.input.size(),
+					stage.capacity, processed, elapsed == 0 ? 0 : processed
+							/ elapsed, elapsed == 0 ? 0 : stage.busyTime.get()
+							/ 1e9 / elapsed / stage.threads.size()));
+		}
+		return stats;
+	}
+
+	private void acquire(Stage stage) {
+		try {
+			while (true) {
+				Source source = sources.take();
+				if (source == END_OF_SOURCES) {
+					break;
+				}
+				long start = System.nanoTime();
+				byte[] data = null;
+				try {
+					data = read(source);
+				} catch (IOException e) {
+					failures.put(source.name, e);
+				}
+				stage.busyTime.addAndGet(System.nanoTime() - start);
+				if (data != null) {
+					stage.processed.incrementAndGet();
+					rawDocuments.put(new RawDocument(source.name, data));
+				}
+			}
+			for (int i = 0; i < bindingThreads; i++) {
+				rawDocuments.put(END_OF_RAW);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static byte[] read(Source source) throws IOException {
+		InputStream in = source.open();
+		try {
+			if (FilenameUtils.getExtension(source.name).equalsIgnoreCase("gz")) {
+				in = new GZIPInputStream(in);
+			}
+			return IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void bind(Stage stage) {
+		try {
+			while (true) {
+				RawDocument raw = rawDocuments.take();
+				if (raw == END_OF_RAW) {
+					break;
+				}
+				long start = System.nanoTime();
+				Siri siri = null;
+				try {
+					siri = mapperFor(raw.name).readValue(raw.data, Siri.class);
+				} catch (IOException e) {
+					failures.put(raw.name, e);
+				} catch (RuntimeException e) {
+					// Keep the binder alive, or the pipeline would never end
+					failures.put(raw.name, new IOException(e));
+				}
+				stage.busyTime.addAndGet(System.nanoTime() - start);
+				if (siri != null) {
+					stage.processed.incrementAndGet();
+					ParsedDocument parsed = new ParsedDocument(raw.name, siri);
+					for (BlockingQueue<ParsedDocument> queue : consumerQueues) {
+						queue.put(parsed);
+					}
+				}
+			}
+			if (runningBinders.decrementAndGet() == 0) {
+				// The last binder to finish ends the consumer stages
+				for (BlockingQueue<ParsedDocument> queue : consumerQueues) {
+					queue.put(END_OF_PARSED);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void consume(Stage stage, BlockingQueue<ParsedDocument> queue,
+			SiriDocumentConsumer consumer) {
+		int maxBatch = batchSize;
+		List<ParsedDocument> batch = new ArrayList<ParsedDocument>(maxBatch);
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch, maxBatch - 1);
+				long start = System.nanoTime();
+				for (ParsedDocument parsed : batch) {
+					if (parsed == END_OF_PARSED) {
+						return;
+					}
+					try {
+						consumer.consume(parsed.name, parsed.siri);
+						stage.processed.incrementAndGet();
+					} catch (IOException e) {
+						failures.put(parsed.name, e);
+					} catch (RuntimeException e) {
+						// Keep the consumer alive, or the pipeline would stall
+						failures.put(parsed.name, new IOException(e));
+					}
+				}
+				stage.busyTime.addAndGet(System.nanoTime() - start);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private ObjectMapper mapperFor(String name) {
+		String baseName = name;
+		if (FilenameUtils.getExtension(baseName).equalsIgnoreCase("gz")) {
+			baseName = FilenameUtils.removeExtension(baseName);
+		}
+		return FilenameUtils.getExtension(baseName).equalsIgnoreCase("xml") ? xmlMapper
+				: jsonMapper;
+	}
+
+	/**
+	 * Reads, binds, and prints the contents of the given SIRI files through
+	 * the pipeline, and then prints the statistics of each stage
+	 *
+	 * @param args
+	 *            paths to SIRI XML or JSON files, optionally gzipped
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out
+					.println("Proper Usage is: java SiriIngestPipeline path-to-siri-file ...");
+			System.exit(0);
+		}
+
+		SiriIngestPipeline pipeline = new SiriIngestPipeline(Runtime
+				.getRuntime().availableProcessors(), 16);
+		pipeline.addConsumer(new SiriDocumentConsumer() {
+			public void consume(String source, Siri siri) {
+				System.out.println("Contents of " + source + ":");
+				SiriUtils.printContents(siri);
+			}
+		});
+		pipeline.start();
+		try {
+			for (String arg : args) {
+				pipeline.submit(new File(arg));
+			}
+			Map<String, IOException> failures = pipeline.finish();
+			for (Map.Entry<String, IOException> failure : failures.entrySet()) {
+				System.err.println("Error ingesting " + failure.getKey() + ": "
+						+ failure.getValue());
+			}
+			for (StageStats stats : pipeline.getStats()) {
+				System.out.println(stats);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
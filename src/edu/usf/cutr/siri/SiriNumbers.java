@@ -0,0 +1,177 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.util.Date;
+
+/**
+ * Parses the decimal numbers found in SIRI responses (coordinates, bearings,
+ * and distances) straight from a character buffer into a primitive double.
+ * The parsing itself doesn't allocate; whether the buffer does depends on
+ * the parser it comes from (see VehiclePositionColumns). Also converts the
+ * values of bound SIRI objects to the same primitive representation.
+ *
+ */
+final class SiriNumbers {
+
+	/**
+	 * Powers of ten that are exactly representable as a double
+	 */
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+			1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+			1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	/**
+	 * Largest integer below which every long is exactly representable as a
+	 * double (2^53)
+	 */
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	private SiriNumbers() {
+	}
+
+	/**
+	 * Parses a decimal number, such as "-74.154863" or "4096.44"
+	 *
+	 * Numbers whose digits fit in 53 bits and that have a small exponent
+	 * (which covers everything in SIRI responses) are converted with a single
+	 * multiplication or division by an exact power of ten, which gives the
+	 * same correctly rounded result as Double.parseDouble(). Other numbers
+	 * fall back to Double.parseDouble().
+	 *
+	 * @return the parsed number, or NaN if the text is empty or not a number
+	 */
+	static double parseDouble(char[] buf, int offset, int len) {
+		int i = offset;
+		int end = offset + len;
+		while (i < end && buf[i] <= ' ') {
+			i++;
+		}
+		while (end > i && buf[end - 1] <= ' ') {
+			end--;
+		}
+		if (i == end) {
+			return Double.NaN;
+		}
+		int start = i;
+
+		boolean negative = false;
+		if (buf[i] == '-' || buf[i] == '+') {
+			negative = buf[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int exponent = 0;
+		boolean seenDigit = false;
+
+		for (; i < end && buf[i] >= '0' && buf[i] <= '9'; i++) {
+			seenDigit = true;
+			if (mantissa < MAX_EXACT_MANTISSA / 10) {
+				mantissa = mantissa * 10 + (buf[i] - '0');
+			} else {
+				// Too many significant digits for the fast path
+				return slowParse(buf, start, end);
+			}
+		}
+		if (i < end && buf[i] == '.') {
+			i++;
+			for (; i < end && buf[i] >= '0' && buf[i] <= '9'; i++) {
+				seenDigit = true;
+				if (mantissa < MAX_EXACT_MANTISSA / 10) {
+					mantissa = mantissa * 10 + (buf[i] - '0');
+					exponent--;
+				} else {
+					return slowParse(buf, start, end);
+				}
+			}
+		}
+		if (!seenDigit) {
+			return slowParse(buf, start, end);
+		}
+		if (i < end && (buf[i] == 'e' || buf[i] == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+				negativeExponent = buf[i] == '-';
+				i++;
+			}
+			int exp = 0;
+			int expStart = i;
+			for (; i < end && buf[i] >= '0' && buf[i] <= '9'; i++) {
+				if (exp > 1000) {
+					return slowParse(buf, start, end);
+				}
+				exp = exp * 10 + (buf[i] - '0');
+			}
+			if (i == expStart) {
+				return slowParse(buf, start, end);
+			}
+			exponent += negativeExponent ? -exp : exp;
+		}
+		if (i != end) {
+			return slowParse(buf, start, end);
+		}
+
+		double value;
+		if (exponent == 0) {
+			value = mantissa;
+		} else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+			value = mantissa / POWERS_OF_TEN[-exponent];
+		} else if (exponent > 0 && exponent < POWERS_OF_TEN.length) {
+			value = mantissa * POWERS_OF_TEN[exponent];
+		} else {
+			return slowParse(buf, start, end);
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Converts a bound SIRI value (e.g., a latitude or DistanceFromCall) to a
+	 * primitive double
+	 *
+	 * @return the number, or NaN if it is null or not a Number
+	 */
+	static double toDouble(Object number) {
+		if (number instanceof Number) {
+			return ((Number) number).doubleValue();
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * Converts a bound SIRI time (e.g., a RecordedAtTime) to milliseconds
+	 * since the epoch
+	 *
+	 * @return the time, or VehiclePositionColumns.MISSING_TIME if it is null
+	 *         or not a Date
+	 */
+	static long toMillis(Object date) {
+		if (date instanceof Date) {
+			return ((Date) date).getTime();
+		}
+		return VehiclePositionColumns.MISSING_TIME;
+	}
+
+	private static double slowParse(char[] buf, int start, int end) {
+		try {
+			return Double.parseDouble(new String(buf, start, end - start));
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+}
@@ -26,16 +26,10 @@ import org.apache.commons.io.FilenameUtils;
 import uk.org.siri.siri.Siri;
 
 //Jackson XML imports
-import com.fasterxml.aalto.stax.InputFactoryImpl;
-import com.fasterxml.aalto.stax.OutputFactoryImpl;
-import com.fasterxml.jackson.dataformat.xml.JacksonXmlModule;
-import com.fasterxml.jackson.dataformat.xml.XmlFactory;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 
 //Jackson JSON imports
-import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 
 /**
  * This class is an example of parsing a JSON or XML response from a SIRI feed
@@ -86,27 +80,7 @@ public class SiriParserJacksonErrorDemo {
 				
 				if(mapper == null){	
 					// instantiate ObjectMapper like normal if cache read failed
-					mapper = new ObjectMapper();
-
-					// Jackson 2.0 configuration settings
-					mapper.configure(DeserializationFeature.UNWRAP_ROOT_VALUE,
-							true);
-					mapper.configure(
-							DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY,
-							true);
-					mapper.configure(
-							DeserializationFeature.ACCEPT_EMPTY_STRING_AS_NULL_OBJECT,
-							true);
-					mapper.configure(
-							DeserializationFeature.USE_JAVA_ARRAY_FOR_JSON_ARRAY,
-							true);
-					mapper.configure(
-							DeserializationFeature.READ_ENUMS_USING_TO_STRING,
-							true);
-
-					// Tell Jackson to expect the JSON in PascalCase, instead of
-					// camelCase
-					mapper.setPropertyNamingStrategy(new PropertyNamingStrategy.PascalCaseStrategy());
+					mapper = SiriUtils.createObjectMapper();
 				}
 
 				// Deserialize the JSON from the file into the Siri object
@@ -116,49 +90,6 @@ public class SiriParserJacksonErrorDemo {
 
 			if (extension.equalsIgnoreCase("xml")) {
 				System.out.println("Parsing XML...");
-				// Use Aalto StAX implementation explicitly
-				XmlFactory f = new XmlFactory(new InputFactoryImpl(),
-						new OutputFactoryImpl());
-
-				JacksonXmlModule module = new JacksonXmlModule();
-
-				/**
-				 * Tell Jackson that Lists are using "unwrapped" style (i.e.,
-				 * there is no wrapper element for list). This fixes the error
-				 * "com.fasterxml.jackson.databind.JsonMappingException: Can not
-				 * >> instantiate value of type [simple type, class >>
-				 * uk.org.siri.siri.VehicleMonitoringDelivery] from JSON String;
-				 * no >> single-String constructor/factory method (through
-				 * reference chain: >>
-				 * uk.org.siri.siri.Siri["ServiceDelivery"]->
-				 * uk.org.siri.siri.ServiceDel >>
-				 * ivery["VehicleMonitoringDelivery"])"
-				 * 
-				 * NOTE - This requires Jackson v2.1
-				 **/
-				module.setDefaultUseWrapper(false);
-
-				/**
-				 * Handles "xml:lang" attribute, which is used in SIRI
-				 * NaturalLanguage String, and looks like: <Description
-				 * xml:lang="EN">b/d 1:00pm until f/n. loc al and express buses
-				 * run w/delays & detours. POTUS visit in MANH. Allow additional
-				 * travel time Details at www.mta.info</Description>
-				 * 
-				 * Passing "Value" (to match expected name in XML to map,
-				 * considering naming strategy) will make things work. This is
-				 * since JAXB uses pseudo-property name of "value" for XML Text
-				 * segments, whereas Jackson by default uses "" (to avoid name
-				 * collisions).
-				 * 
-				 * NOTE - This requires Jackson v2.1
-				 * 
-				 * NOTE - This still requires a CustomPascalCaseStrategy to
-				 * work. Please see the CustomPascalCaseStrategy in this app
-				 * that is used below.
-				 */
-				module.setXMLTextElementName("Value");
-
 				XmlMapper xmlMapper = null;
 
 				try {
@@ -170,31 +101,7 @@ public class SiriParserJacksonErrorDemo {
 
 				if (xmlMapper == null) {
 					// instantiate XmlMapper like normal if cache read didn't work
-					xmlMapper = new XmlMapper(f, module);
-
-					xmlMapper
-							.configure(
-									DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY,
-									true);
-					xmlMapper
-							.configure(
-									DeserializationFeature.ACCEPT_EMPTY_STRING_AS_NULL_OBJECT,
-									true);
-					xmlMapper
-							.configure(
-									DeserializationFeature.USE_JAVA_ARRAY_FOR_JSON_ARRAY,
-									true);
-					xmlMapper.configure(
-							DeserializationFeature.READ_ENUMS_USING_TO_STRING,
-							true);
-
-					// Tell Jackson to expect the XML in PascalCase, instead of
-					// camelCase
-					// xmlMapper.setPropertyNamingStrategy(new
-					// PropertyNamingStrategy.PascalCaseStrategy());
-					xmlMapper
-							.setPropertyNamingStrategy(new CustomPascalCaseStrategy());
-
+					xmlMapper = SiriUtils.createXmlMapper();
 				}
 				
 				// Parse the SIRI XML response
@@ -0,0 +1,645 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.io.FilenameUtils;
+
+import uk.org.siri.siri.VehicleActivity;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * An append-only archive of vehicle positions, so questions such as "where was
+ * bus X between 08:00 and 09:00" can be answered without parsing the original
+ * SIRI files again.
+ *
+ * Positions are stored as fixed-width records in a file that is read and
+ * written through memory-mapped segments. Each record holds the vehicle and
+ * line ids, RecordedAtTime, latitude, longitude, bearing, and the index of the
+ * previous record of the same vehicle. The VehicleRef and LineRef values of
+ * the ids are kept in separate text files, one value per line.
+ *
+ * Two indexes are kept in memory, and rebuilt when an archive is opened:
+ *
+ * - A per-vehicle index: the last record of each vehicle. A vehicle's records
+ * are found by following the chain of previous records back from it.
+ *
+ * - A sparse time index: the lowest and highest RecordedAtTime in each block of
+ * records. Queries skip the blocks that are outside the requested time range.
+ *
+ * Appended records become durable, and are kept if the archive is reopened,
+ * after flush() or close(). This class is thread-safe.
+ *
+ */
+public class SiriPositionArchive implements Closeable {
+
+	private static final String POSITIONS_FILE = "positions.dat";
+	private static final String VEHICLES_FILE = "vehicles.txt";
+	private static final String LINES_FILE = "lines.txt";
+
+	// Header: magic number, version, number of records
+	private static final int MAGIC = 0x53504f53;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int COUNT_OFFSET = 8;
+
+	// Record: vehicle id, line id, RecordedAtTime, latitude, longitude,
+	// bearing, previous record of the vehicle
+	private static final int RECORD_SIZE = 48;
+	private static final int VEHICLE_OFFSET = 0;
+	private static final int LINE_OFFSET = 4;
+	private static final int TIME_OFFSET = 8;
+	private static final int LATITUDE_OFFSET = 16;
+	private static final int LONGITUDE_OFFSET = 24;
+	private static final int BEARING_OFFSET = 32;
+	private static final int PREVIOUS_OFFSET = 40;
+
+	private static final int NO_ID = -1;
+	private static final long NO_RECORD = -1;
+
+	// Records per memory-mapped segment (12 MB)
+	private static final int SEGMENT_RECORDS = 1 << 18;
+
+	// Records per block of the time index
+	private static final int BLOCK_RECORDS = 1024;
+
+	/**
+	 * A vehicle position read from the archive
+	 */
+	public static final class Position {
+		private final String vehicleRef;
+		private final String lineRef;
+		private final long recordedAtTime;
+		private final double latitude;
+		private final double longitude;
+		private final double bearing;
+
+		private Position(String vehicleRef, String lineRef,
+				long recordedAtTime, double latitude, double longitude,
+				double bearing) {
+			this.vehicleRef = vehicleRef;
+			this.lineRef = lineRef;
+			this.recordedAtTime = recordedAtTime;
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.bearing = bearing;
+		}
+
+		/**
+		 * @return MonitoredVehicleJourney.VehicleRef
+		 */
+		public String getVehicleRef() {
+			return vehicleRef;
+		}
+
+		/**
+		 * @return MonitoredVehicleJourney.LineRef, or null
+		 */
+		public String getLineRef() {
+			return lineRef;
+		}
+
+		/**
+		 * @return RecordedAtTime in milliseconds since the epoch, or
+		 *         VehiclePositionColumns.MISSING_TIME
+		 */
+		public long getRecordedAtTime() {
+			return recordedAtTime;
+		}
+
+		/**
+		 * @return MonitoredVehicleJourney.VehicleLocation.Latitude, or NaN
+		 */
+		public double getLatitude() {
+			return latitude;
+		}
+
+		/**
+		 * @return MonitoredVehicleJourney.VehicleLocation.Longitude, or NaN
+		 */
+		public double getLongitude() {
+			return longitude;
+		}
+
+		/**
+		 * @return MonitoredVehicleJourney.Bearing, or NaN
+		 */
+		public double getBearing() {
+			return bearing;
+		}
+	}
+
+	private static final Comparator<Position> BY_TIME = new Comparator<Position>() {
+		public int compare(Position a, Position b) {
+			if (a.recordedAtTime == b.recordedAtTime) {
+				return 0;
+			}
+			return a.recordedAtTime < b.recordedAtTime ? -1 : 1;
+		}
+	};
+
+	private final File directory;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final MappedByteBuffer header;
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+	private final IdDictionary vehicleIds = new IdDictionary();
+	private final IdDictionary lineIds = new IdDictionary();
+	private final Writer vehicleWriter;
+	private final Writer lineWriter;
+
+	// Number of ids whose names have been written to the text files
+	private int savedVehicles;
+	private int savedLines;
+
+	private long count = 0;
+	private long savedCount;
+
+	// Per-vehicle index: last record of each vehicle id
+	private long[] lastRecord = new long[64];
+
+	// Time index: lowest and highest RecordedAtTime of each block, and the
+	// highest RecordedAtTime of the block and all blocks before it
+	private long[] blockMin = new long[16];
+	private long[] blockMax = new long[16];
+	private long[] blockMaxSoFar = new long[16];
+
+	private SiriPositionArchive(File directory) throws IOException {
+		this.directory = directory;
+		loadNames(VEHICLES_FILE, vehicleIds);
+		loadNames(LINES_FILE, lineIds);
+		savedVehicles = vehicleIds.size();
+		savedLines = lineIds.size();
+
+		file = new RandomAccessFile(new File(directory, POSITIONS_FILE), "rw");
+		channel = file.getChannel();
+		boolean created = channel.size() == 0;
+		header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+		if (created) {
+			header.putInt(0, MAGIC);
+			header.putInt(4, VERSION);
+			header.putLong(COUNT_OFFSET, 0);
+		} else if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+			file.close();
+			throw new IOException("Not a position archive: "
+					+ new File(directory, POSITIONS_FILE));
+		}
+		savedCount = header.getLong(COUNT_OFFSET);
+		rebuildIndexes(savedCount);
+
+		vehicleWriter = openNames(VEHICLES_FILE);
+		lineWriter = openNames(LINES_FILE);
+	}
+
+	/**
+	 * Opens the archive in the given directory, creating it if needed
+	 *
+	 * @param directory
+	 *            directory of the archive files
+	 * @return the opened archive
+	 * @throws IOException
+	 *             if the archive could not be opened
+	 */
+	public static SiriPositionArchive open(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create directory " + directory);
+		}
+		return new SiriPositionArchive(directory);
+	}
+
+	private void loadNames(String fileName, IdDictionary ids)
+			throws IOException {
+		File names = new File(directory, fileName);
+		if (!names.exists()) {
+			return;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(names), SiriXmlScanner.UTF8));
+		try {
+			String name;
+			while ((name = reader.readLine()) != null) {
+				ids.id(name);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private Writer openNames(String fileName) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+				new File(directory, fileName), true), SiriXmlScanner.UTF8));
+	}
+
+	/**
+	 * Reads the vehicle id and time of the stored records to rebuild the
+	 * in-memory indexes
+	 */
+	private void rebuildIndexes(long records) throws IOException {
+		Arrays.fill(lastRecord, NO_RECORD);
+		for (long r = 0; r < records; r++) {
+			MappedByteBuffer segment = segment(r);
+			int pos = position(r);
+			index(r, segment.getInt(pos + VEHICLE_OFFSET),
+					segment.getLong(pos + TIME_OFFSET));
+		}
+		count = records;
+	}
+
+	/**
+	 * Adds a record to the in-memory indexes
+	 */
+	private void index(long record, int vehicleId, long time) {
+		if (vehicleId >= lastRecord.length) {
+			int oldLength = lastRecord.length;
+			lastRecord = Arrays.copyOf(lastRecord,
+					Math.max(vehicleId + 1, oldLength * 2));
+			Arrays.fill(lastRecord, oldLength, lastRecord.length, NO_RECORD);
+		}
+		lastRecord[vehicleId] = record;
+
+		int block = (int) (record / BLOCK_RECORDS);
+		if (block >= blockMin.length) {
+			blockMin = Arrays.copyOf(blockMin, blockMin.length * 2);
+			blockMax = Arrays.copyOf(blockMax, blockMax.length * 2);
+			blockMaxSoFar = Arrays.copyOf(blockMaxSoFar,
+					blockMaxSoFar.length * 2);
+		}
+		if (record % BLOCK_RECORDS == 0) {
+			blockMin[block] = Long.MAX_VALUE;
+			blockMax[block] = Long.MIN_VALUE;
+		}
+		if (time != VehiclePositionColumns.MISSING_TIME) {
+			blockMin[block] = Math.min(blockMin[block], time);
+			blockMax[block] = Math.max(blockMax[block], time);
+		}
+		blockMaxSoFar[block] = block == 0 ? blockMax[block] : Math.max(
+				blockMaxSoFar[block - 1], blockMax[block]);
+	}
+
+	/**
+	 * Returns the mapped segment that holds the given record, mapping it (and
+	 * growing the file) if needed
+	 */
+	private MappedByteBuffer segment(long record) throws IOException {
+		int index = (int) (record / SEGMENT_RECORDS);
+		while (segments.size() <= index) {
+			long start = HEADER_SIZE + (long) segments.size()
+					* SEGMENT_RECORDS * RECORD_SIZE;
+			segments.add(channel.map(FileChannel.MapMode.READ_WRITE, start,
+					(long) SEGMENT_RECORDS * RECORD_SIZE));
+		}
+		return segments.get(index);
+	}
+
+	private static int position(long record) {
+		return (int) (record % SEGMENT_RECORDS) * RECORD_SIZE;
+	}
+
+	/**
+	 * Appends a vehicle position
+	 *
+	 * @param vehicleRef
+	 *            MonitoredVehicleJourney.VehicleRef (required)
+	 * @param lineRef
+	 *            MonitoredVehicleJourney.LineRef, or null
+	 * @param recordedAtTime
+	 *            RecordedAtTime in milliseconds since the epoch, or
+	 *            VehiclePositionColumns.MISSING_TIME
+	 * @param latitude
+	 *            latitude, or NaN
+	 * @param longitude
+	 *            longitude, or NaN
+	 * @param bearing
+	 *            bearing, or NaN
+	 * @throws IOException
+	 *             if the archive file could not be grown
+	 */
+	public synchronized void append(String vehicleRef, String lineRef,
+			long recordedAtTime, double latitude, double longitude,
+			double bearing) throws IOException {
+		if (vehicleRef == null) {
+			throw new IllegalArgumentException("vehicleRef is required");
+		}
+		int vehicleId = vehicleIds.id(vehicleRef);
+		int lineId = lineRef == null ? NO_ID : lineIds.id(lineRef);
+		long previous = vehicleId < lastRecord.length ? lastRecord[vehicleId]
+				: NO_RECORD;
+
+		MappedByteBuffer segment = segment(count);
+		int pos = position(count);
+		segment.putInt(pos + VEHICLE_OFFSET, vehicleId);
+		segment.putInt(pos + LINE_OFFSET, lineId);
+		segment.putLong(pos + TIME_OFFSET, recordedAtTime);
+		segment.putDouble(pos + LATITUDE_OFFSET, latitude);
+		segment.putDouble(pos + LONGITUDE_OFFSET, longitude);
+		segment.putDouble(pos + BEARING_OFFSET, bearing);
+		segment.putLong(pos + PREVIOUS_OFFSET, previous);
+
+		index(count, vehicleId, recordedAtTime);
+		count++;
+	}
+
+	/**
+	 * Appends the positions of every row of the given columns that has a
+	 * VehicleRef
+	 *
+	 * @param columns
+	 *            vehicle positions read from a SIRI response
+	 * @throws IOException
+	 *             if the archive file could not be grown
+	 */
+	public synchronized void append(VehiclePositionColumns columns)
+			throws IOException {
+		for (int row = 0; row < columns.size(); row++) {
+			if (columns.getVehicleRef(row) != null) {
+				append(columns.getVehicleRef(row), columns.getLineRef(row),
+						columns.getRecordedAtTime(row),
+						columns.getLatitude(row), columns.getLongitude(row),
+						columns.getBearing(row));
+			}
+		}
+	}
+
+	/**
+	 * Appends the position of the given VehicleActivity, if it has a
+	 * VehicleRef
+	 *
+	 * @param activity
+	 *            a parsed VehicleActivity
+	 * @throws IOException
+	 *             if the archive file could not be grown
+	 */
+	public void append(VehicleActivity activity) throws IOException {
+		if (activity.getMonitoredVehicleJourney() == null
+				|| activity.getMonitoredVehicleJourney().getVehicleRef() == null) {
+			return;
+		}
+		Object latitude = null;
+		Object longitude = null;
+		if (activity.getMonitoredVehicleJourney().getVehicleLocation() != null) {
+			latitude = activity.getMonitoredVehicleJourney()
+					.getVehicleLocation().getLatitude();
+			longitude = activity.getMonitoredVehicleJourney()
+					.getVehicleLocation().getLongitude();
+		}
+		append(activity.getMonitoredVehicleJourney().getVehicleRef()
+				.getValue(),
+				activity.getMonitoredVehicleJourney().getLineRef() == null ? null
+						: activity.getMonitoredVehicleJourney().getLineRef()
+								.getValue(),
+				SiriNumbers.toMillis(activity.getRecordedAtTime()),
+				SiriNumbers.toDouble(latitude),
+				SiriNumbers.toDouble(longitude),
+				SiriNumbers.toDouble(activity.getMonitoredVehicleJourney()
+						.getBearing()));
+	}
+
+	/**
+	 * Returns the positions of a vehicle between two times (both included)
+	 *
+	 * @param vehicleRef
+	 *            MonitoredVehicleJourney.VehicleRef of the vehicle
+	 * @param from
+	 *            start of the time range, in milliseconds since the epoch
+	 * @param to
+	 *            end of the time range, in milliseconds since the epoch
+	 * @return the positions, ordered by RecordedAtTime
+	 * @throws IOException
+	 *             if the archive file could not be read
+	 */
+	public synchronized List<Position> getPositions(String vehicleRef,
+			long from, long to) throws IOException {
+		List<Position> positions = new ArrayList<Position>();
+		int vehicleId = vehicleIds.find(vehicleRef);
+		if (vehicleId < 0 || vehicleId >= lastRecord.length) {
+			return positions;
+		}
+		for (long r = lastRecord[vehicleId]; r != NO_RECORD;) {
+			if (blockMaxSoFar[(int) (r / BLOCK_RECORDS)] < from) {
+				// No record in this block or before it is recent enough
+				break;
+			}
+			MappedByteBuffer segment = segment(r);
+			int pos = position(r);
+			long time = segment.getLong(pos + TIME_OFFSET);
+			if (time != VehiclePositionColumns.MISSING_TIME && time >= from
+					&& time <= to) {
+				positions.add(read(segment, pos));
+			}
+			r = segment.getLong(pos + PREVIOUS_OFFSET);
+		}
+		// The chain runs from the newest record back, so restore the append
+		// order before the (stable) sort
+		Collections.reverse(positions);
+		Collections.sort(positions, BY_TIME);
+		return positions;
+	}
+
+	/**
+	 * Returns the positions of all vehicles between two times (both included)
+	 *
+	 * @param from
+	 *            start of the time range, in milliseconds since the epoch
+	 * @param to
+	 *            end of the time range, in milliseconds since the epoch
+	 * @return the positions, ordered by RecordedAtTime
+	 * @throws IOException
+	 *             if the archive file could not be read
+	 */
+	public synchronized List<Position> getPositions(long from, long to)
+			throws IOException {
+		List<Position> positions = new ArrayList<Position>();
+		int blocks = (int) ((count + BLOCK_RECORDS - 1) / BLOCK_RECORDS);
+		for (int block = 0; block < blocks; block++) {
+			if (blockMax[block] < from || blockMin[block] > to) {
+				continue;
+			}
+			long end = Math.min(count, (long) (block + 1) * BLOCK_RECORDS);
+			for (long r = (long) block * BLOCK_RECORDS; r < end; r++) {
+				MappedByteBuffer segment = segment(r);
+				int pos = position(r);
+				long time = segment.getLong(pos + TIME_OFFSET);
+				if (time != VehiclePositionColumns.MISSING_TIME
+						&& time >= from && time <= to) {
+					positions.add(read(segment, pos));
+				}
+			}
+		}
+		Collections.sort(positions, BY_TIME);
+		return positions;
+	}
+
+	private Position read(MappedByteBuffer segment, int pos) {
+		int lineId = segment.getInt(pos + LINE_OFFSET);
+		return new Position(vehicleIds.name(segment.getInt(pos
+				+ VEHICLE_OFFSET)), lineId == NO_ID ? null
+				: lineIds.name(lineId), segment.getLong(pos + TIME_OFFSET),
+				segment.getDouble(pos + LATITUDE_OFFSET),
+				segment.getDouble(pos + LONGITUDE_OFFSET),
+				segment.getDouble(pos + BEARING_OFFSET));
+	}
+
+	/**
+	 * Returns the number of records in the archive
+	 *
+	 * @return the number of records
+	 */
+	public synchronized long size() {
+		return count;
+	}
+
+	/**
+	 * Makes the appended records durable
+	 *
+	 * @throws IOException
+	 *             if the archive files could not be written
+	 */
+	public synchronized void flush() throws IOException {
+		// Names first, so that stored records never refer to unknown ids
+		savedVehicles = saveNames(vehicleIds, savedVehicles, vehicleWriter);
+		savedLines = saveNames(lineIds, savedLines, lineWriter);
+
+		if (count > savedCount) {
+			int first = (int) (savedCount / SEGMENT_RECORDS);
+			int last = (int) ((count - 1) / SEGMENT_RECORDS);
+			for (int i = first; i <= last; i++) {
+				segments.get(i).force();
+			}
+			header.putLong(COUNT_OFFSET, count);
+			header.force();
+			savedCount = count;
+		}
+	}
+
+	private static int saveNames(IdDictionary ids, int saved, Writer writer)
+			throws IOException {
+		int size = ids.size();
+		for (int id = saved; id < size; id++) {
+			writer.write(ids.name(id));
+			writer.write('\n');
+		}
+		writer.flush();
+		return size;
+	}
+
+	/**
+	 * Flushes and closes the archive
+	 *
+	 * @throws IOException
+	 *             if the archive files could not be written
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			vehicleWriter.close();
+			lineWriter.close();
+			file.close();
+		}
+	}
+
+	/**
+	 * Adds the positions in SIRI files to an archive, or queries the positions
+	 * of a vehicle in an archive
+	 *
+	 * @param args
+	 *            path to the archive directory, followed by "add" and paths to
+	 *            SIRI XML or JSON files, or by "query", a VehicleRef, and the
+	 *            start and end of the time range as SIRI timestamps (e.g.,
+	 *            2012-09-19T08:00:00.000-04:00)
+	 */
+	public static void main(String[] args) {
+		if (args.length < 3
+				|| !(args[1].equals("add") || (args[1].equals("query") && args.length == 5))) {
+			System.out
+					.println("Proper Usage is: java SiriPositionArchive path-to-archive-directory add path-to-siri-file ...");
+			System.out
+					.println("   or: java SiriPositionArchive path-to-archive-directory query vehicle-ref from to");
+			System.exit(0);
+		}
+
+		SiriPositionArchive archive = null;
+		try {
+			archive = open(new File(args[0]));
+			if (args[1].equals("add")) {
+				for (int i = 2; i < args.length; i++) {
+					ObjectMapper mapper = FilenameUtils.getExtension(args[i])
+							.equalsIgnoreCase("xml") ? SiriUtils
+							.createXmlMapper() : SiriUtils.createObjectMapper();
+					archive.append(VehiclePositionColumns.read(
+							new File(args[i]), mapper));
+				}
+				archive.flush();
+				System.out.println("Archive has " + archive.size()
+						+ " positions.");
+			} else {
+				SiriDateDeserializer dateParser = new SiriDateDeserializer();
+				long from = dateParser.parseMillis(args[3]);
+				long to = dateParser.parseMillis(args[4]);
+				if (from == SiriDateDeserializer.INVALID
+						|| to == SiriDateDeserializer.INVALID) {
+					System.err.println("Invalid time range: " + args[3]
+							+ " to " + args[4]);
+					return;
+				}
+				long startTime = System.nanoTime();
+				List<Position> positions = archive.getPositions(args[2], from,
+						to);
+				long queryTime = System.nanoTime() - startTime;
+				for (Position p : positions) {
+					System.out.println(new Date(p.getRecordedAtTime()) + " "
+							+ p.getLineRef() + " " + p.getLatitude() + ","
+							+ p.getLongitude() + " bearing " + p.getBearing());
+				}
+				System.out.println(positions.size() + " positions found in "
+						+ SiriUtils.df.format(queryTime / 1000000.0) + " ms.");
+			}
+		} catch (IOException e) {
+			System.err.println("Error using archive: " + e);
+			e.printStackTrace();
+		} finally {
+			if (archive != null) {
+				try {
+					archive.close();
+				} catch (IOException e) {
+					System.err.println("Error closing archive: " + e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,525 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FilenameUtils;
+
+import uk.org.siri.siri.Siri;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Replays an archive of captured SIRI responses (a directory of XML and JSON
+ * files) to a SiriDocumentConsumer, at the pace at which they were originally
+ * produced or at a multiple of it (e.g., 10x).
+ *
+ * The files are ordered by their ServiceDelivery.ResponseTimestamp, which is
+ * read from the start of each file without binding it. A background thread
+ * parses the files ahead of their scheduled time, keeping at most a bounded
+ * number of parsed documents in memory. Each document is delivered at its
+ * scheduled time - the time of the first document plus the (scaled)
+ * difference between the two ResponseTimestamp values.
+ *
+ * A document that can't be delivered within the deadline after its scheduled
+ * time (because parsing or the consumer is falling behind) is dropped, as a
+ * real-time feed would be. The Report of a replay gives the lag, throughput,
+ * and dropped documents.
+ *
+ */
+public class SiriReplayDriver {
+
+	private static final String RESPONSE_TIMESTAMP = "ResponseTimestamp";
+	private static final String SERVICE_DELIVERY = "ServiceDelivery";
+
+	/**
+	 * How often (in milliseconds) a replay waiting for the next document
+	 * checks that the prefetch thread is still running
+	 */
+	private static final long PREFETCH_CHECK_INTERVAL = 100;
+
+	private static final String USAGE = "Proper Usage is: java SiriReplayDriver path-to-archive-directory speed [prefetch] [deadline-ms]";
+
+	/**
+	 * Results of a replay
+	 */
+	public static final class Report {
+		private int delivered;
+		private int dropped;
+		private final Map<String, IOException> failures = new LinkedHashMap<String, IOException>();
+		private long deliveredBytes;
+		private long lagSum;
+		private long maxLag;
+		private long elapsedTime;
+		private long archiveSpan;
+
+		/**
+		 * @return the number of documents delivered to the consumer
+		 */
+		public int getDelivered() {
+			return delivered;
+		}
+
+		/**
+		 * @return the number of documents dropped because they missed their
+		 *         deadline
+		 */
+		public int getDropped() {
+			return dropped;
+		}
+
+		/**
+		 * @return the documents that could not be read or parsed, or that the
+		 *         consumer failed on, by path, with the reason
+		 */
+		public Map<String, IOException> getFailures() {
+			return Collections.unmodifiableMap(failures);
+		}
+
+		/**
+		 * @return the average time between the scheduled time and the actual
+		 *         delivery of the delivered documents (in nanoseconds)
+		 */
+		public double getAverageLag() {
+			return delivered == 0 ? 0 : (double) lagSum / delivered;
+		}
+
+		/**
+		 * @return the longest time between the scheduled time and the actual
+		 *         delivery of a delivered document (in nanoseconds)
+		 */
+		public long getMaxLag() {
+			return maxLag;
+		}
+
+		/**
+		 * @return the time that the replay took (in nanoseconds)
+		 */
+		public long getElapsedTime() {
+			return elapsedTime;
+		}
+
+		/**
+		 * @return the time between the first and the last ResponseTimestamp in
+		 *         the archive (in milliseconds)
+		 */
+		public long getArchiveSpan() {
+			return archiveSpan;
+		}
+
+		/**
+		 * @return the number of delivered documents per second
+		 */
+		public double getDocumentsPerSecond() {
+			return elapsedTime == 0 ? 0 : delivered * 1e9 / elapsedTime;
+		}
+
+		/**
+		 * @return the number of delivered bytes (of the original files) per
+		 *         second
+		 */
+		public double getBytesPerSecond() {
+			return elapsedTime == 0 ? 0 : deliveredBytes * 1e9 / elapsedTime;
+		}
+	}
+
+	/**
+	 * A file of the archive and its ResponseTimestamp
+	 */
+	private static final class ScheduledFile {
+		final File file;
+		final long timestamp;
+
+		ScheduledFile(File file, long timestamp) {
+			this.file = file;
+			this.timestamp = timestamp;
+		}
+	}
+
+	/**
+	 * A file parsed ahead of its scheduled time
+	 */
+	private static final class ParsedFile {
+		final ScheduledFile scheduled;
+		final Siri siri;
+		final IOException error;
+
+		ParsedFile(ScheduledFile scheduled, Siri siri, IOException error) {
+			this.scheduled = scheduled;
+			this.siri = siri;
+			this.error = error;
+		}
+	}
+
+	private final File archive;
+	private final SiriDocumentConsumer consumer;
+	private final ObjectMapper xmlMapper;
+	private final ObjectMapper jsonMapper;
+
+	private double speed = 1;
+	private int prefetch = 16;
+	private long deadline = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Creates a driver for the given archive
+	 *
+	 * @param archive
+	 *            directory of captured SIRI XML (*.xml) and JSON (*.json)
+	 *            files
+	 * @param consumer
+	 *            receives the parsed documents
+	 */
+	public SiriReplayDriver(File archive, SiriDocumentConsumer consumer) {
+		this(archive, consumer, SiriUtils.createXmlMapper(), SiriUtils
+				.createObjectMapper());
+	}
+
+	/**
+	 * Creates a driver for the given archive
+	 *
+	 * @param archive
+	 *            directory of captured SIRI XML (*.xml) and JSON (*.json)
+	 *            files
+	 * @param consumer
+	 *            receives the parsed documents
+	 * @param xmlMapper
+	 *            XmlMapper configured for SIRI
+	 * @param jsonMapper
+	 *            ObjectMapper configured for SIRI
+	 */
+	public SiriReplayDriver(File archive, SiriDocumentConsumer consumer,
+			ObjectMapper xmlMapper, ObjectMapper jsonMapper) {
+		this.archive = archive;
+		this.consumer = consumer;
+		this.xmlMapper = xmlMapper;
+		this.jsonMapper = jsonMapper;
+	}
+
+	/**
+	 * Sets the pace of the replay
+	 *
+	 * @param speed
+	 *            multiple of the original pace (e.g., 1, 10, or 100), or 0 to
+	 *            deliver the documents as fast as possible
+	 */
+	public void setSpeed(double speed) {
+		this.speed = speed;
+	}
+
+	/**
+	 * Sets the number of documents that are parsed ahead of their scheduled
+	 * time (16 by default)
+	 *
+	 * @param documents
+	 *            maximum number of parsed documents waiting for delivery (at
+	 *            least 1)
+	 */
+	public void setPrefetch(int documents) {
+		if (documents < 1) {
+			throw new IllegalArgumentException(
+					"At least one document must be prefetched");
+		}
+		this.prefetch = documents;
+	}
+
+	/**
+	 * Sets the time after its scheduled time by which a document must be
+	 * delivered, or else it is dropped (1 second by default)
+	 *
+	 * @param millis
+	 *            deadline in milliseconds, or -1 to never drop documents
+	 */
+	public void setDeadline(long millis) {
+		this.deadline = millis < 0 ? -1 : TimeUnit.MILLISECONDS
+				.toNanos(millis);
+	}
+
+	/**
+	 * Replays the archive, returning when every document has been delivered
+	 * or dropped. An Error on the prefetch thread (e.g., a StackOverflowError
+	 * while binding a deeply nested document) ends the replay and is rethrown
+	 * here.
+	 *
+	 * @return the results of the replay
+	 * @throws IOException
+	 *             if the archive directory could not be listed
+	 * @throws InterruptedException
+	 *             if the thread is interrupted during the replay
+	 */
+	public Report replay() throws IOException, InterruptedException {
+		Report report = new Report();
+		final List<ScheduledFile> schedule = schedule(report);
+		if (schedule.isEmpty()) {
+			return report;
+		}
+		long firstTimestamp = schedule.get(0).timestamp;
+		report.archiveSpan = schedule.get(schedule.size() - 1).timestamp
+				- firstTimestamp;
+
+		final BlockingQueue<ParsedFile> queue = new ArrayBlockingQueue<ParsedFile>(
+				prefetch);
+		ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+		Future<?> prefetching = prefetcher.submit(new Runnable() {
+			public void run() {
+				try {
+					for (ScheduledFile scheduled : schedule) {
+						queue.put(parse(scheduled));
+					}
+				} catch (InterruptedException e) {
+					// The replay has ended
+				}
+			}
+		});
+
+		long startTime = System.nanoTime();
+		long scheduleStart = 0;
+		try {
+			for (int i = 0; i < schedule.size(); i++) {
+				ParsedFile parsed = take(queue, prefetching);
+				String source = parsed.scheduled.file.getPath();
+				if (i == 0) {
+					// The schedule starts when the first document is ready
+					scheduleStart = System.nanoTime();
+				}
+
+				long due = speed <= 0 ? System.nanoTime() : scheduleStart
+						+ (long) ((parsed.scheduled.timestamp - firstTimestamp)
+								* 1000000.0 / speed);
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+
+				if (parsed.error != null) {
+					report.failures.put(source, parsed.error);
+					continue;
+				}
+				long lag = Math.max(0, System.nanoTime() - due);
+				if (deadline >= 0 && lag > deadline) {
+					report.dropped++;
+					continue;
+				}
+
+				try {
+					consumer.consume(source, parsed.siri);
+				} catch (IOException e) {
+					report.failures.put(source, e);
+					continue;
+				}
+				report.delivered++;
+				report.deliveredBytes += parsed.scheduled.file.length();
+				report.lagSum += lag;
+				report.maxLag = Math.max(report.maxLag, lag);
+			}
+		} finally {
+			prefetcher.shutdownNow();
+		}
+		report.elapsedTime = System.nanoTime() - startTime;
+		return report;
+	}
+
+	/**
+	 * Waits for the next parsed document. If the prefetch thread has ended
+	 * without it, whatever ended the thread is rethrown, rather than waiting
+	 * forever for a document that won't come.
+	 */
+	private static ParsedFile take(BlockingQueue<ParsedFile> queue,
+			Future<?> prefetching) throws InterruptedException {
+		while (true) {
+			ParsedFile parsed = queue.poll(PREFETCH_CHECK_INTERVAL,
+					TimeUnit.MILLISECONDS);
+			if (parsed != null) {
+				return parsed;
+			}
+			if (prefetching.isDone()) {
+				// The last document may have been added just before the
+				// thread ended
+				parsed = queue.poll();
+				if (parsed != null) {
+					return parsed;
+				}
+				try {
+					prefetching.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}
+					throw (Error) cause;
+				}
+				throw new IllegalStateException(
+						"The prefetch thread ended before the last document");
+			}
+		}
+	}
+
+	/**
+	 * Lists the files of the archive, ordered by their ResponseTimestamp
+	 */
+	private List<ScheduledFile> schedule(Report report) throws IOException {
+		File[] files = archive.listFiles();
+		if (files == null) {
+			throw new IOException("Can't list the files of " + archive);
+		}
+		List<ScheduledFile> schedule = new ArrayList<ScheduledFile>();
+		for (File file : files) {
+			String extension = FilenameUtils.getExtension(file.getName());
+			if (!file.isFile()
+					|| !(extension.equalsIgnoreCase("xml") || extension
+							.equalsIgnoreCase("json"))) {
+				continue;
+			}
+			try {
+				long timestamp = readResponseTimestamp(file);
+				if (timestamp == VehiclePositionColumns.MISSING_TIME) {
+					throw new IOException("No valid " + RESPONSE_TIMESTAMP
+							+ " in " + file);
+				}
+				schedule.add(new ScheduledFile(file, timestamp));
+			} catch (IOException e) {
+				report.failures.put(file.getPath(), e);
+			}
+		}
+		Collections.sort(schedule, new Comparator<ScheduledFile>() {
+			public int compare(ScheduledFile a, ScheduledFile b) {
+				if (a.timestamp != b.timestamp) {
+					return a.timestamp < b.timestamp ? -1 : 1;
+				}
+				return a.file.getName().compareTo(b.file.getName());
+			}
+		});
+		return schedule;
+	}
+
+	/**
+	 * Reads the ServiceDelivery.ResponseTimestamp from the start of a file,
+	 * falling back to the first ResponseTimestamp in the file
+	 *
+	 * @return the timestamp in milliseconds since the epoch, or
+	 *         VehiclePositionColumns.MISSING_TIME if there is none
+	 */
+	private long readResponseTimestamp(File file) throws IOException {
+		ObjectMapper mapper = mapperFor(file);
+		long timestamp = SiriUtils.readTimestamp(file, mapper,
+				SERVICE_DELIVERY, RESPONSE_TIMESTAMP);
+		if (timestamp == VehiclePositionColumns.MISSING_TIME) {
+			timestamp = SiriUtils.readTimestamp(file, mapper, null,
+					RESPONSE_TIMESTAMP);
+		}
+		return timestamp;
+	}
+
+	private ParsedFile parse(ScheduledFile scheduled) {
+		try {
+			return new ParsedFile(scheduled, mapperFor(scheduled.file)
+					.readValue(scheduled.file, Siri.class), null);
+		} catch (IOException e) {
+			return new ParsedFile(scheduled, null, e);
+		} catch (RuntimeException e) {
+			// A binding bug must not end the prefetch thread, or the replay
+			// would wait forever for the document
+			return new ParsedFile(scheduled, null, new IOException(e));
+		}
+	}
+
+	private ObjectMapper mapperFor(File file) {
+		return FilenameUtils.getExtension(file.getName()).equalsIgnoreCase(
+				"xml") ? xmlMapper : jsonMapper;
+	}
+
+	/**
+	 * Replays an archive of SIRI files to a consumer that discards them, and
+	 * prints the results
+	 *
+	 * @param args
+	 *            path to the archive directory, speed (e.g., 1, 10, or 100,
+	 *            or 0 for as fast as possible), and optionally the number of
+	 *            prefetched documents and the deadline in milliseconds
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println(USAGE);
+			System.exit(0);
+		}
+
+		SiriReplayDriver driver = new SiriReplayDriver(new File(args[0]),
+				new SiriDocumentConsumer() {
+					public void consume(String source, Siri siri) {
+					}
+				});
+		try {
+			driver.setSpeed(Double.parseDouble(args[1]));
+			if (args.length > 2) {
+				driver.setPrefetch(Integer.parseInt(args[2]));
+			}
+			if (args.length > 3) {
+				driver.setDeadline(Long.parseLong(args[3]));
+			}
+		} catch (IllegalArgumentException e) {
+			// Not a number, or no documents to prefetch
+			System.out.println(USAGE);
+			System.exit(0);
+		}
+
+		try {
+			Report report = driver.replay();
+			for (Map.Entry<String, IOException> failure : report.getFailures()
+					.entrySet()) {
+				System.err.println("Error replaying " + failure.getKey() + ": "
+						+ failure.getValue());
+			}
+			System.out.println("Replayed "
+					+ SiriUtils.df.format(report.getArchiveSpan() / 1000.0)
+					+ " s of archive in "
+					+ SiriUtils.df.format(report.getElapsedTime() / 1e9)
+					+ " s.");
+			System.out.println("Delivered: " + report.getDelivered()
+					+ ", dropped: " + report.getDropped() + ", failed: "
+					+ report.getFailures().size());
+			System.out.println("Lag: average "
+					+ SiriUtils.df.format(report.getAverageLag() / 1000000.0)
+					+ " ms, max "
+					+ SiriUtils.df.format(report.getMaxLag() / 1000000.0)
+					+ " ms.");
+			System.out.println("Throughput: "
+					+ SiriUtils.df.format(report.getDocumentsPerSecond())
+					+ " documents/s, "
+					+ SiriUtils.df.format(report.getBytesPerSecond() / 1e6)
+					+ " MB/s.");
+		} catch (IOException e) {
+			System.err.println("Error reading archive: " + e);
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FilenameUtils;
+
+import uk.org.siri.siri.MonitoredStopVisit;
+import uk.org.siri.siri.PtSituationElement;
+import uk.org.siri.siri.ServiceDelivery;
+import uk.org.siri.siri.Siri;
+import uk.org.siri.siri.SituationExchangeDelivery;
+import uk.org.siri.siri.StopMonitoringDelivery;
+import uk.org.siri.siri.VehicleActivity;
+import uk.org.siri.siri.VehicleMonitoringDelivery;
+
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+
+/**
+ * Reads a SIRI response in a single pass, isolating binding errors to the
+ * smallest enclosing VehicleActivity, MonitoredStopVisit, or
+ * PtSituationElement. An element that can't be bound (e.g., because of an
+ * invalid date or an unknown enumeration value) is left out of the returned
+ * Siri object and reported as a Failure, and the rest of the document is
+ * read as usual.
+ *
+ * The tokens of each of these elements are buffered as the document is read
+ * and bound on their own, while the tokens of the rest of the document are
+ * buffered into a "skeleton" without them. Once the end of the document is
+ * reached, the skeleton is bound and the bound elements are added to their
+ * deliveries. The document is parsed only once.
+ *
+ * Syntax errors (e.g., a truncated document) can't be isolated, since the
+ * parser can't find the end of the element, and neither can binding errors
+ * outside of these elements. Both are thrown as an IOException.
+ *
+ * XML elements are bound by converting their buffered tokens to the JSON
+ * shape (see SiriXmlToJsonTranscoder) and binding them with a SIRI JSON
+ * ObjectMapper, since the XML deserializers only work on a live XML parser.
+ *
+ */
+public class SiriResilientReader {
+
+	static final String MONITORED_STOP_VISIT = "MonitoredStopVisit";
+	static final String PT_SITUATION_ELEMENT = "PtSituationElement";
+
+	private static final String VEHICLE_MONITORING_DELIVERY = "VehicleMonitoringDelivery";
+	private static final String STOP_MONITORING_DELIVERY = "StopMonitoringDelivery";
+	private static final String SITUATION_EXCHANGE_DELIVERY = "SituationExchangeDelivery";
+
+	/**
+	 * Binds elements that were converted from XML
+	 */
+	private static final class TranscodedMapperHolder {
+		static final ObjectMapper MAPPER = SiriUtils.createObjectMapper();
+	}
+
+	/**
+	 * A VehicleActivity, MonitoredStopVisit, or PtSituationElement that could
+	 * not be bound
+	 */
+	public static final class Failure {
+		private final String elementName;
+		private final int index;
+		private final JsonLocation location;
+		private final String message;
+
+		Failure(String elementName, int index, JsonLocation location,
+				String message) {
+			this.elementName = elementName;
+			this.index = index;
+			this.location = location;
+			this.message = message;
+		}
+
+		/**
+		 * @return the name of the element that could not be bound
+		 */
+		public String getElementName() {
+			return elementName;
+		}
+
+		/**
+		 * @return the position of the element among the elements with the
+		 *         same name in the document, starting at 0
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return the location of the start of the element in the document
+		 */
+		public JsonLocation getLocation() {
+			return location;
+		}
+
+		/**
+		 * @return the message of the exception thrown while binding the
+		 *         element
+		 */
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			return elementName + " #" + index + " (line "
+					+ location.getLineNr() + ", column "
+					+ location.getColumnNr() + "): " + message;
+		}
+	}
+
+	/**
+	 * The parsed document, along with the elements that were left out of it
+	 */
+	public static final class Result {
+		private final Siri siri;
+		private final int boundCount;
+		private final List<Failure> failures;
+
+		Result(Siri siri, int boundCount, List<Failure> failures) {
+			this.siri = siri;
+			this.boundCount = boundCount;
+			this.failures = Collections.unmodifiableList(failures);
+		}
+
+		/**
+		 * @return the parsed document, without the elements that could not be
+		 *         bound
+		 */
+		public Siri getSiri() {
+			return siri;
+		}
+
+		/**
+		 * @return the number of VehicleActivity, MonitoredStopVisit, and
+		 *         PtSituationElement elements that were bound
+		 */
+		public int getBoundCount() {
+			return boundCount;
+		}
+
+		/**
+		 * @return the elements that could not be bound, in document order
+		 */
+		public List<Failure> getFailures() {
+			return failures;
+		}
+	}
+
+	/**
+	 * Elements of one kind that were bound, grouped by the ordinal of their
+	 * delivery
+	 */
+	private static final class Elements<T> {
+		final String name;
+		final String deliveryName;
+		final SiriSchema schema;
+		final ObjectReader reader;
+		final List<List<T>> byDelivery = new ArrayList<List<T>>();
+		int deliveries = 0;
+		int seen = 0;
+		int count = 0;
+
+		Elements(String name, String deliveryName, Class<T> type,
+				ObjectMapper jsonMapper) {
+			this.name = name;
+			this.deliveryName = deliveryName;
+			this.schema = SiriSchema.forClass(type);
+			// Elements aren't wrapped in a root name like the full JSON
+			// document is
+			this.reader = jsonMapper.reader(type).without(
+					DeserializationFeature.UNWRAP_ROOT_VALUE);
+		}
+
+		void add(T element) {
+			int delivery = deliveries - 1;
+			if (delivery < 0) {
+				// Not in a delivery, so there's no list to add it to
+				return;
+			}
+			while (byDelivery.size() <= delivery) {
+				byDelivery.add(new ArrayList<T>());
+			}
+			byDelivery.get(delivery).add(element);
+			count++;
+		}
+
+		List<T> get(int delivery) {
+			return delivery < byDelivery.size() ? byDelivery.get(delivery)
+					: Collections.<T> emptyList();
+		}
+	}
+
+	private final ObjectMapper mapper;
+	private final boolean xml;
+	private final ObjectMapper jsonMapper;
+
+	/**
+	 * Creates a reader for the given mapper
+	 *
+	 * @param mapper
+	 *            XmlMapper (for XML) or ObjectMapper (for JSON) configured for
+	 *            SIRI
+	 */
+	public SiriResilientReader(ObjectMapper mapper) {
+		this.mapper = mapper;
+		this.xml = mapper instanceof XmlMapper;
+		this.jsonMapper = xml ? TranscodedMapperHolder.MAPPER : mapper;
+	}
+
+	/**
+	 * Reads the given SIRI file
+	 *
+	 * @param file
+	 *            SIRI XML or JSON file
+	 * @return the parsed document, and the elements that were left out of it
+	 * @throws IOException
+	 *             if the file could not be read, or if an error could not be
+	 *             isolated to a single element
+	 */
+	public Result read(File file) throws IOException {
+		return read(mapper.getFactory().createJsonParser(file));
+	}
+
+	/**
+	 * Reads the given SIRI document. The stream is closed when this method
+	 * returns.
+	 *
+	 * @param in
+	 *            SIRI XML or JSON document
+	 * @return the parsed document, and the elements that were left out of it
+	 * @throws IOException
+	 *             if the document could not be read, or if an error could not
+	 *             be isolated to a single element
+	 */
+	public Result read(InputStream in) throws IOException {
+		return read(mapper.getFactory().createJsonParser(in));
+	}
+
+	private Result read(JsonParser jp) throws IOException {
+		Elements<VehicleActivity> activities = new Elements<VehicleActivity>(
+				LazySiriDocument.VEHICLE_ACTIVITY, VEHICLE_MONITORING_DELIVERY,
+				VehicleActivity.class, jsonMapper);
+		Elements<MonitoredStopVisit> visits = new Elements<MonitoredStopVisit>(
+				MONITORED_STOP_VISIT, STOP_MONITORING_DELIVERY,
+				MonitoredStopVisit.class, jsonMapper);
+		Elements<PtSituationElement> situations = new Elements<PtSituationElement>(
+				PT_SITUATION_ELEMENT, SITUATION_EXCHANGE_DELIVERY,
+				PtSituationElement.class, jsonMapper);
+		List<Failure> failures = new ArrayList<Failure>();
+
+		TokenBuffer skeleton = new TokenBuffer(mapper);
+		try {
+			// Names of the enclosing objects and arrays. Objects in an array
+			// are named after the array, as they are in the XML.
+			String[] names = new String[16];
+			boolean[] arrays = new boolean[16];
+			int depth = 0;
+			String name = null;
+
+			JsonToken t;
+			while ((t = jp.nextToken()) != null) {
+				switch (t) {
+				case FIELD_NAME:
+					name = jp.getCurrentName();
+					Elements<?> elements = elementsNamed(name, activities,
+							visits, situations);
+					if (elements != null) {
+						// Leave the element out of the skeleton
+						readElements(jp, elements, failures);
+						name = null;
+						continue;
+					}
+					break;
+				case START_OBJECT:
+				case START_ARRAY:
+					if (depth == names.length) {
+						names = Arrays.copyOf(names, depth * 2);
+						arrays = Arrays.copyOf(arrays, depth * 2);
+					}
+					names[depth] = name;
+					arrays[depth++] = t == JsonToken.START_ARRAY;
+					if (t == JsonToken.START_OBJECT && name != null) {
+						countDelivery(name, activities, visits, situations);
+					}
+					break;
+				case END_OBJECT:
+				case END_ARRAY:
+					depth--;
+					name = depth > 0 && arrays[depth - 1] ? names[depth - 1]
+							: null;
+					break;
+				default:
+					name = depth > 0 && arrays[depth - 1] ? names[depth - 1]
+							: null;
+				}
+				skeleton.copyCurrentEvent(jp);
+			}
+		} finally {
+			jp.close();
+		}
+
+		Siri siri = bindSkeleton(skeleton);
+		ServiceDelivery sd = siri.getServiceDelivery();
+		if (sd != null) {
+			List<VehicleMonitoringDelivery> vmds = sd
+					.getVehicleMonitoringDelivery();
+			for (int i = 0; vmds != null && i < vmds.size(); i++) {
+				vmds.get(i).getVehicleActivity().addAll(activities.get(i));
+			}
+			List<StopMonitoringDelivery> smds = sd.getStopMonitoringDelivery();
+			for (int i = 0; smds != null && i < smds.size(); i++) {
+				smds.get(i).getMonitoredStopVisit().addAll(visits.get(i));
+			}
+			List<SituationExchangeDelivery> seds = sd
+					.getSituationExchangeDelivery();
+			for (int i = 0; seds != null && i < seds.size(); i++) {
+				if (seds.get(i).getSituations() != null) {
+					seds.get(i).getSituations().getPtSituationElement()
+							.addAll(situations.get(i));
+				}
+			}
+		}
+		return new Result(siri, activities.count + visits.count
+				+ situations.count, failures);
+	}
+
+	private static Elements<?> elementsNamed(String name, Elements<?>... all) {
+		for (Elements<?> elements : all) {
+			if (elements.name.equals(name)) {
+				return elements;
+			}
+		}
+		return null;
+	}
+
+	private static void countDelivery(String name, Elements<?>... all) {
+		for (Elements<?> elements : all) {
+			if (elements.deliveryName.equals(name)) {
+				elements.deliveries++;
+			}
+		}
+	}
+
+	/**
+	 * Reads the value of an element field: an array of elements (JSON), or a
+	 * single element (XML, or JSON without an array). Ends with the parser at
+	 * the last token of the value.
+	 */
+	private <T> void readElements(JsonParser jp, Elements<T> elements,
+			List<Failure> failures) throws IOException {
+		JsonToken t = jp.nextToken();
+		if (t == JsonToken.START_ARRAY) {
+			for (t = jp.nextToken(); t != null && t != JsonToken.END_ARRAY; t = jp
+					.nextToken()) {
+				if (t == JsonToken.START_OBJECT) {
+					readElement(jp, elements, failures);
+				} else {
+					jp.skipChildren();
+				}
+			}
+		} else if (t == JsonToken.START_OBJECT) {
+			readElement(jp, elements, failures);
+		} else {
+			// Empty XML element, or null
+			jp.skipChildren();
+		}
+	}
+
+	/**
+	 * Buffers one element, starting with the parser at its START_OBJECT token
+	 * and ending at its END_OBJECT token, and binds it
+	 */
+	private <T> void readElement(JsonParser jp, Elements<T> elements,
+			List<Failure> failures) throws IOException {
+		int index = elements.seen++;
+		JsonLocation location = jp.getCurrentLocation();
+
+		TokenBuffer buffer = new TokenBuffer(mapper);
+		if (xml) {
+			SiriXmlToJsonTranscoder.copyObject(jp, buffer, elements.schema);
+		} else {
+			buffer.copyCurrentStructure(jp);
+		}
+
+		try {
+			JsonParser elementParser = buffer.asParser();
+			elementParser.nextToken();
+			T element = elements.reader.readValue(elementParser);
+			elements.add(element);
+		} catch (IOException e) {
+			failures.add(new Failure(elements.name, index, location, e
+					.getMessage()));
+		} catch (RuntimeException e) {
+			failures.add(new Failure(elements.name, index, location, e
+					.toString()));
+		}
+	}
+
+	private Siri bindSkeleton(TokenBuffer skeleton) throws IOException {
+		JsonParser jp = skeleton.asParser();
+		if (!xml) {
+			return mapper.readValue(jp, Siri.class);
+		}
+		if (jp.nextToken() != JsonToken.START_OBJECT) {
+			throw new IOException("Expected a "
+					+ SiriXmlToJsonTranscoder.ROOT_NAME + " element");
+		}
+		// The JSON format wraps the document in a root name, while the XML
+		// parser doesn't report the root element
+		TokenBuffer json = new TokenBuffer(jsonMapper);
+		json.writeStartObject();
+		json.writeFieldName(SiriXmlToJsonTranscoder.ROOT_NAME);
+		SiriXmlToJsonTranscoder.copyObject(jp, json,
+				SiriSchema.forClass(Siri.class));
+		json.writeEndObject();
+		return jsonMapper.readValue(json.asParser(), Siri.class);
+	}
+
+	/**
+	 * Reads a SIRI file, printing the elements that could not be bound
+	 *
+	 * @param args
+	 *            path to the SIRI XML or JSON file to parse
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out
+					.println("Proper Usage is: java SiriResilientReader path-to-siri-file-to-parse");
+			System.exit(0);
+		}
+
+		File file = new File(args[0]);
+		ObjectMapper mapper = FilenameUtils.getExtension(args[0])
+				.equalsIgnoreCase("xml") ? SiriUtils.createXmlMapper()
+				: SiriUtils.createObjectMapper();
+		SiriResilientReader reader = new SiriResilientReader(mapper);
+
+		try {
+			long startTime = System.nanoTime();
+			Result result = reader.read(file);
+			long time = System.nanoTime() - startTime;
+
+			for (Failure failure : result.getFailures()) {
+				System.out.println("Skipped " + failure);
+			}
+			System.out.println("Bound " + result.getBoundCount()
+					+ " elements, skipped " + result.getFailures().size()
+					+ " in " + SiriUtils.df.format(time / 1000000.0) + " ms.");
+		} catch (IOException e) {
+			System.err.println("Error parsing input file: " + e);
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy.PropertyNamingStrategyBase;
+
+/**
+ * Describes the element names of a SIRI POJO class, as they appear in SIRI
+ * XML and JSON, based on the getters of the class.
+ *
+ * This lets streaming code that never binds POJOs apply the same rules as the
+ * mappers created by SiriUtils - which XML elements are repeated ("unwrapped")
+ * list entries, which elements hold numbers or booleans, and how names differ
+ * between XML and JSON (e.g., "xml:lang" in XML vs. "Lang" in JSON).
+ *
+ */
+final class SiriSchema {
+
+	/**
+	 * Name Jackson uses for the text content of an XML element that also has
+	 * attributes (see JacksonXmlModule.setXMLTextElementName() in SiriUtils)
+	 */
+	static final String XML_TEXT_ELEMENT_NAME = "Value";
+
+	/**
+	 * The kind of JSON value a property is written as
+	 */
+	enum Kind {
+		OBJECT, STRING, NUMBER, BOOLEAN
+	}
+
+	/**
+	 * A single property (i.e., child element or attribute) of a SIRI POJO
+	 */
+	static final class Property {
+		private final String xmlName;
+		private final String jsonName;
+		private final Class<?> type;
+		private final boolean list;
+		private final Kind kind;
+
+		Property(String xmlName, String jsonName, Class<?> type, boolean list) {
+			this.xmlName = xmlName;
+			this.jsonName = jsonName;
+			this.type = type;
+			this.list = list;
+			this.kind = kindOf(type);
+		}
+
+		String getXmlName() {
+			return xmlName;
+		}
+
+		String getJsonName() {
+			return jsonName;
+		}
+
+		/**
+		 * Returns the type of the property, or the type of the list entries
+		 * for list properties
+		 */
+		Class<?> getType() {
+			return type;
+		}
+
+		boolean isList() {
+			return list;
+		}
+
+		Kind getKind() {
+			return kind;
+		}
+
+		/**
+		 * Returns the schema of the property type, or null if the property
+		 * isn't an object
+		 */
+		SiriSchema getSchema() {
+			return kind == Kind.OBJECT ? forClass(type) : null;
+		}
+	}
+
+	private static final PropertyNamingStrategyBase XML_NAMING = new CustomPascalCaseStrategy();
+	private static final PropertyNamingStrategyBase JSON_NAMING = new PropertyNamingStrategy.PascalCaseStrategy();
+
+	private static final Map<Class<?>, SiriSchema> SCHEMAS = new ConcurrentHashMap<Class<?>, SiriSchema>();
+
+	private final Class<?> type;
+	private final Map<String, Property> byXmlName = new HashMap<String, Property>();
+	private final Map<String, Property> byJsonName = new HashMap<String, Property>();
+
+	private SiriSchema(Class<?> type) {
+		this.type = type;
+
+		for (Method m : type.getMethods()) {
+			if (Modifier.isStatic(m.getModifiers())
+					|| m.getParameterTypes().length != 0
+					|| m.getDeclaringClass() == Object.class) {
+				continue;
+			}
+			String beanName = beanName(m);
+			if (beanName == null) {
+				continue;
+			}
+
+			Class<?> propertyType = m.getReturnType();
+			boolean list = false;
+			if (propertyType.isArray()) {
+				propertyType = propertyType.getComponentType();
+				list = true;
+			} else if (Collection.class.isAssignableFrom(propertyType)) {
+				propertyType = elementType(m.getGenericReturnType());
+				list = true;
+			}
+
+			Property p = new Property(XML_NAMING.translate(beanName),
+					JSON_NAMING.translate(beanName), propertyType, list);
+			byXmlName.put(p.getXmlName(), p);
+			byJsonName.put(p.getJsonName(), p);
+		}
+	}
+
+	/**
+	 * Returns the schema for the given SIRI POJO class
+	 *
+	 * @param type
+	 *            SIRI POJO class (e.g., Siri.class)
+	 * @return the schema for the class
+	 */
+	static SiriSchema forClass(Class<?> type) {
+		SiriSchema schema = SCHEMAS.get(type);
+		if (schema == null) {
+			// Racing threads may build the same schema twice, which is harmless
+			schema = new SiriSchema(type);
+			SCHEMAS.put(type, schema);
+		}
+		return schema;
+	}
+
+	Class<?> getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the property with the given XML element or attribute name, or
+	 * null if the class has no such property
+	 */
+	Property getXmlProperty(String xmlName) {
+		return byXmlName.get(xmlName);
+	}
+
+	/**
+	 * Returns the property with the given JSON field name, or null if the
+	 * class has no such property
+	 */
+	Property getJsonProperty(String jsonName) {
+		return byJsonName.get(jsonName);
+	}
+
+	Collection<Property> getProperties() {
+		return Collections.unmodifiableCollection(byXmlName.values());
+	}
+
+	/**
+	 * Returns the Jackson bean property name for a getter (e.g., "lineRef" for
+	 * getLineRef()), or null if the method isn't a getter
+	 */
+	private static String beanName(Method m) {
+		String name = m.getName();
+		Class<?> rt = m.getReturnType();
+		String base;
+		if (name.startsWith("get") && name.length() > 3) {
+			base = name.substring(3);
+		} else if (name.startsWith("is") && name.length() > 2
+				&& (rt == boolean.class || rt == Boolean.class)) {
+			base = name.substring(2);
+		} else {
+			return null;
+		}
+		if (rt == void.class) {
+			return null;
+		}
+
+		// Same as Jackson's default mangling - lower-case the leading upper
+		// case characters (e.g., "URL" -> "url")
+		StringBuilder sb = new StringBuilder(base);
+		for (int i = 0; i < sb.length(); i++) {
+			char c = sb.charAt(i);
+			char lower = Character.toLowerCase(c);
+			if (c == lower) {
+				break;
+			}
+			sb.setCharAt(i, lower);
+		}
+		return sb.toString();
+	}
+
+	private static Class<?> elementType(Type collectionType) {
+		if (collectionType instanceof ParameterizedType) {
+			Type[] args = ((ParameterizedType) collectionType)
+					.getActualTypeArguments();
+			if (args.length == 1) {
+				if (args[0] instanceof Class<?>) {
+					return (Class<?>) args[0];
+				}
+				if (args[0] instanceof ParameterizedType) {
+					return (Class<?>) ((ParameterizedType) args[0])
+							.getRawType();
+				}
+			}
+		}
+		return Object.class;
+	}
+
+	private static Kind kindOf(Class<?> type) {
+		if (type == boolean.class || type == Boolean.class) {
+			return Kind.BOOLEAN;
+		}
+		if ((type.isPrimitive() && type != char.class)
+				|| Number.class.isAssignableFrom(type)) {
+			return Kind.NUMBER;
+		}
+		if (type.isEnum() || type.isPrimitive()
+				|| type.getName().startsWith("java.")
+				|| type.getName().startsWith("javax.")) {
+			// Strings, enums, dates, durations, etc. are all written as text
+			return Kind.STRING;
+		}
+		return Kind.OBJECT;
+	}
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+import uk.org.siri.siri.Siri;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Measures the cold-start latency of parsing a SIRI response, by forking a
+ * fresh JVM for every run and timing how long it takes to get the first
+ * parsed Siri object.
+ *
+ * The following strategies for creating the ObjectMapper or XmlMapper are
+ * compared:
+ *
+ * - NONE: create a new mapper (SiriUtils.createObjectMapper() or
+ * SiriUtils.createXmlMapper())
+ *
+ * - CACHE: read the mapper that a previous run serialized with
+ * SiriUtils.forceCacheWrite(), using SiriUtils.readFromCache()
+ *
+ * - EAGER: create a new mapper, and resolve the deserializers for Siri and
+ * every SIRI class reachable from it before the first parse (see
+ * SiriWarmup.resolveDeserializers())
+ *
+ * Each strategy runs in its own working directory, so the CACHE runs don't
+ * affect the others. The first run of each strategy is discarded; for CACHE
+ * it writes the cache file that the measured runs read, and a measured run
+ * that finds no cache file stops the benchmark rather than skewing it.
+ *
+ * For each strategy, the distributions of these times are reported:
+ *
+ * - process: from forking the JVM until it exits, as seen by the parent
+ *
+ * - uptime: JVM uptime when the first Siri object has been parsed
+ *
+ * - setup: time to create (or read) the mapper, including any eager
+ * resolution
+ *
+ * - parse: time for the first readValue() call
+ *
+ */
+public class SiriStartupBenchmark {
+
+	/**
+	 * Ways of getting a mapper that is ready to parse SIRI
+	 */
+	public enum Strategy {
+		NONE, CACHE, EAGER
+	}
+
+	private static final String CHILD_ARG = "--child";
+
+	/**
+	 * Prefix of the line that a child JVM prints with its measurements
+	 */
+	private static final String RESULT_PREFIX = "STARTUP-RESULT";
+
+	private static final String[] METRICS = { "process", "uptime", "setup",
+			"parse" };
+
+	private static final int DEFAULT_RUNS = 20;
+
+	private static final String USAGE = "Proper Usage is: java SiriStartupBenchmark path-to-siri-file-to-parse [number-of-runs] [none|cache|eager ...]";
+
+	/**
+	 * Runs the benchmark, or one measured run when started by the benchmark
+	 *
+	 * @param args
+	 *            path to the SIRI JSON or XML file to parse, the number of
+	 *            runs per strategy, and optionally the strategies to compare
+	 *            (none, cache, eager)
+	 */
+	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals(CHILD_ARG)) {
+			runChild(Strategy.valueOf(args[1]), new File(args[2]));
+			return;
+		}
+
+		if (args.length < 1) {
+			System.out.println(USAGE);
+			System.exit(0);
+		}
+
+		File file = new File(args[0]).getAbsoluteFile();
+		int runs;
+		List<Strategy> strategies = new ArrayList<Strategy>();
+		try {
+			runs = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RUNS;
+			for (int i = 2; i < args.length; i++) {
+				strategies.add(Strategy.valueOf(args[i].toUpperCase()));
+			}
+		} catch (IllegalArgumentException e) {
+			// Not a number, or an unknown strategy
+			System.out.println(USAGE);
+			System.exit(0);
+			return;
+		}
+		if (runs < 1) {
+			System.err.println("The number of runs must be at least 1");
+			return;
+		}
+		if (strategies.isEmpty()) {
+			strategies.addAll(Arrays.asList(Strategy.values()));
+		}
+
+		System.out.println("Input file = " + file.getAbsolutePath());
+		System.out.println(runs + " runs per strategy, times in ms");
+
+		try {
+			for (Strategy strategy : strategies) {
+				long[][] results = runStrategy(strategy, file, runs);
+				System.out.println("------------------------------------------");
+				System.out.println(strategy);
+				for (int m = 0; m < METRICS.length; m++) {
+					System.out.println(summarize(METRICS[m], results[m]));
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Error running benchmark: " + e);
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			System.err.println("Benchmark interrupted: " + e);
+		}
+	}
+
+	/**
+	 * Forks one warm-up JVM and the given number of measured JVMs for a
+	 * strategy
+	 *
+	 * @return the measurements in nanoseconds, indexed by metric and run
+	 */
+	private static long[][] runStrategy(Strategy strategy, File file, int runs)
+			throws IOException, InterruptedException {
+		File workingDir = File.createTempFile("siri-startup-", "");
+		if (!workingDir.delete() || !workingDir.mkdir()) {
+			throw new IOException("Couldn't create working directory "
+					+ workingDir);
+		}
+		try {
+			// Warms up the OS file cache, and writes the mapper cache file
+			fork(strategy, file, workingDir, false);
+
+			long[][] results = new long[METRICS.length][runs];
+			for (int run = 0; run < runs; run++) {
+				long[] result = fork(strategy, file, workingDir, true);
+				for (int m = 0; m < METRICS.length; m++) {
+					results[m][run] = result[m];
+				}
+			}
+			return results;
+		} finally {
+			FileUtils.deleteDirectory(workingDir);
+		}
+	}
+
+	/**
+	 * Runs one child JVM, returning its measurements in nanoseconds
+	 *
+	 * @param measured
+	 *            true if the run is measured, in which case a CACHE run that
+	 *            didn't read the mapper cache file fails
+	 */
+	private static long[] fork(Strategy strategy, File file, File workingDir,
+			boolean measured) throws IOException, InterruptedException {
+		String java = System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java";
+		// Class path entries are made absolute, since the child runs in
+		// another working directory
+		StringBuilder classPath = new StringBuilder();
+		for (String entry : System.getProperty("java.class.path").split(
+				File.pathSeparator)) {
+			if (classPath.length() > 0) {
+				classPath.append(File.pathSeparatorChar);
+			}
+			classPath.append(new File(entry).getAbsolutePath());
+		}
+		ProcessBuilder pb = new ProcessBuilder(java, "-cp",
+				classPath.toString(), SiriStartupBenchmark.class.getName(),
+				CHILD_ARG,
+				strategy.name(), file.getPath());
+		pb.directory(workingDir);
+		pb.redirectErrorStream(true);
+
+		long start = System.nanoTime();
+		Process process = pb.start();
+		String result = null;
+		StringBuilder output = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				process.getInputStream()));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(RESULT_PREFIX)) {
+					result = line;
+				} else {
+					output.append(line).append('\n');
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		int exitCode = process.waitFor();
+		long end = System.nanoTime();
+
+		if (exitCode != 0 || result == null) {
+			throw new IOException("Child JVM failed (exit code " + exitCode
+					+ "):\n" + output);
+		}
+		String[] fields = result.split(" ");
+		if (measured && strategy == Strategy.CACHE
+				&& !Boolean.parseBoolean(fields[4])) {
+			throw new IOException(
+					"Child JVM didn't read the mapper cache file, so it would have measured an uncached mapper:\n"
+							+ output);
+		}
+		return new long[] { end - start, Long.parseLong(fields[1]),
+				Long.parseLong(fields[2]), Long.parseLong(fields[3]) };
+	}
+
+	/**
+	 * Parses the file once using the given strategy, and prints the
+	 * measurements for the parent JVM
+	 */
+	private static void runChild(Strategy strategy, File file) {
+		try {
+			long start = System.nanoTime();
+			boolean xml = FilenameUtils.getExtension(file.getName())
+					.equalsIgnoreCase("xml");
+
+			ObjectMapper mapper = null;
+			boolean cacheHit = false;
+			if (strategy == Strategy.CACHE) {
+				mapper = (ObjectMapper) SiriUtils
+						.readFromCache(xml ? SiriUtils.XML_MAPPER
+								: SiriUtils.OBJECT_MAPPER);
+				cacheHit = mapper != null;
+			}
+			if (mapper == null) {
+				mapper = xml ? SiriUtils.createXmlMapper() : SiriUtils
+						.createObjectMapper();
+			}
+			if (strategy == Strategy.EAGER) {
+				SiriWarmup.resolveDeserializers(mapper);
+			}
+			long ready = System.nanoTime();
+
+			Siri siri = mapper.readValue(file, Siri.class);
+			long parsed = System.nanoTime();
+			long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+
+			if (siri == null) {
+				throw new IOException("No Siri object in " + file);
+			}
+			if (strategy == Strategy.CACHE && !cacheHit) {
+				SiriUtils.forceCacheWrite(mapper);
+			}
+
+			System.out.println(RESULT_PREFIX + " " + uptime * 1000000L + " "
+					+ (ready - start) + " " + (parsed - ready) + " " + cacheHit);
+		} catch (IOException e) {
+			System.err.println("Error parsing input file: " + e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Returns one line with the distribution of a metric, in milliseconds
+	 */
+	private static String summarize(String metric, long[] nanos) {
+		long[] sorted = nanos.clone();
+		Arrays.sort(sorted);
+		double sum = 0;
+		for (long n : sorted) {
+			sum += n;
+		}
+		return String.format(
+				"%-8s min %s  p50 %s  p90 %s  p99 %s  max %s  mean %s", metric, millis(sorted[0]), millis(percentile(sorted, 50)),
+				millis(percentile(sorted, 90)), millis(percentile(sorted, 99)),
+				millis(sorted[sorted.length - 1]), millis(sum / sorted.length));
+	}
+
+	/**
+	 * Returns the given percentile of the sorted values, using the
+	 * nearest-rank method
+	 */
+	private static long percentile(long[] sorted, int percentile) {
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	private static String millis(double nanos) {
+		return SiriUtils.df.format(nanos / 1000000.0);
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Date;
+
+import javax.xml.namespace.QName;
+
+import org.apache.commons.io.FilenameUtils;
+
+import uk.org.siri.siri.VehicleActivity;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import com.fasterxml.jackson.dataformat.xml.ser.ToXmlGenerator;
+
+/**
+ * Writes a SIRI VehicleMonitoring response one element at a time, so large
+ * responses (e.g., a filtered copy of another feed) can be written without
+ * building a full Siri object.
+ *
+ * Elements must be written in document order:
+ *
+ * writeStartServiceDelivery(), then for each delivery
+ * writeStartVehicleMonitoringDelivery(), any number of
+ * writeVehicleActivity(), and writeEndVehicleMonitoringDelivery(), and
+ * finally writeEndServiceDelivery() and close().
+ *
+ * The output uses the same conventions that the mappers created by SiriUtils
+ * read: PascalCase names, unwrapped (repeated) XML elements for lists, JSON
+ * arrays for lists and a "Siri" root name in JSON, and SIRI timestamps (see
+ * SiriDateSerializer). VehicleActivity elements are serialized using the
+ * given mapper, so the mapper should come from SiriUtils.createXmlMapper() or
+ * SiriUtils.createObjectMapper().
+ *
+ */
+public class SiriStreamWriter implements Closeable {
+
+	static final String SIRI_NAMESPACE = "http://www.siri.org.uk/siri";
+
+	/**
+	 * Position of the writer in the document
+	 */
+	private enum State {
+		NEW, SERVICE_DELIVERY, VEHICLE_MONITORING_DELIVERY, DONE
+	}
+
+	private final JsonGenerator jg;
+	private final ObjectWriter writer;
+	private final boolean xml;
+
+	private State state = State.NEW;
+
+	// JSON arrays that are open (XML lists have no enclosing element)
+	private boolean deliveryArrayOpen = false;
+	private boolean activityArrayOpen = false;
+
+	/**
+	 * Creates a writer for the given channel. The channel is closed when the
+	 * writer is closed.
+	 *
+	 * @param channel
+	 *            destination for the SIRI document
+	 * @param mapper
+	 *            XmlMapper (for XML) or ObjectMapper (for JSON) configured for
+	 *            SIRI
+	 * @throws IOException
+	 *             if the writer could not be created
+	 */
+	public SiriStreamWriter(WritableByteChannel channel, ObjectMapper mapper)
+			throws IOException {
+		this(Channels.newOutputStream(channel), mapper);
+	}
+
+	/**
+	 * Creates a writer for the given output stream. The stream is closed when
+	 * the writer is closed.
+	 *
+	 * @param out
+	 *            destination for the SIRI document
+	 * @param mapper
+	 *            XmlMapper (for XML) or ObjectMapper (for JSON) configured for
+	 *            SIRI
+	 * @throws IOException
+	 *             if the writer could not be created
+	 */
+	public SiriStreamWriter(OutputStream out, ObjectMapper mapper)
+			throws IOException {
+		this.jg = mapper.getFactory().createJsonGenerator(out,
+				JsonEncoding.UTF8);
+		// The generator buffers the output, so it is only flushed on close()
+		this.writer = mapper.writer().without(
+				SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+		this.xml = mapper instanceof XmlMapper;
+	}
+
+	/**
+	 * Writes the start of the Siri and ServiceDelivery elements
+	 *
+	 * @param responseTimestamp
+	 *            ResponseTimestamp of the ServiceDelivery
+	 * @throws IOException
+	 *             if the elements could not be written
+	 */
+	public void writeStartServiceDelivery(Date responseTimestamp)
+			throws IOException {
+		checkState(State.NEW);
+		if (xml) {
+			((ToXmlGenerator) jg).setNextName(new QName(SIRI_NAMESPACE,
+					SiriXmlToJsonTranscoder.ROOT_NAME));
+			jg.writeStartObject();
+		} else {
+			jg.writeStartObject();
+			jg.writeFieldName(SiriXmlToJsonTranscoder.ROOT_NAME);
+			jg.writeStartObject();
+		}
+		jg.writeFieldName("ServiceDelivery");
+		jg.writeStartObject();
+		writeDate("ResponseTimestamp", responseTimestamp);
+		state = State.SERVICE_DELIVERY;
+	}
+
+	/**
+	 * Writes the start of a VehicleMonitoringDelivery element
+	 *
+	 * @param responseTimestamp
+	 *            ResponseTimestamp of the delivery
+	 * @param validUntil
+	 *            ValidUntil of the delivery, or null
+	 * @throws IOException
+	 *             if the element could not be written
+	 */
+	public void writeStartVehicleMonitoringDelivery(Date responseTimestamp,
+			Date validUntil) throws IOException {
+		checkState(State.SERVICE_DELIVERY);
+		if (xml) {
+			// Unwrapped list - one element per entry
+			jg.writeFieldName("VehicleMonitoringDelivery");
+		} else if (!deliveryArrayOpen) {
+			jg.writeFieldName("VehicleMonitoringDelivery");
+			jg.writeStartArray();
+			deliveryArrayOpen = true;
+		}
+		jg.writeStartObject();
+		writeDate("ResponseTimestamp", responseTimestamp);
+		if (validUntil != null) {
+			writeDate("ValidUntil", validUntil);
+		}
+		state = State.VEHICLE_MONITORING_DELIVERY;
+	}
+
+	/**
+	 * Writes a VehicleActivity element in the current
+	 * VehicleMonitoringDelivery
+	 *
+	 * @param activity
+	 *            the VehicleActivity to write
+	 * @throws IOException
+	 *             if the element could not be written
+	 */
+	public void writeVehicleActivity(VehicleActivity activity)
+			throws IOException {
+		checkState(State.VEHICLE_MONITORING_DELIVERY);
+		if (xml) {
+			// Unwrapped list - one element per entry
+			jg.writeFieldName(LazySiriDocument.VEHICLE_ACTIVITY);
+		} else if (!activityArrayOpen) {
+			jg.writeFieldName(LazySiriDocument.VEHICLE_ACTIVITY);
+			jg.writeStartArray();
+			activityArrayOpen = true;
+		}
+		writer.writeValue(jg, activity);
+	}
+
+	/**
+	 * Writes the end of the current VehicleMonitoringDelivery element
+	 *
+	 * @throws IOException
+	 *             if the element could not be written
+	 */
+	public void writeEndVehicleMonitoringDelivery() throws IOException {
+		checkState(State.VEHICLE_MONITORING_DELIVERY);
+		if (activityArrayOpen) {
+			jg.writeEndArray();
+			activityArrayOpen = false;
+		}
+		jg.writeEndObject();
+		state = State.SERVICE_DELIVERY;
+	}
+
+	/**
+	 * Writes the end of the ServiceDelivery and Siri elements
+	 *
+	 * @throws IOException
+	 *             if the elements could not be written
+	 */
+	public void writeEndServiceDelivery() throws IOException {
+		checkState(State.SERVICE_DELIVERY);
+		if (deliveryArrayOpen) {
+			jg.writeEndArray();
+			deliveryArrayOpen = false;
+		}
+		jg.writeEndObject();
+		jg.writeEndObject();
+		if (!xml) {
+			jg.writeEndObject();
+		}
+		state = State.DONE;
+	}
+
+	/**
+	 * Flushes the written elements to the underlying stream or channel
+	 *
+	 * @throws IOException
+	 *             if the elements could not be written
+	 */
+	public void flush() throws IOException {
+		jg.flush();
+	}
+
+	/**
+	 * Flushes and closes the writer, along with the underlying stream or
+	 * channel
+	 */
+	@Override
+	public void close() throws IOException {
+		jg.close();
+	}
+
+	private void writeDate(String name, Date date) throws IOException {
+		jg.writeFieldName(name);
+		// Uses the SiriDateSerializer registered on the mapper
+		writer.writeValue(jg, date);
+	}
+
+	private void checkState(State expected) {
+		if (state != expected) {
+			throw new IllegalStateException("Expected writer state "
+					+ expected + ", but was " + state);
+		}
+	}
+
+	/**
+	 * Reads a timestamp of the source file for main(), or returns null if it
+	 * has none
+	 */
+	private static Date readDate(File file, ObjectMapper mapper,
+			String element, String field) throws IOException {
+		long millis = SiriUtils.readTimestamp(file, mapper, element, field);
+		return millis == VehiclePositionColumns.MISSING_TIME ? null
+				: new Date(millis);
+	}
+
+	/**
+	 * Copies the VehicleActivity elements whose LineRef starts with the given
+	 * prefix (e.g., an agency ID such as "MTA NYCT_") from a SIRI file to a new
+	 * SIRI file
+	 *
+	 * @param args
+	 *            path to the SIRI XML or JSON file to read, path to the XML or
+	 *            JSON file to write, and the LineRef prefix
+	 */
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			System.out
+					.println("Proper Usage is: java SiriStreamWriter path-to-siri-file-to-read path-to-xml-or-json-output-file line-ref-prefix");
+			System.exit(0);
+		}
+
+		File input = new File(args[0]);
+		File output = new File(args[1]);
+		String prefix = args[2];
+
+		try {
+			long startTime = System.nanoTime();
+			ObjectMapper inputMapper = FilenameUtils.getExtension(args[0])
+					.equalsIgnoreCase("xml") ? SiriUtils.createXmlMapper()
+					: SiriUtils.createObjectMapper();
+			ObjectMapper outputMapper = FilenameUtils.getExtension(args[1])
+					.equalsIgnoreCase("xml") ? SiriUtils.createXmlMapper()
+					: SiriUtils.createObjectMapper();
+
+			LazySiriDocument document = LazySiriDocument.read(input,
+					inputMapper);
+
+			// The filtered copy keeps the times of the source response
+			Date responseTimestamp = readDate(input, inputMapper,
+					"ServiceDelivery", "ResponseTimestamp");
+			if (responseTimestamp == null) {
+				responseTimestamp = new Date();
+			}
+			Date deliveryTimestamp = readDate(input, inputMapper,
+					"VehicleMonitoringDelivery", "ResponseTimestamp");
+			Date validUntil = readDate(input, inputMapper,
+					"VehicleMonitoringDelivery", "ValidUntil");
+			int count = 0;
+			SiriStreamWriter writer = new SiriStreamWriter(
+					new FileOutputStream(output), outputMapper);
+			try {
+				writer.writeStartServiceDelivery(responseTimestamp);
+				writer.writeStartVehicleMonitoringDelivery(
+						deliveryTimestamp != null ? deliveryTimestamp
+								: responseTimestamp, validUntil);
+				for (LazyVehicleActivity activity : document
+						.getVehicleActivities()) {
+					if (activity.getLineRef() != null
+							&& activity.getLineRef().startsWith(prefix)) {
+						writer.writeVehicleActivity(activity.get());
+						count++;
+					}
+				}
+				writer.writeEndVehicleMonitoringDelivery();
+				writer.writeEndServiceDelivery();
+			} finally {
+				writer.close();
+			}
+			long endTime = System.nanoTime();
+
+			System.out.println("Wrote " + count + " of " + document.size()
+					+ " VehicleActivity elements to "
+					+ output.getAbsolutePath() + " in "
+					+ SiriUtils.df.format((endTime - startTime) / 1000000.0)
+					+ " ms.");
+		} catch (IOException e) {
+			System.err.println("Error writing output file: " + e);
+			e.printStackTrace();
+		}
+	}
+}
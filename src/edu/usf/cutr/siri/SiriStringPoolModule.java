@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.Version;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdScalarDeserializer;
+import com.fasterxml.jackson.databind.deser.std.StringDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+/**
+ * Jackson module that makes all String properties of the SIRI POJOs share one
+ * instance for each distinct value, such as the LineRef, OperatorRef, and
+ * DataFrameRef values that repeat in every VehicleActivity of a response.
+ * The parsed objects are the same, but retain less memory.
+ *
+ * The pool is shared by all documents parsed by the mapper the module is
+ * registered on. To keep it from growing without limit in a long-running
+ * process, it is emptied once it holds more than a given number of values.
+ *
+ */
+public class SiriStringPoolModule extends SimpleModule {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Default for the most values held by the pool
+	 */
+	public static final int DEFAULT_MAX_SIZE = 100000;
+
+	/**
+	 * Deserializes strings, returning the pooled instance of each value
+	 */
+	static final class PooledStringDeserializer extends
+			StdScalarDeserializer<String> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int maxSize;
+		private transient ConcurrentHashMap<String, String> pool = new ConcurrentHashMap<String, String>();
+
+		PooledStringDeserializer(int maxSize) {
+			super(String.class);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		public String deserialize(JsonParser jp, DeserializationContext ctxt)
+				throws IOException, JsonProcessingException {
+			String value;
+			if (jp.getCurrentToken() == JsonToken.VALUE_STRING) {
+				value = jp.getText();
+			} else {
+				value = StringDeserializer.instance.deserialize(jp, ctxt);
+				if (value == null) {
+					return null;
+				}
+			}
+			return pool(value);
+		}
+
+		String pool(String value) {
+			ConcurrentHashMap<String, String> pool = this.pool;
+			if (pool == null) {
+				// Deserialized from a mapper cache file
+				pool = new ConcurrentHashMap<String, String>();
+				this.pool = pool;
+			}
+			String pooled = pool.putIfAbsent(value, value);
+			if (pooled != null) {
+				return pooled;
+			}
+			if (pool.size() > maxSize) {
+				// Values pooled before this point are still shared, just not
+				// with later ones
+				pool.clear();
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * Creates a module whose pool holds up to DEFAULT_MAX_SIZE values
+	 */
+	public SiriStringPoolModule() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Creates a module whose pool holds up to the given number of values
+	 *
+	 * @param maxSize
+	 *            the most values held by the pool before it is emptied
+	 */
+	public SiriStringPoolModule(int maxSize) {
+		super("SiriStringPoolModule", Version.unknownVersion());
+		addDeserializer(String.class, new PooledStringDeserializer(maxSize));
+	}
+}
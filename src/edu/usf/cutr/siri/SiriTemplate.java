@@ -0,0 +1,273 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A fragment of SIRI XML or JSON text in which the values of some named
+ * elements (XML) or properties (JSON) are replaced when the fragment is
+ * rendered, such as the VehicleRef and coordinates of a VehicleActivity.
+ *
+ * Every occurrence of a slot name in the fragment is replaced. Slots are only
+ * found for scalar values: text-only XML elements, and JSON strings, numbers
+ * and booleans. Slot names that don't occur in the fragment are ignored, and
+ * the rest of the fragment is written as-is.
+ *
+ */
+final class SiriTemplate {
+
+	/**
+	 * Location of one occurrence of a slot in the template text
+	 */
+	private static final class Slot {
+		final int start;
+		final int end;
+		final int index;
+		final boolean quoted;
+
+		Slot(int start, int end, int index, boolean quoted) {
+			this.start = start;
+			this.end = end;
+			this.index = index;
+			this.quoted = quoted;
+		}
+	}
+
+	private final boolean xml;
+
+	/**
+	 * Literal text before, between, and after the slots, so there is one more
+	 * segment than there are slots
+	 */
+	private final String[] segments;
+	private final Slot[] slots;
+
+	private SiriTemplate(boolean xml, String[] segments, Slot[] slots) {
+		this.xml = xml;
+		this.segments = segments;
+		this.slots = slots;
+	}
+
+	/**
+	 * Compiles a template from a fragment of SIRI text
+	 *
+	 * @param text
+	 *            fragment of a SIRI XML or JSON document
+	 * @param xml
+	 *            true if the text is XML, false if it is JSON
+	 * @param names
+	 *            names of the slots; the values passed to render() are given
+	 *            in the same order
+	 * @return the compiled template
+	 */
+	static SiriTemplate compile(String text, boolean xml, String... names) {
+		List<Slot> found = new ArrayList<Slot>();
+		for (int i = 0; i < names.length; i++) {
+			if (xml) {
+				findXmlSlots(text, names[i], i, found);
+			} else {
+				findJsonSlots(text, names[i], i, found);
+			}
+		}
+		Collections.sort(found, new Comparator<Slot>() {
+			@Override
+			public int compare(Slot a, Slot b) {
+				return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+			}
+		});
+
+		String[] segments = new String[found.size() + 1];
+		int pos = 0;
+		for (int i = 0; i < found.size(); i++) {
+			Slot slot = found.get(i);
+			if (slot.start < pos) {
+				throw new IllegalArgumentException("Overlapping slots in "
+						+ "template at offset " + slot.start);
+			}
+			segments[i] = text.substring(pos, slot.start);
+			pos = slot.end;
+		}
+		segments[found.size()] = text.substring(pos);
+
+		return new SiriTemplate(xml, segments, found.toArray(new Slot[found
+				.size()]));
+	}
+
+	/**
+	 * Finds the content of each <name>...</name> element, skipping empty
+	 * element tags such as <name/>
+	 */
+	private static void findXmlSlots(String text, String name, int index,
+			List<Slot> found) {
+		String startTag = "<" + name;
+		String endTag = "</" + name + ">";
+		int from = 0;
+		int tagStart;
+		while ((tagStart = text.indexOf(startTag, from)) >= 0) {
+			from = tagStart + startTag.length();
+			if (from >= text.length()) {
+				break;
+			}
+			char c = text.charAt(from);
+			if (c != '>' && c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+				// A longer name that starts with this one
+				continue;
+			}
+			int contentStart = text.indexOf('>', from) + 1;
+			if (contentStart == 0 || text.charAt(contentStart - 2) == '/') {
+				continue;
+			}
+			int contentEnd = text.indexOf(endTag, contentStart);
+			if (contentEnd < 0) {
+				break;
+			}
+			if (text.indexOf('<', contentStart) < contentEnd) {
+				// Not a text-only element
+				continue;
+			}
+			found.add(new Slot(contentStart, contentEnd, index, false));
+			from = contentEnd + endTag.length();
+		}
+	}
+
+	/**
+	 * Finds the scalar value of each "name": property. String values are
+	 * replaced inside their quotes; numbers and booleans are replaced as-is.
+	 */
+	private static void findJsonSlots(String text, String name, int index,
+			List<Slot> found) {
+		String key = "\"" + name + "\"";
+		int from = 0;
+		int keyStart;
+		while ((keyStart = text.indexOf(key, from)) >= 0) {
+			int i = skipWhitespace(text, keyStart + key.length());
+			from = i;
+			if (i >= text.length() || text.charAt(i) != ':') {
+				// A string value that happens to equal the name
+				continue;
+			}
+			i = skipWhitespace(text, i + 1);
+			if (i >= text.length()) {
+				break;
+			}
+			char c = text.charAt(i);
+			if (c == '{' || c == '[') {
+				continue;
+			}
+			if (c == '"') {
+				int end = i + 1;
+				while (end < text.length() && text.charAt(end) != '"') {
+					if (text.charAt(end) == '\\') {
+						end++;
+					}
+					end++;
+				}
+				found.add(new Slot(i + 1, end, index, true));
+				from = end + 1;
+			} else {
+				int end = i;
+				while (end < text.length() && ",}] \t\r\n".indexOf(text
+						.charAt(end)) < 0) {
+					end++;
+				}
+				found.add(new Slot(i, end, index, false));
+				from = end;
+			}
+		}
+	}
+
+	private static int skipWhitespace(String text, int i) {
+		while (i < text.length() && text.charAt(i) <= ' ') {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Writes the template with the given slot values
+	 *
+	 * @param out
+	 *            destination for the rendered text
+	 * @param values
+	 *            value of each slot, in the order of the names given to
+	 *            compile(). Values are escaped for XML, or for JSON strings.
+	 *            For unquoted JSON values (numbers and booleans) the value is
+	 *            written as-is, so it must be a valid JSON literal.
+	 * @throws IOException
+	 *             if the text could not be written
+	 */
+	void render(Writer out, String... values) throws IOException {
+		for (int i = 0; i < slots.length; i++) {
+			out.write(segments[i]);
+			Slot slot = slots[i];
+			String value = values[slot.index];
+			if (xml) {
+				writeXmlEscaped(out, value);
+			} else if (slot.quoted) {
+				writeJsonEscaped(out, value);
+			} else {
+				out.write(value);
+			}
+		}
+		out.write(segments[slots.length]);
+	}
+
+	private static void writeXmlEscaped(Writer out, String value)
+			throws IOException {
+		int len = value.length();
+		for (int i = 0; i < len; i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '<':
+				out.write("&lt;");
+				break;
+			case '>':
+				out.write("&gt;");
+				break;
+			case '&':
+				out.write("&amp;");
+				break;
+			default:
+				out.write(c);
+			}
+		}
+	}
+
+	private static void writeJsonEscaped(Writer out, String value)
+			throws IOException {
+		int len = value.length();
+		for (int i = 0; i < len; i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.write('\\');
+				out.write(c);
+			} else if (c < ' ') {
+				String hex = Integer.toHexString(c);
+				out.write("\\u0000", 0, 6 - hex.length());
+				out.write(hex);
+			} else {
+				out.write(c);
+			}
+		}
+	}
+}
@@ -41,8 +41,19 @@ import uk.org.siri.siri.StopMonitoringDelivery;
 import uk.org.siri.siri.VehicleActivity;
 import uk.org.siri.siri.VehicleMonitoringDelivery;
 
+import com.fasterxml.aalto.stax.InputFactoryImpl;
+import com.fasterxml.aalto.stax.OutputFactoryImpl;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.xml.JacksonXmlModule;
+import com.fasterxml.jackson.dataformat.xml.XmlFactory;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 /**
  * Siri POJO imports
@@ -78,6 +89,112 @@ public class SiriUtils {
 	// Used to format decimals to 3 places
 	static DecimalFormat df = new DecimalFormat("#,###.###");
 
+	/**
+	 * Creates a new ObjectMapper configured to parse SIRI JSON responses into
+	 * the SIRI POJOs
+	 *
+	 * @return a new ObjectMapper configured for SIRI JSON
+	 */
+	public static ObjectMapper createObjectMapper() {
+		ObjectMapper mapper = new ObjectMapper();
+
+		// Jackson 2.0 configuration settings
+		mapper.configure(DeserializationFeature.UNWRAP_ROOT_VALUE, true);
+		mapper.configure(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY,
+				true);
+		mapper.configure(
+				DeserializationFeature.ACCEPT_EMPTY_STRING_AS_NULL_OBJECT, true);
+		mapper.configure(DeserializationFeature.USE_JAVA_ARRAY_FOR_JSON_ARRAY,
+				true);
+		mapper.configure(DeserializationFeature.READ_ENUMS_USING_TO_STRING,
+				true);
+
+		// Tell Jackson to expect the JSON in PascalCase, instead of camelCase
+		mapper.setPropertyNamingStrategy(new PropertyNamingStrategy.PascalCaseStrategy());
+
+		// Write SIRI the way it is read (see SiriStreamWriter) - skip unset
+		// elements, and write enums using their SIRI names
+		mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+		mapper.configure(SerializationFeature.WRITE_ENUMS_USING_TO_STRING, true);
+
+		// Fast parsing and writing of SIRI timestamps
+		mapper.registerModule(new SiriDateModule());
+
+		return mapper;
+	}
+
+	/**
+	 * Creates a new XmlMapper configured to parse SIRI XML responses into the
+	 * SIRI POJOs
+	 *
+	 * @return a new XmlMapper configured for SIRI XML
+	 */
+	public static XmlMapper createXmlMapper() {
+		// Use Aalto StAX implementation explicitly
+		XmlFactory f = new XmlFactory(new InputFactoryImpl(),
+				new OutputFactoryImpl());
+
+		JacksonXmlModule module = new JacksonXmlModule();
+
+		/**
+		 * Tell Jackson that Lists are using "unwrapped" style (i.e., there is
+		 * no wrapper element for list). This fixes the error
+		 * "com.fasterxml.jackson.databind.JsonMappingException: Can not >>
+		 * instantiate value of type [simple type, class >>
+		 * uk.org.siri.siri.VehicleMonitoringDelivery] from JSON String; no >>
+		 * single-String constructor/factory method (through reference chain:
+		 * >> uk.org.siri.siri.Siri["ServiceDelivery"]->
+		 * uk.org.siri.siri.ServiceDel >> ivery["VehicleMonitoringDelivery"])"
+		 *
+		 * NOTE - This requires Jackson v2.1
+		 **/
+		module.setDefaultUseWrapper(false);
+
+		/**
+		 * Handles "xml:lang" attribute, which is used in SIRI NaturalLanguage
+		 * String, and looks like: <Description xml:lang="EN">b/d 1:00pm until
+		 * f/n. loc al and express buses run w/delays & detours. POTUS visit in
+		 * MANH. Allow additional travel time Details at
+		 * www.mta.info</Description>
+		 *
+		 * Passing "Value" (to match expected name in XML to map, considering
+		 * naming strategy) will make things work. This is since JAXB uses
+		 * pseudo-property name of "value" for XML Text segments, whereas
+		 * Jackson by default uses "" (to avoid name collisions).
+		 *
+		 * NOTE - This requires Jackson v2.1
+		 *
+		 * NOTE - This still requires a CustomPascalCaseStrategy to work.
+		 * Please see the CustomPascalCaseStrategy in this app that is used
+		 * below.
+		 */
+		module.setXMLTextElementName("Value");
+
+		XmlMapper xmlMapper = new XmlMapper(f, module);
+
+		xmlMapper.configure(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY,
+				true);
+		xmlMapper.configure(
+				DeserializationFeature.ACCEPT_EMPTY_STRING_AS_NULL_OBJECT, true);
+		xmlMapper.configure(
+				DeserializationFeature.USE_JAVA_ARRAY_FOR_JSON_ARRAY, true);
+		xmlMapper.configure(DeserializationFeature.READ_ENUMS_USING_TO_STRING,
+				true);
+
+		// Tell Jackson to expect the XML in PascalCase, instead of camelCase
+		xmlMapper.setPropertyNamingStrategy(new CustomPascalCaseStrategy());
+
+		// Write SIRI the way it is read (see SiriStreamWriter) - skip unset
+		// elements, and write enums using their SIRI names
+		xmlMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+		xmlMapper.configure(SerializationFeature.WRITE_ENUMS_USING_TO_STRING, true);
+
+		// Fast parsing and writing of SIRI timestamps
+		xmlMapper.registerModule(new SiriDateModule());
+
+		return xmlMapper;
+	}
+
 	/**
 	 * Prints the contents of a Siri object
 	 * 
@@ -667,6 +784,60 @@ public class SiriUtils {
 		System.out.println("------------------------------------------");
 	}
 
+	/**
+	 * Reads the first value of a timestamp field (e.g., ResponseTimestamp) in
+	 * a given element of a SIRI file (e.g., ServiceDelivery), with a streaming
+	 * parser that stops at the value, so the document isn't bound
+	 * 
+	 * @param file
+	 *            SIRI XML or JSON file
+	 * @param mapper
+	 *            XmlMapper (for XML) or ObjectMapper (for JSON) whose factory
+	 *            is used to create the parser
+	 * @param element
+	 *            name of the element that the field belongs to, or null for
+	 *            the field in any element
+	 * @param field
+	 *            name of the timestamp field
+	 * @return the timestamp in milliseconds since the epoch, or
+	 *         VehiclePositionColumns.MISSING_TIME if there is no valid one
+	 * @throws IOException
+	 *             if the file could not be read
+	 */
+	static long readTimestamp(File file, ObjectMapper mapper, String element,
+			String field) throws IOException {
+		JsonParser jp = mapper.getFactory().createJsonParser(file);
+		try {
+			JsonToken t;
+			while ((t = jp.nextToken()) != null) {
+				if (t != JsonToken.FIELD_NAME
+						|| !field.equals(jp.getCurrentName())) {
+					continue;
+				}
+				// Repeated elements (e.g., VehicleMonitoringDelivery) are
+				// objects in an array in JSON
+				JsonStreamContext parent = jp.getParsingContext().getParent();
+				while (parent != null && parent.inArray()) {
+					parent = parent.getParent();
+				}
+				if (element != null
+						&& (parent == null || !element.equals(parent
+								.getCurrentName()))) {
+					continue;
+				}
+				if (jp.nextToken() != JsonToken.VALUE_STRING) {
+					continue;
+				}
+				return new SiriDateDeserializer().parseMillis(
+						jp.getTextCharacters(), jp.getTextOffset(),
+						jp.getTextLength());
+			}
+		} finally {
+			jp.close();
+		}
+		return VehiclePositionColumns.MISSING_TIME;
+	}
+
 	/**
 	 * Returns a benchmark of the amount of time the last cache read took for
 	 * the ObjectMapper or ObjectReader or XmlReader (in nanoseconds)
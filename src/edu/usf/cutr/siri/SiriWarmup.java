@@ -0,0 +1,436 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+
+import uk.org.siri.siri.Siri;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+
+/**
+ * Gets an ObjectMapper and an XmlMapper to their steady-state parse latency
+ * before they are used, so the first real responses don't pay for creating
+ * the deserializers and for running in the interpreter.
+ *
+ * Warming up has two steps, which run on a background thread:
+ *
+ * - the deserializers of Siri and of every SIRI class reachable from it are
+ * resolved on both mappers, both as property values and as root values (as
+ * read by readValue() and by readers for single elements, such as
+ * VehicleActivity)
+ *
+ * - the sample responses in a directory ("*-simple.xml" and "*.json", such as
+ * the ones in the root of this project) are parsed repeatedly, until the time
+ * to parse all of them stops improving, so the parsing code gets compiled
+ *
+ * Callers can poll isReady(), or block in awaitReady() (e.g., before
+ * reporting the process as ready to take traffic).
+ *
+ */
+public class SiriWarmup {
+
+	private static final String SIRI_PACKAGE = Siri.class.getPackage()
+			.getName();
+
+	private static final int DEFAULT_MAX_ROUNDS = 200;
+
+	/**
+	 * Number of rounds in a row without a new best time before the parse time
+	 * is considered stable
+	 */
+	private static final int STABLE_ROUNDS = 5;
+
+	/**
+	 * A round is an improvement if it is this much faster than the best one
+	 * so far
+	 */
+	private static final double IMPROVEMENT = 0.95;
+
+	private final File sampleDir;
+	private final ObjectMapper objectMapper;
+	private final XmlMapper xmlMapper;
+	private final CountDownLatch ready = new CountDownLatch(1);
+
+	private int maxRounds = DEFAULT_MAX_ROUNDS;
+	private Thread thread;
+
+	// Results, published by the ready latch
+	private int resolvedTypes;
+	private int samples;
+	private int rounds;
+	private long bestRoundTime;
+	private long warmupTime;
+	private final List<String> failures = new ArrayList<String>();
+
+	/**
+	 * Creates a warm-up for new mappers from SiriUtils.createObjectMapper()
+	 * and SiriUtils.createXmlMapper()
+	 *
+	 * @param sampleDir
+	 *            directory with the sample responses to parse
+	 */
+	public SiriWarmup(File sampleDir) {
+		this(sampleDir, SiriUtils.createObjectMapper(), SiriUtils
+				.createXmlMapper());
+	}
+
+	/**
+	 * Creates a warm-up for the given mappers
+	 *
+	 * @param sampleDir
+	 *            directory with the sample responses to parse
+	 * @param objectMapper
+	 *            ObjectMapper configured for SIRI JSON
+	 * @param xmlMapper
+	 *            XmlMapper configured for SIRI XML
+	 */
+	public SiriWarmup(File sampleDir, ObjectMapper objectMapper,
+			XmlMapper xmlMapper) {
+		this.sampleDir = sampleDir;
+		this.objectMapper = objectMapper;
+		this.xmlMapper = xmlMapper;
+	}
+
+	/**
+	 * Sets the most rounds of sample parses, if the parse time doesn't settle
+	 * earlier. The default is 200.
+	 *
+	 * @param maxRounds
+	 *            the most times each sample is parsed
+	 */
+	public void setMaxRounds(int maxRounds) {
+		if (maxRounds < 0) {
+			throw new IllegalArgumentException(
+					"The number of rounds can't be negative");
+		}
+		this.maxRounds = maxRounds;
+	}
+
+	/**
+	 * Starts warming up on a background (daemon) thread. Calling this more
+	 * than once has no effect.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				warmUp();
+			}
+		}, "siri-warmup");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void warmUp() {
+		try {
+			long start = System.nanoTime();
+			resolvedTypes = resolveDeserializers(objectMapper);
+			resolvedTypes += resolveDeserializers(xmlMapper);
+			parseSamples();
+			warmupTime = System.nanoTime() - start;
+		} finally {
+			// Even a failed warm-up leaves the mappers usable
+			ready.countDown();
+		}
+	}
+
+	/**
+	 * Parses the samples until the time of a round stops improving
+	 */
+	private void parseSamples() {
+		File[] files = sampleDir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				String lower = name.toLowerCase();
+				return lower.endsWith("-simple.xml") || lower.endsWith(".json");
+			}
+		});
+		if (files == null) {
+			failures.add(sampleDir + ": not a directory");
+			return;
+		}
+		Arrays.sort(files);
+
+		// Samples are read once, so the rounds time parsing and not I/O
+		List<byte[]> data = new ArrayList<byte[]>();
+		List<ObjectMapper> mappers = new ArrayList<ObjectMapper>();
+		List<String> names = new ArrayList<String>();
+		for (File file : files) {
+			try {
+				data.add(FileUtils.readFileToByteArray(file));
+				names.add(file.getName());
+				mappers.add(file.getName().toLowerCase().endsWith(".xml") ? xmlMapper
+						: objectMapper);
+			} catch (IOException e) {
+				failures.add(file.getName() + ": " + e);
+			}
+		}
+		samples = data.size();
+		if (samples == 0) {
+			return;
+		}
+
+		boolean[] failed = new boolean[samples];
+		bestRoundTime = Long.MAX_VALUE;
+		int sinceBest = 0;
+		while (rounds < maxRounds && sinceBest < STABLE_ROUNDS) {
+			long start = System.nanoTime();
+			for (int i = 0; i < samples; i++) {
+				if (failed[i]) {
+					continue;
+				}
+				try {
+					mappers.get(i).readValue(data.get(i), Siri.class);
+				} catch (IOException e) {
+					failed[i] = true;
+					failures.add(names.get(i) + ": " + e);
+				} catch (RuntimeException e) {
+					failed[i] = true;
+					failures.add(names.get(i) + ": " + e);
+				}
+			}
+			long time = System.nanoTime() - start;
+			rounds++;
+			if (time < bestRoundTime * IMPROVEMENT) {
+				sinceBest = 0;
+			} else {
+				sinceBest++;
+			}
+			bestRoundTime = Math.min(bestRoundTime, time);
+		}
+	}
+
+	/**
+	 * Resolves the deserializers of Siri and of every SIRI class reachable
+	 * from it, so the mapper doesn't create them during the first parse.
+	 * canDeserialize() caches the deserializer used for property values, and
+	 * creating a reader for the type caches the root deserializer in the
+	 * mapper, where readValue() and other readers for the type find it.
+	 *
+	 * @param mapper
+	 *            ObjectMapper or XmlMapper configured for SIRI
+	 * @return the number of SIRI classes with a deserializer
+	 */
+	public static int resolveDeserializers(ObjectMapper mapper) {
+		int resolved = 0;
+		for (Class<?> type : reachableTypes()) {
+			JavaType javaType = mapper.constructType(type);
+			if (mapper.canDeserialize(javaType)) {
+				mapper.reader(javaType);
+				resolved++;
+			}
+		}
+		return resolved;
+	}
+
+	/**
+	 * Returns Siri and the SIRI classes reachable from its properties, in
+	 * breadth-first order
+	 */
+	static Set<Class<?>> reachableTypes() {
+		Set<Class<?>> types = new LinkedHashSet<Class<?>>();
+		types.add(Siri.class);
+		List<Class<?>> queue = new ArrayList<Class<?>>(types);
+		for (int i = 0; i < queue.size(); i++) {
+			for (SiriSchema.Property p : SiriSchema.forClass(queue.get(i))
+					.getProperties()) {
+				Class<?> type = p.getType();
+				if (type.getPackage() == null
+						|| !type.getPackage().getName().equals(SIRI_PACKAGE)
+						|| !types.add(type)) {
+					continue;
+				}
+				if (p.getKind() == SiriSchema.Kind.OBJECT) {
+					queue.add(type);
+				}
+			}
+		}
+		return types;
+	}
+
+	/**
+	 * @return true if warming up has finished
+	 */
+	public boolean isReady() {
+		return ready.getCount() == 0;
+	}
+
+	/**
+	 * Blocks until warming up has finished
+	 *
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting
+	 */
+	public void awaitReady() throws InterruptedException {
+		ready.await();
+	}
+
+	/**
+	 * Blocks until warming up has finished, or the timeout expires
+	 *
+	 * @param timeout
+	 *            the most time to wait
+	 * @param unit
+	 *            unit of the timeout
+	 * @return true if warming up has finished, false if the timeout expired
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting
+	 */
+	public boolean awaitReady(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return ready.await(timeout, unit);
+	}
+
+	/**
+	 * @return the ObjectMapper that is warmed up
+	 */
+	public ObjectMapper getObjectMapper() {
+		return objectMapper;
+	}
+
+	/**
+	 * @return the XmlMapper that is warmed up
+	 */
+	public XmlMapper getXmlMapper() {
+		return xmlMapper;
+	}
+
+	/**
+	 * @return the number of deserializers resolved on both mappers, or 0 if
+	 *         warming up hasn't finished
+	 */
+	public int getResolvedTypes() {
+		return isReady() ? resolvedTypes : 0;
+	}
+
+	/**
+	 * @return the number of samples that were parsed, or 0 if warming up
+	 *         hasn't finished
+	 */
+	public int getSamples() {
+		return isReady() ? samples : 0;
+	}
+
+	/**
+	 * @return the number of times the samples were parsed, or 0 if warming up
+	 *         hasn't finished
+	 */
+	public int getRounds() {
+		return isReady() ? rounds : 0;
+	}
+
+	/**
+	 * @return the fastest time to parse all of the samples, in nanoseconds,
+	 *         or 0 if warming up hasn't finished or there were no samples
+	 */
+	public long getBestRoundTime() {
+		return isReady() && rounds > 0 ? bestRoundTime : 0;
+	}
+
+	/**
+	 * @return the time it took to warm up, in nanoseconds, or 0 if warming up
+	 *         hasn't finished
+	 */
+	public long getWarmupTime() {
+		return isReady() ? warmupTime : 0;
+	}
+
+	/**
+	 * @return the samples that could not be read or parsed, with the error
+	 *         for each, or an empty list if warming up hasn't finished
+	 */
+	public List<String> getFailures() {
+		return isReady() ? Collections.unmodifiableList(failures)
+				: Collections.<String> emptyList();
+	}
+
+	/**
+	 * Warms up new mappers in the background, and compares the time of the
+	 * first parse of a SIRI file with the time of a parse with a cold mapper
+	 *
+	 * @param args
+	 *            path to the SIRI XML or JSON file to parse, and optionally
+	 *            the directory with the samples (by default, the working
+	 *            directory)
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out
+					.println("Proper Usage is: java SiriWarmup path-to-siri-file-to-parse [path-to-sample-directory]");
+			System.exit(0);
+		}
+
+		File file = new File(args[0]);
+		File sampleDir = new File(args.length > 1 ? args[1] : ".");
+		boolean xml = file.getName().toLowerCase().endsWith(".xml");
+
+		try {
+			// Cold mapper of the same kind, for comparison
+			ObjectMapper cold = xml ? SiriUtils.createXmlMapper() : SiriUtils
+					.createObjectMapper();
+			long startTime = System.nanoTime();
+			cold.readValue(file, Siri.class);
+			long coldTime = System.nanoTime() - startTime;
+
+			SiriWarmup warmup = new SiriWarmup(sampleDir);
+			warmup.start();
+			warmup.awaitReady();
+			for (String failure : warmup.getFailures()) {
+				System.out.println("Failed sample " + failure);
+			}
+			System.out.println("Ready after "
+					+ SiriUtils.df.format(warmup.getWarmupTime() / 1000000.0)
+					+ " ms (" + warmup.getResolvedTypes()
+					+ " deserializers, " + warmup.getSamples()
+					+ " samples parsed " + warmup.getRounds() + " times).");
+
+			ObjectMapper mapper = xml ? warmup.getXmlMapper() : warmup
+					.getObjectMapper();
+			startTime = System.nanoTime();
+			mapper.readValue(file, Siri.class);
+			long warmTime = System.nanoTime() - startTime;
+
+			System.out.println("First parse with a new mapper: "
+					+ SiriUtils.df.format(coldTime / 1000000.0) + " ms.");
+			System.out.println("First parse with a warmed-up mapper: "
+					+ SiriUtils.df.format(warmTime / 1000000.0) + " ms.");
+		} catch (IOException e) {
+			System.err.println("Error parsing input file: " + e);
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			System.err.println("Interrupted while warming up: " + e);
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.nio.charset.Charset;
+
+/**
+ * Helpers for locating SIRI elements directly in raw UTF-8 XML bytes, without
+ * running the bytes through a StAX parser.
+ *
+ * These helpers assume the un-prefixed element names that SIRI producers such
+ * as MTA BusTime emit, and they do not look inside comments or CDATA sections.
+ * They are meant for cheap pre-scans (e.g., finding element boundaries and a
+ * few index keys); full parsing should still go through the XmlMapper.
+ *
+ */
+final class SiriXmlScanner {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private SiriXmlScanner() {
+	}
+
+	/**
+	 * Returns the ASCII bytes of an element name, for use with the scanning
+	 * methods in this class
+	 *
+	 * @param elementName
+	 *            name of the XML element (e.g., "VehicleActivity")
+	 * @return the bytes of the element name
+	 */
+	static byte[] name(String elementName) {
+		byte[] bytes = new byte[elementName.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) elementName.charAt(i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the index of the '<' that opens the first start tag with the
+	 * given name in buf[from, to), or -1 if there is no such tag
+	 */
+	static int indexOfStartTag(byte[] buf, int from, int to, byte[] name) {
+		int last = to - name.length - 1;
+		for (int i = from; i < last; i++) {
+			if (buf[i] == '<' && regionMatches(buf, i + 1, name)
+					&& isNameEnd(buf[i + 1 + name.length])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the '<' that opens the first end tag with the given
+	 * name in buf[from, to), or -1 if there is no such tag
+	 */
+	static int indexOfEndTag(byte[] buf, int from, int to, byte[] name) {
+		int last = to - name.length - 2;
+		for (int i = from; i < last; i++) {
+			if (buf[i] == '<' && buf[i + 1] == '/'
+					&& regionMatches(buf, i + 2, name)
+					&& isNameEnd(buf[i + 2 + name.length])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index just past the '>' that closes the tag starting at
+	 * tagStart, or -1 if the tag is not terminated before the given limit
+	 */
+	static int endOfTag(byte[] buf, int tagStart, int to) {
+		byte quote = 0;
+		for (int i = tagStart; i < to; i++) {
+			byte b = buf[i];
+			if (quote != 0) {
+				if (b == quote) {
+					quote = 0;
+				}
+			} else if (b == '"' || b == '\'') {
+				quote = b;
+			} else if (b == '>') {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index just past the end of the element whose start tag
+	 * begins at tagStart, or -1 if the element is not terminated before the
+	 * given limit. Elements with the given name must not be nested inside each
+	 * other.
+	 */
+	static int endOfElement(byte[] buf, int tagStart, int to, byte[] name) {
+		int contentStart = endOfTag(buf, tagStart, to);
+		if (contentStart < 0) {
+			return -1;
+		}
+		if (buf[contentStart - 2] == '/') {
+			// Empty element tag, such as <OnwardCalls/>
+			return contentStart;
+		}
+		int endTag = indexOfEndTag(buf, contentStart, to, name);
+		if (endTag < 0) {
+			return -1;
+		}
+		return endOfTag(buf, endTag, to);
+	}
+
+	/**
+	 * Returns the text content of the first element with the given name in
+	 * buf[from, to), with XML entities resolved
+	 *
+	 * @return the text content of the element, "" for an empty element, or
+	 *         null if there is no such element
+	 */
+	static String textOf(byte[] buf, int from, int to, byte[] name) {
+		int tagStart = indexOfStartTag(buf, from, to, name);
+		if (tagStart < 0) {
+			return null;
+		}
+		int contentStart = endOfTag(buf, tagStart, to);
+		if (contentStart < 0) {
+			return null;
+		}
+		if (buf[contentStart - 2] == '/') {
+			return "";
+		}
+		int contentEnd = indexOfEndTag(buf, contentStart, to, name);
+		if (contentEnd < 0) {
+			return null;
+		}
+		return decode(buf, contentStart, contentEnd);
+	}
+
+	/**
+	 * Decodes buf[from, to) as UTF-8 text, resolving XML entity and character
+	 * references
+	 */
+	static String decode(byte[] buf, int from, int to) {
+		String text = new String(buf, from, to - from, UTF8);
+		return text.indexOf('&') < 0 ? text : unescape(text);
+	}
+
+	/**
+	 * Resolves the predefined XML entities and numeric character references in
+	 * the given text. Unknown references are left as they are.
+	 */
+	static String unescape(String text) {
+		StringBuilder sb = new StringBuilder(text.length());
+		int i = 0;
+		while (i < text.length()) {
+			char c = text.charAt(i);
+			int semi = c == '&' ? text.indexOf(';', i) : -1;
+			if (semi < 0) {
+				sb.append(c);
+				i++;
+				continue;
+			}
+			String ref = text.substring(i + 1, semi);
+			if (ref.equals("lt")) {
+				sb.append('<');
+			} else if (ref.equals("gt")) {
+				sb.append('>');
+			} else if (ref.equals("amp")) {
+				sb.append('&');
+			} else if (ref.equals("quot")) {
+				sb.append('"');
+			} else if (ref.equals("apos")) {
+				sb.append('\'');
+			} else if (ref.startsWith("#x") || ref.startsWith("#X")) {
+				sb.appendCodePoint(Integer.parseInt(ref.substring(2), 16));
+			} else if (ref.startsWith("#")) {
+				sb.appendCodePoint(Integer.parseInt(ref.substring(1)));
+			} else {
+				sb.append(text, i, semi + 1);
+			}
+			i = semi + 1;
+		}
+		return sb.toString();
+	}
+
+	private static boolean regionMatches(byte[] buf, int offset, byte[] name) {
+		for (int i = 0; i < name.length; i++) {
+			if (buf[offset + i] != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isNameEnd(byte b) {
+		return b == '>' || b == '/' || b == ' ' || b == '\t' || b == '\n'
+				|| b == '\r';
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import uk.org.siri.siri.Siri;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+
+/**
+ * Converts SIRI XML responses to SIRI JSON by copying tokens from the XML
+ * parser straight to a JSON generator, without binding any Siri POJOs.
+ *
+ * The output follows the same rules the mappers in SiriUtils use to read each
+ * format: repeated ("unwrapped") XML elements become JSON arrays, the
+ * "xml:lang" attribute and element text become the "Lang" and "Value"
+ * properties, and numbers and booleans are written as JSON literals. The
+ * output can therefore be read by the ObjectMapper from
+ * SiriUtils.createObjectMapper(). Memory use is constant, regardless of the
+ * size of the document.
+ *
+ */
+public class SiriXmlToJsonTranscoder {
+
+	static final String ROOT_NAME = "Siri";
+
+	private final XmlMapper xmlMapper;
+	private final JsonFactory jsonFactory;
+
+	/**
+	 * Creates a transcoder that reads XML using an XmlMapper from
+	 * SiriUtils.createXmlMapper()
+	 */
+	public SiriXmlToJsonTranscoder() {
+		this(SiriUtils.createXmlMapper());
+	}
+
+	/**
+	 * Creates a transcoder that reads XML using the given XmlMapper
+	 *
+	 * @param xmlMapper
+	 *            XmlMapper configured for SIRI XML (see
+	 *            SiriUtils.createXmlMapper())
+	 */
+	public SiriXmlToJsonTranscoder(XmlMapper xmlMapper) {
+		this.xmlMapper = xmlMapper;
+		this.jsonFactory = new JsonFactory();
+	}
+
+	/**
+	 * Reads a SIRI XML document from the input stream and writes it as SIRI
+	 * JSON to the output stream. Both streams are closed when this method
+	 * returns.
+	 *
+	 * @param in
+	 *            SIRI XML document
+	 * @param out
+	 *            destination for the SIRI JSON document
+	 * @throws IOException
+	 *             if the XML could not be read or the JSON could not be
+	 *             written
+	 */
+	public void transcode(InputStream in, OutputStream out) throws IOException {
+		JsonParser jp = xmlMapper.getFactory().createJsonParser(in);
+		JsonGenerator jg = jsonFactory.createJsonGenerator(out,
+				JsonEncoding.UTF8);
+		try {
+			if (jp.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException("Expected a " + ROOT_NAME
+						+ " element", jp.getCurrentLocation());
+			}
+			// The JSON format wraps the document in a root name, while the
+			// XML parser doesn't report the root element
+			jg.writeStartObject();
+			jg.writeFieldName(ROOT_NAME);
+			copyObject(jp, jg, SiriSchema.forClass(Siri.class));
+			jg.writeEndObject();
+		} finally {
+			jg.close();
+			jp.close();
+		}
+	}
+
+	/**
+	 * Copies the XML element at the current START_OBJECT token of the parser
+	 * to the generator as a JSON object, ending with the parser at the
+	 * matching END_OBJECT token
+	 *
+	 * @param jp
+	 *            parser created by the XmlMapper
+	 * @param jg
+	 *            JSON generator (or TokenBuffer)
+	 * @param schema
+	 *            schema of the element, or null if the element is unknown
+	 */
+	static void copyObject(JsonParser jp, JsonGenerator jg, SiriSchema schema)
+			throws IOException {
+		jg.writeStartObject();
+
+		// JSON name of the array for the current run of repeated elements
+		String openList = null;
+
+		while (jp.nextToken() == JsonToken.FIELD_NAME) {
+			String xmlName = jp.getCurrentName();
+			if (xmlName.length() == 0) {
+				// Text of an element with attributes, if the parser wasn't
+				// configured with a name for it
+				xmlName = SiriSchema.XML_TEXT_ELEMENT_NAME;
+			}
+			SiriSchema.Property p = schema == null ? null : schema
+					.getXmlProperty(xmlName);
+			String jsonName = p == null ? xmlName : p.getJsonName();
+
+			jp.nextToken();
+
+			if (p != null && p.isList()) {
+				if (!jsonName.equals(openList)) {
+					if (openList != null) {
+						jg.writeEndArray();
+					}
+					jg.writeFieldName(jsonName);
+					jg.writeStartArray();
+					openList = jsonName;
+				}
+			} else {
+				if (openList != null) {
+					jg.writeEndArray();
+					openList = null;
+				}
+				jg.writeFieldName(jsonName);
+			}
+			copyValue(jp, jg, p);
+		}
+		if (openList != null) {
+			jg.writeEndArray();
+		}
+
+		jg.writeEndObject();
+	}
+
+	/**
+	 * Copies the value at the current token of the parser to the generator,
+	 * using the type of the property to decide how to write scalar values
+	 */
+	static void copyValue(JsonParser jp, JsonGenerator jg, SiriSchema.Property p)
+			throws IOException {
+		JsonToken t = jp.getCurrentToken();
+		if (t == JsonToken.START_OBJECT) {
+			copyObject(jp, jg, p == null ? null : p.getSchema());
+			return;
+		}
+		if (t == JsonToken.START_ARRAY) {
+			jg.copyCurrentStructure(jp);
+			return;
+		}
+		if (p == null) {
+			jg.copyCurrentEvent(jp);
+			return;
+		}
+
+		String text = t == JsonToken.VALUE_NULL ? "" : jp.getText().trim();
+		switch (p.getKind()) {
+		case OBJECT:
+			if (text.length() == 0) {
+				// Empty element, such as <OnwardCalls/>
+				jg.writeStartObject();
+				jg.writeEndObject();
+			} else {
+				// Text-only element, such as <LineRef>MTA NYCT_S54</LineRef>
+				jg.writeString(text);
+			}
+			break;
+		case NUMBER:
+			if (text.length() == 0) {
+				jg.writeNull();
+			} else if (isNumber(text)) {
+				jg.writeNumber(text);
+			} else {
+				jg.writeString(text);
+			}
+			break;
+		case BOOLEAN:
+			if (text.equals("true") || text.equals("1")) {
+				jg.writeBoolean(true);
+			} else if (text.equals("false") || text.equals("0")) {
+				jg.writeBoolean(false);
+			} else if (text.length() == 0) {
+				jg.writeNull();
+			} else {
+				jg.writeString(text);
+			}
+			break;
+		default:
+			if (t == JsonToken.VALUE_NULL) {
+				jg.writeNull();
+			} else {
+				jg.writeString(jp.getText());
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the text is a valid JSON number, so it can be written to
+	 * the JSON output as-is
+	 */
+	static boolean isNumber(String text) {
+		int i = 0;
+		int len = text.length();
+		if (text.charAt(0) == '-') {
+			i++;
+		}
+		int digits = 0;
+		while (i < len && Character.isDigit(text.charAt(i))) {
+			i++;
+			digits++;
+		}
+		if (digits == 0) {
+			return false;
+		}
+		if (i < len && text.charAt(i) == '.') {
+			i++;
+			digits = 0;
+			while (i < len && Character.isDigit(text.charAt(i))) {
+				i++;
+				digits++;
+			}
+			if (digits == 0) {
+				return false;
+			}
+		}
+		if (i < len && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+			i++;
+			if (i < len && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+				i++;
+			}
+			digits = 0;
+			while (i < len && Character.isDigit(text.charAt(i))) {
+				i++;
+				digits++;
+			}
+			if (digits == 0) {
+				return false;
+			}
+		}
+		return i == len;
+	}
+
+	/**
+	 * Converts a SIRI XML file to a SIRI JSON file
+	 *
+	 * @param args
+	 *            path to the SIRI XML file to read, and path to the JSON file
+	 *            to write
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out
+					.println("Proper Usage is: java SiriXmlToJsonTranscoder path-to-siri-xml-file path-to-json-output-file");
+			System.exit(0);
+		}
+
+		File input = new File(args[0]);
+		File output = new File(args[1]);
+
+		try {
+			long startTime = System.nanoTime();
+			new SiriXmlToJsonTranscoder().transcode(new BufferedInputStream(
+					new FileInputStream(input)), new BufferedOutputStream(
+					new FileOutputStream(output)));
+			long endTime = System.nanoTime();
+
+			System.out.println("Transcoded " + input.getAbsolutePath() + " ("
+					+ input.length() + " bytes) to " + output.getAbsolutePath()
+					+ " (" + output.length() + " bytes) in "
+					+ SiriUtils.df.format((endTime - startTime) / 1000000.0)
+					+ " ms.");
+		} catch (IOException e) {
+			System.err.println("Error transcoding input file: " + e);
+			e.printStackTrace();
+		}
+	}
+}
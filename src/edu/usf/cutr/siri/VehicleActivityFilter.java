@@ -0,0 +1,184 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Predicates on the fields of a VehicleActivity that can be checked while the
+ * element is being parsed, before it is bound to a POJO (see
+ * FilteredVehicleActivityReader).
+ *
+ * A VehicleActivity matches if every configured predicate matches: its
+ * LineRef, OperatorRef and VehicleRef (from the MonitoredVehicleJourney) are
+ * among the given values, and its VehicleLocation is inside the given
+ * bounding box. An activity that lacks a field that a predicate needs doesn't
+ * match. A filter without predicates matches every activity.
+ *
+ */
+public class VehicleActivityFilter {
+
+	// Bits for the fields that a predicate needs
+	private static final int LINE_REF = 1;
+	private static final int OPERATOR_REF = 2;
+	private static final int VEHICLE_REF = 4;
+	private static final int LATITUDE = 8;
+	private static final int LONGITUDE = 16;
+
+	/**
+	 * Returned by check() for fields that aren't used by any predicate
+	 */
+	static final int IGNORED = 0;
+
+	/**
+	 * Returned by check() for fields that fail a predicate
+	 */
+	static final int REJECTED = -1;
+
+	private Set<String> lineRefs;
+	private Set<String> operatorRefs;
+	private Set<String> vehicleRefs;
+
+	private double minLatitude;
+	private double maxLatitude;
+	private double minLongitude;
+	private double maxLongitude;
+
+	private int required = 0;
+
+	/**
+	 * Only matches vehicles on the given lines
+	 *
+	 * @param values
+	 *            LineRef values (e.g., "MTA NYCT_S40")
+	 * @return this filter
+	 */
+	public VehicleActivityFilter lineRefs(String... values) {
+		lineRefs = new HashSet<String>(Arrays.asList(values));
+		required |= LINE_REF;
+		return this;
+	}
+
+	/**
+	 * Only matches vehicles of the given operators
+	 *
+	 * @param values
+	 *            OperatorRef values (e.g., "MTA NYCT")
+	 * @return this filter
+	 */
+	public VehicleActivityFilter operatorRefs(String... values) {
+		operatorRefs = new HashSet<String>(Arrays.asList(values));
+		required |= OPERATOR_REF;
+		return this;
+	}
+
+	/**
+	 * Only matches the given vehicles
+	 *
+	 * @param values
+	 *            VehicleRef values (e.g., "MTA NYCT_6174")
+	 * @return this filter
+	 */
+	public VehicleActivityFilter vehicleRefs(String... values) {
+		vehicleRefs = new HashSet<String>(Arrays.asList(values));
+		required |= VEHICLE_REF;
+		return this;
+	}
+
+	/**
+	 * Only matches vehicles located inside the given bounding box (bounds
+	 * included)
+	 *
+	 * @return this filter
+	 */
+	public VehicleActivityFilter boundingBox(double minLatitude,
+			double minLongitude, double maxLatitude, double maxLongitude) {
+		this.minLatitude = minLatitude;
+		this.minLongitude = minLongitude;
+		this.maxLatitude = maxLatitude;
+		this.maxLongitude = maxLongitude;
+		required |= LATITUDE | LONGITUDE;
+		return this;
+	}
+
+	/**
+	 * Returns the bits of the fields that must have been matched (see check())
+	 * for a VehicleActivity to match this filter
+	 */
+	int getRequired() {
+		return required;
+	}
+
+	/**
+	 * Checks the scalar value at the current token of the parser
+	 *
+	 * @param parent
+	 *            name of the element that contains the value, or null if it
+	 *            is an entry of a list
+	 * @param jp
+	 *            parser positioned at a scalar value
+	 * @return the bit of the field if it matches its predicate, REJECTED if it
+	 *         doesn't, or IGNORED if no predicate uses the field
+	 */
+	int check(String parent, JsonParser jp) throws IOException {
+		if (parent == null) {
+			return IGNORED;
+		}
+		String name = jp.getCurrentName();
+		if (parent.equals("MonitoredVehicleJourney")) {
+			if (lineRefs != null && LazySiriDocument.LINE_REF.equals(name)) {
+				return lineRefs.contains(jp.getText()) ? LINE_REF : REJECTED;
+			}
+			if (operatorRefs != null && "OperatorRef".equals(name)) {
+				return operatorRefs.contains(jp.getText()) ? OPERATOR_REF
+						: REJECTED;
+			}
+			if (vehicleRefs != null
+					&& LazySiriDocument.VEHICLE_REF.equals(name)) {
+				return vehicleRefs.contains(jp.getText()) ? VEHICLE_REF
+						: REJECTED;
+			}
+		} else if ((required & LATITUDE) != 0
+				&& parent.equals("VehicleLocation")) {
+			if ("Latitude".equals(name)) {
+				double latitude = parseDouble(jp);
+				return latitude >= minLatitude && latitude <= maxLatitude
+						? LATITUDE : REJECTED;
+			}
+			if ("Longitude".equals(name)) {
+				double longitude = parseDouble(jp);
+				return longitude >= minLongitude
+						&& longitude <= maxLongitude ? LONGITUDE : REJECTED;
+			}
+		}
+		return IGNORED;
+	}
+
+	private static double parseDouble(JsonParser jp) throws IOException {
+		if (jp.getCurrentToken() == JsonToken.VALUE_NULL) {
+			return Double.NaN;
+		}
+		return SiriNumbers.parseDouble(jp.getTextCharacters(),
+				jp.getTextOffset(), jp.getTextLength());
+	}
+}
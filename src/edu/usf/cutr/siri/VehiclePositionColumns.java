@@ -0,0 +1,371 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A columnar view of the vehicle positions in a SIRI VehicleMonitoring
+ * response, with one row per VehicleActivity element.
+ *
+ * The view is read straight from the parser tokens, without binding any SIRI
+ * POJOs. Coordinates, bearings and distances are parsed from the parser's
+ * character buffers into primitive doubles, and RecordedAtTime into
+ * milliseconds since the epoch, so no BigDecimal or Date objects are created
+ * for them. With the JSON parser, the character buffers are its own, so no
+ * intermediate Strings are created either. The XML parser's
+ * getTextCharacters() copies each value out of a String it builds, so XML
+ * input still allocates a String and a char array per value.
+ *
+ * Missing numbers are reported as Double.NaN, and a missing RecordedAtTime as
+ * MISSING_TIME.
+ *
+ */
+public class VehiclePositionColumns {
+
+	/**
+	 * Value of getRecordedAtTime() for rows without a (valid) RecordedAtTime
+	 */
+	public static final long MISSING_TIME = SiriDateDeserializer.INVALID;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private int size = 0;
+
+	private String[] vehicleRef = new String[INITIAL_CAPACITY];
+	private String[] lineRef = new String[INITIAL_CAPACITY];
+	private long[] recordedAtTime = new long[INITIAL_CAPACITY];
+	private double[] longitude = new double[INITIAL_CAPACITY];
+	private double[] latitude = new double[INITIAL_CAPACITY];
+	private double[] bearing = new double[INITIAL_CAPACITY];
+	private double[] distanceFromCall = new double[INITIAL_CAPACITY];
+	private double[] callDistanceAlongRoute = new double[INITIAL_CAPACITY];
+
+	// Only used while reading
+	private SiriDateDeserializer dateParser = new SiriDateDeserializer();
+	private Map<String, String> lineRefPool = new HashMap<String, String>();
+	private String[] path = new String[16];
+
+	private VehiclePositionColumns() {
+	}
+
+	/**
+	 * Reads the vehicle positions in the given SIRI file
+	 *
+	 * @param file
+	 *            SIRI XML or JSON file
+	 * @param mapper
+	 *            XmlMapper (for XML) or ObjectMapper (for JSON) whose factory
+	 *            is used to create the parser
+	 * @return the vehicle positions in the file
+	 * @throws IOException
+	 *             if the file could not be read
+	 */
+	public static VehiclePositionColumns read(File file, ObjectMapper mapper)
+			throws IOException {
+		return read(mapper.getFactory().createJsonParser(file));
+	}
+
+	/**
+	 * Reads the vehicle positions in the given SIRI document. The stream is
+	 * closed when this method returns.
+	 *
+	 * @param in
+	 *            SIRI XML or JSON document
+	 * @param mapper
+	 *            XmlMapper (for XML) or ObjectMapper (for JSON) whose factory
+	 *            is used to create the parser
+	 * @return the vehicle positions in the document
+	 * @throws IOException
+	 *             if the document could not be read
+	 */
+	public static VehiclePositionColumns read(InputStream in,
+			ObjectMapper mapper) throws IOException {
+		return read(mapper.getFactory().createJsonParser(in));
+	}
+
+	/**
+	 * Reads the vehicle positions from the given parser, and closes it
+	 */
+	static VehiclePositionColumns read(JsonParser jp) throws IOException {
+		VehiclePositionColumns columns = new VehiclePositionColumns();
+		try {
+			JsonToken t;
+			while ((t = jp.nextToken()) != null) {
+				if (t != JsonToken.FIELD_NAME
+						|| !LazySiriDocument.VEHICLE_ACTIVITY.equals(jp
+								.getCurrentName())) {
+					continue;
+				}
+				t = jp.nextToken();
+				if (t == JsonToken.START_ARRAY) {
+					for (t = jp.nextToken(); t != null
+							&& t != JsonToken.END_ARRAY; t = jp.nextToken()) {
+						if (t == JsonToken.START_OBJECT) {
+							columns.readActivity(jp);
+						} else {
+							jp.skipChildren();
+						}
+					}
+				} else if (t == JsonToken.START_OBJECT) {
+					columns.readActivity(jp);
+				}
+			}
+		} finally {
+			jp.close();
+		}
+		columns.finishReading();
+		return columns;
+	}
+
+	/**
+	 * Trims the columns to the number of rows, and drops the state that is
+	 * only needed while reading
+	 */
+	private void finishReading() {
+		vehicleRef = Arrays.copyOf(vehicleRef, size);
+		lineRef = Arrays.copyOf(lineRef, size);
+		recordedAtTime = Arrays.copyOf(recordedAtTime, size);
+		longitude = Arrays.copyOf(longitude, size);
+		latitude = Arrays.copyOf(latitude, size);
+		bearing = Arrays.copyOf(bearing, size);
+		distanceFromCall = Arrays.copyOf(distanceFromCall, size);
+		callDistanceAlongRoute = Arrays.copyOf(callDistanceAlongRoute, size);
+
+		dateParser = null;
+		lineRefPool = null;
+		path = null;
+	}
+
+	/**
+	 * Reads one VehicleActivity element into a new row, starting with the
+	 * parser at its START_OBJECT token and ending at its END_OBJECT token
+	 */
+	private void readActivity(JsonParser jp) throws IOException {
+		int row = addRow();
+
+		// Names of the objects enclosing the current value, below the
+		// VehicleActivity
+		int depth = 0;
+
+		while (true) {
+			JsonToken t = jp.nextToken();
+			if (t == null) {
+				throw new JsonParseException("Unexpected end of input in "
+						+ LazySiriDocument.VEHICLE_ACTIVITY,
+						jp.getCurrentLocation());
+			}
+			switch (t) {
+			case START_OBJECT:
+				if (depth == path.length) {
+					path = Arrays.copyOf(path, depth * 2);
+				}
+				path[depth++] = jp.getCurrentName();
+				break;
+			case END_OBJECT:
+				if (depth == 0) {
+					return;
+				}
+				depth--;
+				break;
+			case FIELD_NAME:
+			case START_ARRAY:
+			case END_ARRAY:
+				break;
+			default:
+				readValue(jp, row, depth);
+			}
+		}
+	}
+
+	private void readValue(JsonParser jp, int row, int depth)
+			throws IOException {
+		String name = jp.getCurrentName();
+		String parent = depth == 0 ? null : path[depth - 1];
+
+		if (depth == 0) {
+			if ("RecordedAtTime".equals(name)) {
+				recordedAtTime[row] = dateParser.parseMillis(
+						jp.getTextCharacters(), jp.getTextOffset(),
+						jp.getTextLength());
+			}
+		} else if (parent == null) {
+			// Object inside an array, such as a SituationRef
+			return;
+		} else if (parent.equals("MonitoredVehicleJourney")) {
+			if (LazySiriDocument.VEHICLE_REF.equals(name)) {
+				vehicleRef[row] = jp.getText();
+			} else if (LazySiriDocument.LINE_REF.equals(name)) {
+				lineRef[row] = pool(jp.getText());
+			} else if ("Bearing".equals(name)) {
+				bearing[row] = parseDouble(jp);
+			}
+		} else if (parent.equals("VehicleLocation")) {
+			if ("Longitude".equals(name)) {
+				longitude[row] = parseDouble(jp);
+			} else if ("Latitude".equals(name)) {
+				latitude[row] = parseDouble(jp);
+			}
+		} else if (parent.equals("Distances") && depth >= 3
+				&& "MonitoredCall".equals(path[depth - 3])) {
+			if ("DistanceFromCall".equals(name)) {
+				distanceFromCall[row] = parseDouble(jp);
+			} else if ("CallDistanceAlongRoute".equals(name)) {
+				callDistanceAlongRoute[row] = parseDouble(jp);
+			}
+		}
+	}
+
+	private static double parseDouble(JsonParser jp) throws IOException {
+		if (jp.getCurrentToken() == JsonToken.VALUE_NULL) {
+			return Double.NaN;
+		}
+		return SiriNumbers.parseDouble(jp.getTextCharacters(),
+				jp.getTextOffset(), jp.getTextLength());
+	}
+
+	/**
+	 * Shares LineRef strings between rows, since many vehicles serve the same
+	 * line
+	 */
+	private String pool(String s) {
+		String pooled = lineRefPool.get(s);
+		if (pooled == null) {
+			lineRefPool.put(s, s);
+			pooled = s;
+		}
+		return pooled;
+	}
+
+	private int addRow() {
+		if (size == vehicleRef.length) {
+			int capacity = size * 2;
+			vehicleRef = Arrays.copyOf(vehicleRef, capacity);
+			lineRef = Arrays.copyOf(lineRef, capacity);
+			recordedAtTime = Arrays.copyOf(recordedAtTime, capacity);
+			longitude = Arrays.copyOf(longitude, capacity);
+			latitude = Arrays.copyOf(latitude, capacity);
+			bearing = Arrays.copyOf(bearing, capacity);
+			distanceFromCall = Arrays.copyOf(distanceFromCall, capacity);
+			callDistanceAlongRoute = Arrays.copyOf(callDistanceAlongRoute,
+					capacity);
+		}
+		int row = size++;
+		recordedAtTime[row] = MISSING_TIME;
+		longitude[row] = Double.NaN;
+		latitude[row] = Double.NaN;
+		bearing[row] = Double.NaN;
+		distanceFromCall[row] = Double.NaN;
+		callDistanceAlongRoute[row] = Double.NaN;
+		return row;
+	}
+
+	/**
+	 * Returns the number of rows (i.e., VehicleActivity elements)
+	 *
+	 * @return the number of rows
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return MonitoredVehicleJourney.VehicleRef of the given row, or null
+	 */
+	public String getVehicleRef(int row) {
+		checkRow(row);
+		return vehicleRef[row];
+	}
+
+	/**
+	 * @return MonitoredVehicleJourney.LineRef of the given row, or null
+	 */
+	public String getLineRef(int row) {
+		checkRow(row);
+		return lineRef[row];
+	}
+
+	/**
+	 * @return RecordedAtTime of the given row in milliseconds since the
+	 *         epoch, or MISSING_TIME
+	 */
+	public long getRecordedAtTime(int row) {
+		checkRow(row);
+		return recordedAtTime[row];
+	}
+
+	/**
+	 * @return MonitoredVehicleJourney.VehicleLocation.Longitude of the given
+	 *         row, or NaN
+	 */
+	public double getLongitude(int row) {
+		checkRow(row);
+		return longitude[row];
+	}
+
+	/**
+	 * @return MonitoredVehicleJourney.VehicleLocation.Latitude of the given
+	 *         row, or NaN
+	 */
+	public double getLatitude(int row) {
+		checkRow(row);
+		return latitude[row];
+	}
+
+	/**
+	 * @return MonitoredVehicleJourney.Bearing of the given row, or NaN
+	 */
+	public double getBearing(int row) {
+		checkRow(row);
+		return bearing[row];
+	}
+
+	/**
+	 * @return MonitoredCall.Extensions.Distances.DistanceFromCall of the given
+	 *         row, or NaN
+	 */
+	public double getDistanceFromCall(int row) {
+		checkRow(row);
+		return distanceFromCall[row];
+	}
+
+	/**
+	 * @return MonitoredCall.Extensions.Distances.CallDistanceAlongRoute of the
+	 *         given row, or NaN
+	 */
+	public double getCallDistanceAlongRoute(int row) {
+		checkRow(row);
+		return callDistanceAlongRoute[row];
+	}
+
+	private void checkRow(int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("Row " + row + ", size "
+					+ size);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests how SiriArrivalBoard orders updates of a vehicle and expires arrivals
+ *
+ */
+public class SiriArrivalBoardTest {
+
+	private static final long MISSING = VehiclePositionColumns.MISSING_TIME;
+
+	private final SiriArrivalBoard board = new SiriArrivalBoard();
+
+	@Test
+	public void ignoresOlderUpdates() {
+		board.update("S", "A", "1", 2000, 100, 1000);
+		board.update("S", "A", "1", 3000, 200, 900);
+		assertArrival("S", 2000, 1000);
+
+		board.update("S", "A", "1", 3000, 200, MISSING);
+		assertArrival("S", 2000, 1000);
+
+		board.update("S", "A", "1", 4000, 50, 1000);
+		assertArrival("S", 4000, 1000);
+	}
+
+	@Test
+	public void replacesMissingTime() {
+		board.update("S", "A", "1", 2000, 100, MISSING);
+		board.update("S", "A", "1", 3000, 200, 900);
+		assertArrival("S", 3000, 900);
+	}
+
+	@Test
+	public void expiresByRecordedAtTime() {
+		board.update("S", "A", "1", 2000, 100, 1000);
+		board.update("S", "B", "1", 2500, 100, 500);
+		board.expire(800);
+		assertEquals(1, board.getArrivals("S").size());
+		assertEquals("A", board.getArrivals("S").get(0).getVehicleRef());
+	}
+
+	@Test
+	public void expiresMissingTimeWhenNotUpdated() {
+		board.update("S", "A", "1", 2000, 100, MISSING);
+		board.update("S", "B", "1", 2500, 100, MISSING);
+		board.expire(800);
+		assertEquals(2, board.getArrivals("S").size());
+
+		board.update("S", "A", "1", 2100, 100, MISSING);
+		board.expire(800);
+		assertEquals(1, board.getArrivals("S").size());
+		assertEquals("A", board.getArrivals("S").get(0).getVehicleRef());
+
+		board.expire(800);
+		assertEquals(0, board.getArrivals("S").size());
+	}
+
+	private void assertArrival(String stopPointRef, long expectedArrivalTime,
+			long recordedAtTime) {
+		List<SiriArrivalBoard.Arrival> arrivals = board
+				.getArrivals(stopPointRef);
+		assertEquals(1, arrivals.size());
+		assertEquals(expectedArrivalTime, arrivals.get(0)
+				.getExpectedArrivalTime());
+		assertEquals(recordedAtTime, arrivals.get(0).getRecordedAtTime());
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.siri;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Tests how SiriFeedMerger removes vehicles from the fleet view at the end of
+ * a round
+ *
+ */
+public class SiriFeedMergerTest {
+
+	private SiriFeedMerger merger;
+	private final List<File> files = new ArrayList<File>();
+
+	@Before
+	public void setUp() {
+		// Feeds are only scanned, never bound, so plain mappers will do
+		merger = new SiriFeedMerger(new ObjectMapper(), new ObjectMapper(), 1);
+	}
+
+	@After
+	public void tearDown() {
+		merger.shutdown();
+		for (File file : files) {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void keepsFleetWithoutRecordedAtTime() throws Exception {
+		File feed = feed("A", "B");
+		assertVehicles(merger.merge(Arrays.asList(feed)), "A", "B");
+		assertVehicles(merger.merge(Arrays.asList(feed)), "A", "B");
+	}
+
+	@Test
+	public void removesVehiclesBehindNewest() throws Exception {
+		File feed = feed("A@2012-08-21T12:00:00.000Z",
+				"B@2012-08-21T11:50:00.000Z", "C@2012-08-21T11:40:00.000Z");
+		assertVehicles(merger.merge(Arrays.asList(feed)), "A", "B");
+
+		merger.setMaxAge(-1);
+		assertVehicles(merger.merge(Arrays.asList(feed)), "A", "B", "C");
+	}
+
+	@Test
+	public void removesVehiclesWithoutRecordedAtTimeOnlyWhenAbsent()
+			throws Exception {
+		File both = feed("A@2012-08-21T12:00:00.000Z", "B");
+		File timedOnly = feed("A@2012-08-21T12:01:00.000Z");
+		assertVehicles(merger.merge(Arrays.asList(both)), "A", "B");
+		assertVehicles(merger.merge(Arrays.asList(both)), "A", "B");
+		assertVehicles(merger.merge(Arrays.asList(timedOnly)), "A");
+	}
+
+	@Test
+	public void keepsTimeOverMissingTime() throws Exception {
+		File timed = feed("A@2012-08-21T12:00:00.000Z");
+		File untimed = feed("A");
+		merger.merge(Arrays.asList(timed, untimed));
+		SiriFeedMerger.Snapshot snapshot = merger.merge(Arrays
+				.asList(untimed));
+		assertVehicles(snapshot, "A");
+		long time = snapshot.getVehicles().get("A").getRecordedAtTime();
+		assertTrue(time != VehiclePositionColumns.MISSING_TIME);
+	}
+
+	private void assertVehicles(SiriFeedMerger.Snapshot snapshot,
+			String... vehicleRefs) {
+		assertEquals(0, snapshot.getFailures().size());
+		assertEquals(new HashSet<String>(Arrays.asList(vehicleRefs)),
+				snapshot.getVehicles().keySet());
+	}
+
+	/**
+	 * Writes a VehicleMonitoring JSON feed with a VehicleActivity for each
+	 * given "VehicleRef" or "VehicleRef@RecordedAtTime"
+	 */
+	private File feed(String... vehicles) throws IOException {
+		StringBuilder json = new StringBuilder(
+				"{\"Siri\":{\"ServiceDelivery\":{\"VehicleMonitoringDelivery\":[{\"VehicleActivity\":[");
+		for (int i = 0; i < vehicles.length; i++) {
+			String[] fields = vehicles[i].split("@");
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("{\"MonitoredVehicleJourney\":{\"VehicleRef\":\"")
+					.append(fields[0]).append("\"}");
+			if (fields.length > 1) {
+				json.append(",\"RecordedAtTime\":\"").append(fields[1])
+						.append('"');
+			}
+			json.append('}');
+		}
+		json.append("]}]}}}");
+
+		File file = File.createTempFile("siri-feed-", ".json");
+		files.add(file);
+		FileUtils.writeStringToFile(file, json.toString(), "UTF-8");
+		return file;
+	}
+}